@@ -0,0 +1,84 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cache of the blocs read from the .img files. One instance is shared by all the
+ * files of an {@link ImgFilesBag}.
+ * <p>Used only when the blocs are copied from the file
+ * (see {@link ImgFileBag.StorageMode#RANDOM_ACCESS}).
+ */
+public class BlocCache extends LruCache<BlocCache.Key, ByteBuffer>
+{
+    public static final long DEFAULT_MAX_SIZE=32*1024*1024;
+
+    public BlocCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public BlocCache(long maxSize)
+    {
+        super(maxSize);
+    }
+
+    protected int getWeight(ByteBuffer value)
+    {
+        return value.capacity();
+    }
+
+    ByteBuffer get(ImgFileBag file, long pos)
+    {
+        return get(new Key(file, pos));
+    }
+
+    void put(ImgFileBag file, long pos, ByteBuffer bloc)
+    {
+        put(new Key(file, pos), bloc);
+    }
+
+    static final class Key
+    {
+        private final ImgFileBag file;
+
+        private final long pos;
+
+        public Key(ImgFileBag file, long pos)
+        {
+            this.file=file;
+            this.pos=pos;
+        }
+
+        public int hashCode()
+        {
+            return System.identityHashCode(file)*31+(int)(pos^(pos>>>32));
+        }
+
+        public boolean equals(Object o)
+        {
+            if(o==this) return true;
+            if(!(o instanceof Key)) return false;
+            Key other=(Key)o;
+            return file==other.file && pos==other.pos;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Low level access to the blocs of a .img file. The content is returned as it is
+ * on the disk, the XOR byte (see {@link #getXor()}) must be applied while reading it.
+ */
+interface BlocStorage
+{
+    /**
+     * @param pos  The position of the bloc relative to the start of the IMG file.
+     * @param size The size of the bloc.
+     * @return A read-only little endian buffer with the content of the bloc. Only the absolute
+     *         get methods must be used, since it may be shared between threads.
+     */
+    ByteBuffer getBloc(long pos, int size) throws IOException;
+
+    /**
+     * Same as {@link #getBloc(long, int)} for a bigger region, but only if it can
+     * be done without copying the data.
+     *
+     * @return The region or null if it's not possible.
+     */
+    ByteBuffer getRegion(long pos, long size) throws IOException;
+
+    /**
+     * @return The byte every byte of the file must be XORed with.
+     */
+    int getXor();
+
+    /**
+     * @return True if every call to {@link #getBloc(long, int)} is creating a copy
+     *         of the data (then, it's worth caching the result).
+     */
+    boolean isCopying();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,43 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Allows to stop a read of the maps from another thread.
+ *
+ * @see QueryOptions
+ */
+public class CancellationToken
+{
+    private volatile boolean cancelled=false;
+
+    /**
+     * Ask the reads using this token to stop as soon as possible.
+     */
+    public void cancel()
+    {
+        cancelled=true;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+}
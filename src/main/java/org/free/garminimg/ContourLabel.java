@@ -0,0 +1,66 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+
+/**
+ * The label of a contour line. Stored in feet, given in meters.
+ */
+public class ContourLabel extends Label
+{
+    public ContourLabel(ImgFileBag file, String filename, int labelOffset)
+    {
+        super(file, filename, labelOffset);
+    }
+
+    protected void init() throws IOException
+    {
+        name=toMeters(file.getLblFile(filename).getLabel(labelOffset));
+    }
+
+    protected int getHandleKind()
+    {
+        return LabelHandle.KIND_CONTOUR;
+    }
+
+    /**
+     * Like when the contour lines had name-only labels, the labels with the same altitude are
+     * equal, to show the altitude only once.
+     */
+    public int hashCode()
+    {
+        return toString().hashCode();
+    }
+
+    public boolean equals(Object o)
+    {
+        return o==this || (o instanceof ContourLabel && toString().equals(o.toString()));
+    }
+
+    /**
+     * @return The altitude in meters, rounded to 10 meters.
+     */
+    static String toMeters(String feet)
+    {
+        //TODO: add some way to setup if we want feet or meters. For the moment, it's meters
+        return Integer.toString((int)Math.round(Double.parseDouble(feet)*0.3048/10)*10);
+    }
+}
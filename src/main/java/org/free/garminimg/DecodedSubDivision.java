@@ -0,0 +1,287 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.BitSet;
+
+/**
+ * The objects of a sub-division, once decoded from the RGN file. Kept in a
+ * {@link SubDivisionCache}.
+ * <p>Only primitive arrays are used: for each object its kind, type, sub-type or flags,
+ * label and position in the coordinate arrays. The labels are kept as kinds and offsets
+ * (see {@link LabelHandle}) and the {@link Label} instances are re-created when the objects
+ * are sent to a listener.
+ * <p>Immutable once built, can be replayed by several threads at the same time. Also read
+ * object by object by a {@link FeatureCursor}.
+ */
+class DecodedSubDivision
+{
+    private static final int LABEL_KIND_SHIFT=28;
+
+    private static final int LABEL_VALUE_MASK=(1<<LABEL_KIND_SHIFT)-1;
+
+    /**
+     * Number of ints stored for each object in the objects array.
+     */
+    private static final int OBJECT_SIZE=6;
+
+    /**
+     * kind, type, subType (points) or flags (polies), label kind and value, first coordinate, nb coordinates
+     */
+    private final int[] objects;
+
+    private final int nbObjects;
+
+    private final int[] longitudes;
+
+    private final int[] latitudes;
+
+    private final int maxNbPoints;
+
+    private DecodedSubDivision(Builder builder)
+    {
+        objects=shrink(builder.objects, builder.nbObjects*OBJECT_SIZE);
+        nbObjects=builder.nbObjects;
+        longitudes=shrink(builder.longitudes, builder.nbCoords);
+        latitudes=shrink(builder.latitudes, builder.nbCoords);
+        maxNbPoints=builder.maxNbPoints;
+    }
+
+    private static int[] shrink(int[] values, int size)
+    {
+        int[] result=new int[size];
+        System.arraycopy(values, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Send the objects to the listener, in the order they were decoded.
+     *
+     * @param rgn To re-create the label handles.
+     * @param rgnContext Its coordinate arrays are used to send the polies.
+     */
+    public void replay(RgnSubFile rgn, RawMapListener listener, int objectKindFilter, BitSet objectTypeFilter, RgnContext rgnContext)
+    {
+        if(maxNbPoints>0)
+            rgnContext.checkCoordsSize(maxNbPoints-1);
+        final int[] longs=rgnContext.longs;
+        final int[] lats=rgnContext.lats;
+        for(int cpt=0; cpt<nbObjects; ++cpt)
+        {
+            if(!matches(cpt, objectKindFilter, objectTypeFilter))
+                continue;
+            final int pos=cpt*OBJECT_SIZE;
+            final int kind=objects[pos];
+            final int type=objects[pos+1];
+            final long label=getLabelHandle(rgn, cpt);
+            if(kind==ObjectKind.POINT || kind==ObjectKind.INDEXED_POINT)
+            {
+                final int coord=objects[pos+4];
+                listener.addPoint(type, objects[pos+2], longitudes[coord], latitudes[coord], label,
+                                  kind==ObjectKind.INDEXED_POINT);
+            }
+            else
+            {
+                final int flags=objects[pos+2];
+                final int nbPoints=objects[pos+5];
+                System.arraycopy(longitudes, objects[pos+4], longs, 0, nbPoints);
+                System.arraycopy(latitudes, objects[pos+4], lats, 0, nbPoints);
+                listener.addPoly(type, longs, lats, nbPoints, label, (flags&1)!=0, (flags&2)!=0);
+            }
+        }
+    }
+
+    boolean matches(int object, int objectKindFilter, BitSet objectTypeFilter)
+    {
+        final int pos=object*OBJECT_SIZE;
+        return (objectKindFilter&objects[pos])!=0 && (objectTypeFilter==null || objectTypeFilter.get(objects[pos+1]));
+    }
+
+    /**
+     * @return One of {@link ObjectKind#POINT}, {@link ObjectKind#INDEXED_POINT}, {@link ObjectKind#POLYLINE}
+     *         or {@link ObjectKind#POLYGON}.
+     */
+    int getKind(int object)
+    {
+        return objects[object*OBJECT_SIZE];
+    }
+
+    int getType(int object)
+    {
+        return objects[object*OBJECT_SIZE+1];
+    }
+
+    /**
+     * @return The sub-type for the points, bit 0 for "line" and bit 1 for "direction" for the polies.
+     */
+    int getSubTypeOrFlags(int object)
+    {
+        return objects[object*OBJECT_SIZE+2];
+    }
+
+    /**
+     * @return The position of the first coordinate of the object in {@link #getLongitudes()} and {@link #getLatitudes()}.
+     */
+    int getFirstCoord(int object)
+    {
+        return objects[object*OBJECT_SIZE+4];
+    }
+
+    int getNbPoints(int object)
+    {
+        return objects[object*OBJECT_SIZE+5];
+    }
+
+    /**
+     * @return The coordinates of all the objects. Must not be modified.
+     */
+    int[] getLongitudes()
+    {
+        return longitudes;
+    }
+
+    int[] getLatitudes()
+    {
+        return latitudes;
+    }
+
+    Label getLabel(RgnSubFile rgn, int object)
+    {
+        final int labelInfo=objects[object*OBJECT_SIZE+3];
+        return rgn.createLabel(labelInfo>>>LABEL_KIND_SHIFT, labelInfo&LABEL_VALUE_MASK);
+    }
+
+    long getLabelHandle(RgnSubFile rgn, int object)
+    {
+        final int labelInfo=objects[object*OBJECT_SIZE+3];
+        if(labelInfo==0)
+            return LabelHandle.NONE;
+        return rgn.createLabelHandle(labelInfo>>>LABEL_KIND_SHIFT, labelInfo&LABEL_VALUE_MASK);
+    }
+
+    /**
+     * @return The approximate memory used, in bytes.
+     */
+    public int getWeight()
+    {
+        return 64+4*(objects.length+longitudes.length+latitudes.length);
+    }
+
+    public int getNbObjects()
+    {
+        return nbObjects;
+    }
+
+    /**
+     * Records what is decoded from a sub-division.
+     */
+    static class Builder implements RawMapListener
+    {
+        private int[] objects=new int[OBJECT_SIZE*32];
+
+        private int nbObjects=0;
+
+        private int[] longitudes=new int[256];
+
+        private int[] latitudes=new int[256];
+
+        private int nbCoords=0;
+
+        private int maxNbPoints=0;
+
+        public void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed)
+        {
+            ensureCoordsCapacity(1);
+            longitudes[nbCoords]=longitude;
+            latitudes[nbCoords]=latitude;
+            addObject(indexed?ObjectKind.INDEXED_POINT:ObjectKind.POINT, type, subType, label, 1);
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction)
+        {
+            ensureCoordsCapacity(nbPoints);
+            System.arraycopy(longitudes, 0, this.longitudes, nbCoords, nbPoints);
+            System.arraycopy(latitudes, 0, this.latitudes, nbCoords, nbPoints);
+            addObject(line?ObjectKind.POLYLINE:ObjectKind.POLYGON, type, (line?1:0)|(direction?2:0), label, nbPoints);
+            maxNbPoints=Math.max(maxNbPoints, nbPoints);
+        }
+
+        private void addObject(int kind, int type, int subTypeOrFlags, long label, int nbPoints)
+        {
+            if((nbObjects+1)*OBJECT_SIZE>objects.length)
+            {
+                int[] newObjects=new int[objects.length*2];
+                System.arraycopy(objects, 0, newObjects, 0, nbObjects*OBJECT_SIZE);
+                objects=newObjects;
+            }
+            final int pos=nbObjects*OBJECT_SIZE;
+            objects[pos]=kind;
+            objects[pos+1]=type;
+            objects[pos+2]=subTypeOrFlags;
+            objects[pos+3]=encodeLabel(label);
+            objects[pos+4]=nbCoords;
+            objects[pos+5]=nbPoints;
+            nbCoords+=nbPoints;
+            nbObjects++;
+        }
+
+        /**
+         * Only the kind and the offset are kept, the handle is re-created with the ids of the RGN file.
+         */
+        private int encodeLabel(long label)
+        {
+            return (LabelHandle.getKind(label)<<LABEL_KIND_SHIFT)|LabelHandle.getOffset(label);
+        }
+
+        private void ensureCoordsCapacity(int nbNewCoords)
+        {
+            if(nbCoords+nbNewCoords>longitudes.length)
+            {
+                int newSize=Math.max(longitudes.length*2, nbCoords+nbNewCoords);
+                longitudes=grow(longitudes, nbCoords, newSize);
+                latitudes=grow(latitudes, nbCoords, newSize);
+            }
+        }
+
+        private static int[] grow(int[] values, int size, int newSize)
+        {
+            int[] result=new int[newSize];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+        }
+
+        public void finishPainting()
+        {
+        }
+
+        public DecodedSubDivision build()
+        {
+            return new DecodedSubDivision(this);
+        }
+    }
+}
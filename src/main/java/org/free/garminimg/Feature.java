@@ -0,0 +1,122 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * An object of a map, as given by {@link ImgFilesBag#stream}. Immutable.
+ */
+public class Feature
+{
+    private final int kind;
+
+    private final int type;
+
+    private final int subType;
+
+    private final boolean direction;
+
+    private final int[] longitudes;
+
+    private final int[] latitudes;
+
+    private final Label label;
+
+    private final SubDivision subDivision;
+
+    Feature(int kind, int type, int subType, boolean direction, int[] longitudes, int[] latitudes, Label label, SubDivision subDivision)
+    {
+        this.kind=kind;
+        this.type=type;
+        this.subType=subType;
+        this.direction=direction;
+        this.longitudes=longitudes;
+        this.latitudes=latitudes;
+        this.label=label;
+        this.subDivision=subDivision;
+    }
+
+    /**
+     * @return One of {@link ObjectKind#POINT}, {@link ObjectKind#INDEXED_POINT}, {@link ObjectKind#POLYLINE}
+     *         or {@link ObjectKind#POLYGON}.
+     */
+    public int getKind()
+    {
+        return kind;
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return The sub-type of a point, 0 for a poly.
+     */
+    public int getSubType()
+    {
+        return subType;
+    }
+
+    public boolean hasDirection()
+    {
+        return direction;
+    }
+
+    /**
+     * @return 1 for a point.
+     */
+    public int getNbPoints()
+    {
+        return longitudes.length;
+    }
+
+    public int getLongitude(int point)
+    {
+        return longitudes[point];
+    }
+
+    public int getLatitude(int point)
+    {
+        return latitudes[point];
+    }
+
+    /**
+     * @return Null if none.
+     */
+    public Label getLabel()
+    {
+        return label;
+    }
+
+    public SubDivision getSubDivision()
+    {
+        return subDivision;
+    }
+
+    public ImgFileBag getMap()
+    {
+        return subDivision.getTre().fileBag;
+    }
+
+    public String toString()
+    {
+        return "Feature{kind="+kind+" type="+type+" subType="+subType+" nbPoints="+longitudes.length+" label="+label+"}";
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.BitSet;
+
+/**
+ * A listener recording what it receives, to send it later to other listeners.
+ * Allows to decode a part of a map once and to use it several times.
+ * <p>The events are stored in two growing arrays, one for the numbers and one for
+ * the objects (labels, files and sub-divisions). The label handles received as a
+ * {@link RawMapListener} are stored with the numbers, without creating a label.
+ * <p>Not thread safe.
+ */
+public class FeatureBuffer implements MapListener, RawMapListener
+{
+    private static final int POINT=0;
+
+    private static final int POLY=1;
+
+    private static final int START_MAP=2;
+
+    private static final int START_SUB_DIVISION=3;
+
+    private static final int FINISH_PAINTING=4;
+
+    private static final int RAW_POINT=5;
+
+    private static final int RAW_POLY=6;
+
+    private int[] values=new int[1024];
+
+    private int nbValues=0;
+
+    private Object[] objects=new Object[256];
+
+    private int nbObjects=0;
+
+    /**
+     * Size of the biggest poly recorded.
+     */
+    private int maxNbPoints=0;
+
+    /**
+     * To create the labels from the handles, null to use the one of the file of the last
+     * {@link #startMap} event.
+     */
+    private final LabelResolver resolver;
+
+    public FeatureBuffer()
+    {
+        this(null);
+    }
+
+    /**
+     * @param resolver To create the labels from the handles, when replayed to a {@link MapListener}.
+     *                 If null, the resolver of the file of the last {@link #startMap} event is used.
+     */
+    public FeatureBuffer(LabelResolver resolver)
+    {
+        this.resolver=resolver;
+    }
+
+    public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+    {
+        ensureCapacity(6, 1);
+        values[nbValues++]=POINT;
+        values[nbValues++]=type;
+        values[nbValues++]=subType;
+        values[nbValues++]=longitude;
+        values[nbValues++]=latitude;
+        values[nbValues++]=indexed?1:0;
+        objects[nbObjects++]=label;
+    }
+
+    public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+    {
+        ensureCapacity(4+2*nbPoints, 1);
+        values[nbValues++]=POLY;
+        addPolyValues(type, longitudes, latitudes, nbPoints, line, direction);
+        objects[nbObjects++]=label;
+    }
+
+    public void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed)
+    {
+        ensureCapacity(8, 0);
+        values[nbValues++]=RAW_POINT;
+        values[nbValues++]=type;
+        values[nbValues++]=subType;
+        values[nbValues++]=longitude;
+        values[nbValues++]=latitude;
+        values[nbValues++]=indexed?1:0;
+        addHandle(label);
+    }
+
+    public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction)
+    {
+        ensureCapacity(6+2*nbPoints, 0);
+        values[nbValues++]=RAW_POLY;
+        addPolyValues(type, longitudes, latitudes, nbPoints, line, direction);
+        addHandle(label);
+    }
+
+    private void addPolyValues(int type, int[] longitudes, int[] latitudes, int nbPoints, boolean line, boolean direction)
+    {
+        values[nbValues++]=type;
+        values[nbValues++]=(line?1:0)|(direction?2:0);
+        values[nbValues++]=nbPoints;
+        System.arraycopy(longitudes, 0, values, nbValues, nbPoints);
+        nbValues+=nbPoints;
+        System.arraycopy(latitudes, 0, values, nbValues, nbPoints);
+        nbValues+=nbPoints;
+        maxNbPoints=Math.max(maxNbPoints, nbPoints);
+    }
+
+    private void addHandle(long label)
+    {
+        values[nbValues++]=(int)(label>>>32);
+        values[nbValues++]=(int)label;
+    }
+
+    private long getHandle(int valuePos)
+    {
+        return ((long)values[valuePos]<<32)|(values[valuePos+1]&0xFFFFFFFFL);
+    }
+
+    public void startMap(ImgFileBag file)
+    {
+        ensureCapacity(1, 1);
+        values[nbValues++]=START_MAP;
+        objects[nbObjects++]=file;
+    }
+
+    public void startSubDivision(SubDivision subDivision)
+    {
+        ensureCapacity(1, 1);
+        values[nbValues++]=START_SUB_DIVISION;
+        objects[nbObjects++]=subDivision;
+    }
+
+    public void finishPainting()
+    {
+        ensureCapacity(1, 0);
+        values[nbValues++]=FINISH_PAINTING;
+    }
+
+    private void ensureCapacity(int nbNewValues, int nbNewObjects)
+    {
+        if(nbValues+nbNewValues>values.length)
+        {
+            int[] newValues=new int[Math.max(values.length*2, nbValues+nbNewValues)];
+            System.arraycopy(values, 0, newValues, 0, nbValues);
+            values=newValues;
+        }
+        if(nbObjects+nbNewObjects>objects.length)
+        {
+            Object[] newObjects=new Object[objects.length*2];
+            System.arraycopy(objects, 0, newObjects, 0, nbObjects);
+            objects=newObjects;
+        }
+    }
+
+    /**
+     * Send everything that has been recorded to the given listener.
+     */
+    public void replay(MapListener listener)
+    {
+        replay(listener, null);
+    }
+
+    /**
+     * Send what has been recorded to the given listener, in the same order.
+     *
+     * @param objectTypeFilter If not null, only the points and polies with those types are
+     *                         sent (the other events are always sent). Same semantic as the
+     *                         filter of {@link ImgFilesBag#readMap}.
+     */
+    public void replay(MapListener listener, BitSet objectTypeFilter)
+    {
+        replay(listener, null, objectTypeFilter);
+    }
+
+    /**
+     * Send everything that has been recorded to the given listener, the labels as handles.
+     */
+    public void replayRaw(RawMapListener listener)
+    {
+        replay(null, listener, null);
+    }
+
+    /**
+     * Same as {@link #replay(MapListener, BitSet)}, the labels as handles.
+     */
+    public void replayRaw(RawMapListener listener, BitSet objectTypeFilter)
+    {
+        replay(null, listener, objectTypeFilter);
+    }
+
+    /**
+     * Exactly one of the listeners must be given. The labels and the handles are converted
+     * as needed.
+     */
+    private void replay(MapListener listener, RawMapListener rawListener, BitSet objectTypeFilter)
+    {
+        int[] longitudes=new int[maxNbPoints];
+        int[] latitudes=new int[maxNbPoints];
+        int valuePos=0;
+        int objectPos=0;
+        LabelResolver curResolver=resolver!=null ? resolver : LabelResolver.getDefault();
+        while(valuePos<nbValues)
+        {
+            final int event=values[valuePos++];
+            switch(event)
+            {
+                case POINT:
+                case RAW_POINT:
+                {
+                    int type=values[valuePos];
+                    if(objectTypeFilter==null || objectTypeFilter.get(type))
+                    {
+                        final int subType=values[valuePos+1];
+                        final int longitude=values[valuePos+2];
+                        final int latitude=values[valuePos+3];
+                        final boolean indexed=values[valuePos+4]!=0;
+                        if(listener!=null)
+                            listener.addPoint(type, subType, longitude, latitude, getLabel(curResolver, event==RAW_POINT, valuePos+5, objectPos), indexed);
+                        else
+                            rawListener.addPoint(type, subType, longitude, latitude, getHandle(event==RAW_POINT, valuePos+5, objectPos), indexed);
+                    }
+                    valuePos+=5;
+                    if(event==RAW_POINT)
+                        valuePos+=2;
+                    else
+                        objectPos++;
+                    break;
+                }
+                case POLY:
+                case RAW_POLY:
+                {
+                    int type=values[valuePos];
+                    int flags=values[valuePos+1];
+                    int nbPoints=values[valuePos+2];
+                    valuePos+=3;
+                    if(objectTypeFilter==null || objectTypeFilter.get(type))
+                    {
+                        System.arraycopy(values, valuePos, longitudes, 0, nbPoints);
+                        System.arraycopy(values, valuePos+nbPoints, latitudes, 0, nbPoints);
+                        final int labelPos=valuePos+2*nbPoints;
+                        if(listener!=null)
+                            listener.addPoly(type, longitudes, latitudes, nbPoints, getLabel(curResolver, event==RAW_POLY, labelPos, objectPos),
+                                             (flags&1)!=0, (flags&2)!=0);
+                        else
+                            rawListener.addPoly(type, longitudes, latitudes, nbPoints, getHandle(event==RAW_POLY, labelPos, objectPos),
+                                                (flags&1)!=0, (flags&2)!=0);
+                    }
+                    valuePos+=2*nbPoints;
+                    if(event==RAW_POLY)
+                        valuePos+=2;
+                    else
+                        objectPos++;
+                    break;
+                }
+                case START_MAP:
+                {
+                    ImgFileBag file=(ImgFileBag)objects[objectPos];
+                    if(resolver==null && file!=null)
+                        curResolver=file.getLabelResolver();
+                    if(listener!=null)
+                        listener.startMap(file);
+                    else
+                        rawListener.startMap(file);
+                    objectPos++;
+                    break;
+                }
+                case START_SUB_DIVISION:
+                    if(listener!=null)
+                        listener.startSubDivision((SubDivision)objects[objectPos]);
+                    else
+                        rawListener.startSubDivision((SubDivision)objects[objectPos]);
+                    objectPos++;
+                    break;
+                case FINISH_PAINTING:
+                    if(listener!=null)
+                        listener.finishPainting();
+                    else
+                        rawListener.finishPainting();
+                    break;
+            }
+        }
+    }
+
+    private Label getLabel(LabelResolver curResolver, boolean raw, int valuePos, int objectPos)
+    {
+        if(raw)
+            return curResolver.getLabel(getHandle(valuePos));
+        else
+            return (Label)objects[objectPos];
+    }
+
+    private long getHandle(boolean raw, int valuePos, int objectPos)
+    {
+        if(raw)
+            return getHandle(valuePos);
+        Label label=(Label)objects[objectPos];
+        return label!=null ? label.getHandle() : LabelHandle.NONE;
+    }
+
+    /**
+     * Forget everything, to re-use this buffer.
+     */
+    public void clear()
+    {
+        nbValues=0;
+        for(int cpt=0; cpt<nbObjects; ++cpt)
+        {
+            objects[cpt]=null;
+        }
+        nbObjects=0;
+        maxNbPoints=0;
+    }
+
+    public boolean isEmpty()
+    {
+        return nbValues==0;
+    }
+}
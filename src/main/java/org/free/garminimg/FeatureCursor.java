@@ -0,0 +1,271 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the objects of the maps one at a time, an alternative to {@link MapListener}. Sees
+ * the same objects, in the same order, as {@link ImgFilesBag#readMap(int, int, int, int, int, int, BitSet, MapListener)}.
+ * <p>Nothing is decoded in advance: a sub-division is decoded when the cursor reaches it, so
+ * stopping early avoids reading the rest of the maps. No object is created for each map object;
+ * the label is created only when asked.
+ * <p>Typical usage:
+ * <pre>
+ * FeatureCursor cursor=maps.createCursor(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.ALL, null);
+ * while(cursor.next())
+ * {
+ *     for(int cpt=0; cpt&lt;cursor.getNbPoints(); ++cpt)
+ *         ...cursor.getLongitude(cpt)...
+ * }
+ * </pre>
+ * <p>Not thread safe.
+ */
+public class FeatureCursor
+{
+    private final ImgFilesBag maps;
+
+    private final int minLong;
+
+    private final int maxLong;
+
+    private final int minLat;
+
+    private final int maxLat;
+
+    private final int resolution;
+
+    private final int objectKindFilter;
+
+    private final BitSet objectTypeFilter;
+
+    /**
+     * Positions are relative to a sub-file, a new one is needed for each TRE file.
+     */
+    private RgnContext rgnContext=null;
+
+    /**
+     * True when the files of the normal maps have been taken.
+     */
+    private boolean normalMaps=false;
+
+    private List<ImgFileBag> files;
+
+    private int nextFile=0;
+
+    private ImgFileBag curFile=null;
+
+    private List<TreSubFile> tres=Collections.emptyList();
+
+    private int nextTre=0;
+
+    private RgnSubFile curRgn=null;
+
+    private List<SubDivision> subDivisions=Collections.emptyList();
+
+    private int nextSubDivision=0;
+
+    private SubDivision curSubDivision=null;
+
+    private DecodedSubDivision decoded=null;
+
+    private int curObject=-1;
+
+    FeatureCursor(ImgFilesBag maps, int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter) throws IOException
+    {
+        this.maps=maps;
+        this.minLong=minLong;
+        this.maxLong=maxLong;
+        this.minLat=minLat;
+        this.maxLat=maxLat;
+        this.resolution=resolution;
+        this.objectKindFilter=objectKindFilter;
+        this.objectTypeFilter=objectTypeFilter;
+        files=maps.findFiles(true, minLong, maxLong, minLat, maxLat);
+    }
+
+    /**
+     * Go to the next object.
+     *
+     * @return False if there is no more object. The getters must not be called, then.
+     */
+    public boolean next() throws IOException
+    {
+        while(true)
+        {
+            if(decoded!=null)
+            {
+                while(++curObject<decoded.getNbObjects())
+                {
+                    if(decoded.matches(curObject, objectKindFilter, objectTypeFilter))
+                        return true;
+                }
+                decoded=null;
+            }
+            if(!nextSubDivision())
+                return false;
+        }
+    }
+
+    private boolean nextSubDivision() throws IOException
+    {
+        while(nextSubDivision>=subDivisions.size())
+        {
+            if(!nextTre())
+                return false;
+        }
+        curSubDivision=subDivisions.get(nextSubDivision++);
+        decoded=curFile.decode(curSubDivision, objectKindFilter, objectTypeFilter, rgnContext);
+        curObject=-1;
+        return true;
+    }
+
+    private boolean nextTre() throws IOException
+    {
+        while(nextTre>=tres.size())
+        {
+            if(!nextFile())
+                return false;
+        }
+        TreSubFile tre=tres.get(nextTre++);
+        subDivisions=tre.getSubDivisionsToRead(minLong, maxLong, minLat, maxLat, resolution);
+        nextSubDivision=0;
+        curRgn=curFile.getRgnFile(tre.getFilename());
+        rgnContext=new RgnContext();
+        return true;
+    }
+
+    private boolean nextFile() throws IOException
+    {
+        while(nextFile>=files.size())
+        {
+            if(normalMaps)
+                return false;
+            normalMaps=true;
+            if(maps.wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
+                return false;
+            files=maps.findFiles(false, minLong, maxLong, minLat, maxLat);
+            nextFile=0;
+        }
+        curFile=files.get(nextFile++);
+        List<TreSubFile> fileTres=curFile.getTreFilesToRead(minLong, maxLong, minLat, maxLat);
+        tres=fileTres!=null ? fileTres : Collections.<TreSubFile>emptyList();
+        nextTre=0;
+        return true;
+    }
+
+    /**
+     * @return One of {@link ObjectKind#POINT}, {@link ObjectKind#INDEXED_POINT}, {@link ObjectKind#POLYLINE}
+     *         or {@link ObjectKind#POLYGON}.
+     */
+    public int getKind()
+    {
+        return decoded.getKind(curObject);
+    }
+
+    public int getType()
+    {
+        return decoded.getType(curObject);
+    }
+
+    /**
+     * @return The sub-type of a point, 0 for a poly.
+     */
+    public int getSubType()
+    {
+        return isPoly() ? 0 : decoded.getSubTypeOrFlags(curObject);
+    }
+
+    private boolean isPoly()
+    {
+        final int kind=getKind();
+        return kind==ObjectKind.POLYLINE || kind==ObjectKind.POLYGON;
+    }
+
+    /**
+     * @return True if a polyline has a direction (one way streets, for example).
+     */
+    public boolean hasDirection()
+    {
+        return isPoly() && (decoded.getSubTypeOrFlags(curObject)&2)!=0;
+    }
+
+    /**
+     * @return 1 for a point.
+     */
+    public int getNbPoints()
+    {
+        return decoded.getNbPoints(curObject);
+    }
+
+    public int getLongitude(int point)
+    {
+        return decoded.getLongitudes()[decoded.getFirstCoord(curObject)+point];
+    }
+
+    public int getLatitude(int point)
+    {
+        return decoded.getLatitudes()[decoded.getFirstCoord(curObject)+point];
+    }
+
+    /**
+     * Copy the coordinates of the current object.
+     *
+     * @param longitudes Must have at least {@link #getNbPoints()} elements.
+     * @param latitudes  Must have at least {@link #getNbPoints()} elements.
+     */
+    public void getCoordinates(int[] longitudes, int[] latitudes)
+    {
+        final int first=decoded.getFirstCoord(curObject);
+        final int nbPoints=decoded.getNbPoints(curObject);
+        System.arraycopy(decoded.getLongitudes(), first, longitudes, 0, nbPoints);
+        System.arraycopy(decoded.getLatitudes(), first, latitudes, 0, nbPoints);
+    }
+
+    /**
+     * @return The label of the current object, created by this call. Null if none.
+     */
+    public Label getLabel()
+    {
+        return decoded.getLabel(curRgn, curObject);
+    }
+
+    /**
+     * @return The handle of the label of the current object, {@link LabelHandle#NONE} if none. Nothing is created.
+     * @see LabelResolver
+     */
+    public long getLabelHandle()
+    {
+        return decoded.getLabelHandle(curRgn, curObject);
+    }
+
+    public ImgFileBag getMap()
+    {
+        return curFile;
+    }
+
+    public SubDivision getSubDivision()
+    {
+        return curSubDivision;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The source of {@link ImgFilesBag#stream}. Gives the same objects, in the same order, as
+ * {@link ImgFilesBag#readMap(int, int, int, int, int, int, BitSet, MapListener)}.
+ * <p>Splits first along the map files, then, for the last file, along its sub-divisions
+ * (all the TRE files and levels mixed). A sub-division is decoded only when it is traversed.
+ * <p>Not SIZED: the number of objects matching the filters is known only after decoding.
+ * The estimate is based on the number of sub-divisions.
+ */
+class FeatureSpliterator implements Spliterator<Feature>
+{
+    /**
+     * Used for the estimated size, when the sub-divisions of a file are not known yet.
+     */
+    private static final int ESTIMATED_SUB_DIVISIONS_PER_FILE=256;
+
+    private static final int ESTIMATED_OBJECTS_PER_SUB_DIVISION=64;
+
+    private final int minLong;
+
+    private final int maxLong;
+
+    private final int minLat;
+
+    private final int maxLat;
+
+    private final int resolution;
+
+    private final int objectKindFilter;
+
+    private final BitSet objectTypeFilter;
+
+    /**
+     * Positions are relative to a sub-file, re-created when the RGN file changes.
+     */
+    private RgnContext rgnContext=null;
+
+    /**
+     * The files not yet expanded in sub-divisions, from nextFile (included) to endFile (excluded).
+     */
+    private final List<ImgFileBag> files;
+
+    private int nextFile;
+
+    private int endFile;
+
+    /**
+     * The sub-divisions to read, from nextSubDivision (included) to endSubDivision (excluded).
+     * Come before the files.
+     */
+    private List<SubDivision> subDivisions=Collections.emptyList();
+
+    private int nextSubDivision=0;
+
+    private int endSubDivision=0;
+
+    private DecodedSubDivision decoded=null;
+
+    private SubDivision curSubDivision=null;
+
+    private RgnSubFile curRgn=null;
+
+    private int curObject=-1;
+
+    FeatureSpliterator(List<ImgFileBag> files, int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter)
+    {
+        this(files, 0, files.size(), minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter);
+    }
+
+    private FeatureSpliterator(List<ImgFileBag> files, int nextFile, int endFile, int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter)
+    {
+        this.files=files;
+        this.nextFile=nextFile;
+        this.endFile=endFile;
+        this.minLong=minLong;
+        this.maxLong=maxLong;
+        this.minLat=minLat;
+        this.maxLat=maxLat;
+        this.resolution=resolution;
+        this.objectKindFilter=objectKindFilter;
+        this.objectTypeFilter=objectTypeFilter;
+    }
+
+    public boolean tryAdvance(Consumer<? super Feature> action)
+    {
+        try
+        {
+            while(true)
+            {
+                if(decoded!=null)
+                {
+                    while(++curObject<decoded.getNbObjects())
+                    {
+                        if(decoded.matches(curObject, objectKindFilter, objectTypeFilter))
+                        {
+                            action.accept(createFeature());
+                            return true;
+                        }
+                    }
+                    decoded=null;
+                }
+                if(nextSubDivision<endSubDivision)
+                {
+                    decode(subDivisions.get(nextSubDivision++));
+                }
+                else if(nextFile<endFile)
+                {
+                    expand(files.get(nextFile++));
+                }
+                else
+                {
+                    return false;
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void decode(SubDivision subDivision) throws IOException
+    {
+        final ImgFileBag file=subDivision.getTre().fileBag;
+        final RgnSubFile rgn=file.getRgnFile(subDivision.getTre().getFilename());
+        if(rgn!=curRgn)
+        {
+            curRgn=rgn;
+            rgnContext=new RgnContext();
+        }
+        decoded=file.decode(subDivision, objectKindFilter, objectTypeFilter, rgnContext);
+        curSubDivision=subDivision;
+        curObject=-1;
+    }
+
+    /**
+     * Replace the current sub-divisions (all read) by the ones of the given file.
+     */
+    private void expand(ImgFileBag file) throws IOException
+    {
+        List<SubDivision> result=new ArrayList<SubDivision>();
+        List<TreSubFile> tres=file.getTreFilesToRead(minLong, maxLong, minLat, maxLat);
+        if(tres!=null)
+        {
+            for(TreSubFile tre : tres)
+            {
+                result.addAll(tre.getSubDivisionsToRead(minLong, maxLong, minLat, maxLat, resolution));
+            }
+        }
+        subDivisions=result;
+        nextSubDivision=0;
+        endSubDivision=result.size();
+    }
+
+    private Feature createFeature()
+    {
+        final int kind=decoded.getKind(curObject);
+        final boolean poly=kind==ObjectKind.POLYLINE || kind==ObjectKind.POLYGON;
+        final int flags=decoded.getSubTypeOrFlags(curObject);
+        final int first=decoded.getFirstCoord(curObject);
+        final int nbPoints=decoded.getNbPoints(curObject);
+        int[] longitudes=new int[nbPoints];
+        int[] latitudes=new int[nbPoints];
+        System.arraycopy(decoded.getLongitudes(), first, longitudes, 0, nbPoints);
+        System.arraycopy(decoded.getLatitudes(), first, latitudes, 0, nbPoints);
+        return new Feature(kind, decoded.getType(curObject), poly ? 0 : flags, poly && (flags&2)!=0,
+                           longitudes, latitudes, decoded.getLabel(curRgn, curObject), curSubDivision);
+    }
+
+    /**
+     * Splits along the files first. When only one file is left, it is expanded and the split
+     * is done along its sub-divisions. The returned part is always the first one, to keep the order.
+     */
+    public Spliterator<Feature> trySplit()
+    {
+        if(decoded!=null)
+            return null;    //the traversal has started
+        final int nbSubDivisions=endSubDivision-nextSubDivision;
+        final int nbFiles=endFile-nextFile;
+        if(nbSubDivisions==0 && nbFiles>=2)
+        {
+            final int middle=nextFile+nbFiles/2;
+            FeatureSpliterator result=createSibling(nextFile, middle);
+            nextFile=middle;
+            return result;
+        }
+        if(nbSubDivisions==0 && nbFiles==1)
+        {
+            try
+            {
+                expand(files.get(nextFile++));
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            return trySplit();
+        }
+        if(nbSubDivisions>0 && nbFiles>0)
+        {
+            //the sub-divisions come before the files
+            FeatureSpliterator result=createSibling(nextFile, nextFile);
+            result.setSubDivisions(subDivisions, nextSubDivision, endSubDivision);
+            nextSubDivision=endSubDivision;
+            return result;
+        }
+        if(nbSubDivisions>=2)
+        {
+            final int middle=nextSubDivision+nbSubDivisions/2;
+            FeatureSpliterator result=createSibling(nextFile, nextFile);
+            result.setSubDivisions(subDivisions, nextSubDivision, middle);
+            nextSubDivision=middle;
+            return result;
+        }
+        return null;
+    }
+
+    private FeatureSpliterator createSibling(int nextFile, int endFile)
+    {
+        return new FeatureSpliterator(files, nextFile, endFile, minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter);
+    }
+
+    private void setSubDivisions(List<SubDivision> subDivisions, int nextSubDivision, int endSubDivision)
+    {
+        this.subDivisions=subDivisions;
+        this.nextSubDivision=nextSubDivision;
+        this.endSubDivision=endSubDivision;
+    }
+
+    public long estimateSize()
+    {
+        long nbSubDivisions=(endSubDivision-nextSubDivision)+(long)(endFile-nextFile)*ESTIMATED_SUB_DIVISIONS_PER_FILE;
+        long result=nbSubDivisions*ESTIMATED_OBJECTS_PER_SUB_DIVISION;
+        if(decoded!=null)
+            result+=decoded.getNbObjects()-curObject-1;
+        return result;
+    }
+
+    public int characteristics()
+    {
+        return ORDERED|NONNULL|IMMUTABLE;
+    }
+}
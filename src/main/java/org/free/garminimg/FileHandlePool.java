@@ -0,0 +1,353 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * We cannot have too many files open at the same time (OS limitation). This pool keeps
+ * the files open and closes the least recently used ones when the limit is reached.
+ * <p>The handles are reference counted, a file is never closed while in use. Getting a
+ * handle for a file already open doesn't take any lock. A file is opened by the first
+ * thread asking for it, without any lock; the other threads asking for the same file
+ * wait for it, the ones asking for other files don't.
+ * <p>The limit is a soft one: if every open file is in use, a new file is opened
+ * anyway instead of waiting for a release.
+ * <p>The limit is per process, so by default, every {@link ImgFilesBag} shares the same
+ * pool (see {@link #getDefault()}).
+ */
+public class FileHandlePool
+{
+    public static final int DEFAULT_MAX_OPEN_FILES=32;
+
+    private static final FileHandlePool defaultPool=new FileHandlePool(DEFAULT_MAX_OPEN_FILES);
+
+    private final ConcurrentHashMap<File, Handle> handles=new ConcurrentHashMap<File, Handle>();
+
+    /**
+     * The handles not in use, the least recently released first. May contain handles
+     * taken again since, they are skipped when looking for a file to close.
+     */
+    private final LinkedHashMap<Handle, Boolean> idles=new LinkedHashMap<Handle, Boolean>(16, 0.75f, true);
+
+    private volatile int maxOpenFiles;
+
+    private final AtomicLong opens=new AtomicLong();
+
+    private final AtomicLong closes=new AtomicLong();
+
+    private final AtomicLong overflows=new AtomicLong();
+
+    public FileHandlePool(int maxOpenFiles)
+    {
+        this.maxOpenFiles=maxOpenFiles;
+    }
+
+    /**
+     * @return The pool shared by the whole VM.
+     */
+    public static FileHandlePool getDefault()
+    {
+        return defaultPool;
+    }
+
+    /**
+     * Get a handle on the given file. Must be released with {@link Handle#release()}.
+     */
+    public Handle acquire(File file) throws IOException
+    {
+        while(true)
+        {
+            Handle result=handles.get(file);
+            if(result==null)
+            {
+                Handle created=new Handle(file);
+                result=handles.putIfAbsent(file, created);
+                if(result==null)
+                {
+                    closeIdlesIfNeeded();
+                    created.open();
+                    return created;
+                }
+            }
+            if(result.retain())
+            {
+                result.waitOpened();
+                return result;
+            }
+            //was closed in the meantime, try again
+        }
+    }
+
+    /**
+     * Close the least recently used files not in use, until we are under the limit.
+     */
+    private void closeIdlesIfNeeded() throws IOException
+    {
+        while(handles.size()>maxOpenFiles)
+        {
+            Handle oldest=null;
+            synchronized(idles)
+            {
+                Iterator<Handle> it=idles.keySet().iterator();
+                while(oldest==null && it.hasNext())
+                {
+                    Handle cur=it.next();
+                    it.remove();
+                    if(cur.users.compareAndSet(0, -1))
+                        oldest=cur;
+                    //else: in use, will be added again when released
+                }
+            }
+            if(oldest==null)
+            {
+                //every file is in use
+                overflows.incrementAndGet();
+                return;
+            }
+            oldest.doClose();
+        }
+    }
+
+    /**
+     * Close the given file if it's not in use.
+     * @return False if the file is still in use.
+     */
+    public boolean close(File file) throws IOException
+    {
+        Handle handle=handles.get(file);
+        return handle==null || handle.closeIfUnused();
+    }
+
+    /**
+     * Close every files not in use.
+     */
+    public void closeAll() throws IOException
+    {
+        for(Handle cur : handles.values())
+        {
+            cur.closeIfUnused();
+        }
+    }
+
+    public int getMaxOpenFiles()
+    {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Change the maximum number of files open at the same time. Takes effect
+     * the next time a file is opened.
+     */
+    public void setMaxOpenFiles(int maxOpenFiles)
+    {
+        this.maxOpenFiles=maxOpenFiles;
+    }
+
+    /**
+     * @return The number of files currently open.
+     */
+    public int getNbOpenFiles()
+    {
+        return handles.size();
+    }
+
+    /**
+     * @return The number of times a file has been opened.
+     */
+    public long getOpens()
+    {
+        return opens.get();
+    }
+
+    /**
+     * @return The number of times a file has been closed.
+     */
+    public long getCloses()
+    {
+        return closes.get();
+    }
+
+    /**
+     * @return The number of times a file has been opened over the limit, because
+     *         every open file was in use.
+     */
+    public long getOverflows()
+    {
+        return overflows.get();
+    }
+
+    public String toString()
+    {
+        return "FileHandlePool[open="+handles.size()+"/"+maxOpenFiles+" opens="+opens+" closes="+closes+" overflows="+overflows+"]";
+    }
+
+    /**
+     * An open file. Must be released after usage.
+     */
+    public class Handle
+    {
+        private final File file;
+
+        private final FutureTask<ImgFileInputStream> opening;
+
+        private volatile ImgFileInputStream input;
+
+        /**
+         * The number of users or -1 if closed.
+         */
+        private final AtomicInteger users=new AtomicInteger(1);
+
+        /**
+         * Set when the file has been closed behind our back.
+         */
+        private volatile boolean invalid=false;
+
+        private Handle(final File file)
+        {
+            this.file=file;
+            opening=new FutureTask<ImgFileInputStream>(new Callable<ImgFileInputStream>()
+            {
+                public ImgFileInputStream call() throws IOException
+                {
+                    return new ImgFileInputStream(file);
+                }
+            });
+        }
+
+        /**
+         * Open the file, in the thread of the first user.
+         */
+        private void open() throws IOException
+        {
+            opening.run();
+            try
+            {
+                waitOpened();
+            }
+            finally
+            {
+                if(input!=null)
+                    opens.incrementAndGet();
+            }
+        }
+
+        private void waitOpened() throws IOException
+        {
+            if(input!=null)
+                return;
+            try
+            {
+                input=opening.get();
+            }
+            catch(InterruptedException e)
+            {
+                release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for "+file+" to be opened");
+            }
+            catch(ExecutionException e)
+            {
+                //the next users will try to open it again
+                handles.remove(file, this);
+                users.set(-1);
+                if(e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException("Cannot open "+file, e.getCause());
+            }
+        }
+
+        private boolean retain()
+        {
+            while(true)
+            {
+                int cur=users.get();
+                if(cur<0)
+                    return false;
+                if(users.compareAndSet(cur, cur+1))
+                    return true;
+            }
+        }
+
+        public void release()
+        {
+            if(users.decrementAndGet()==0)
+            {
+                if(invalid)
+                {
+                    //the file is already closed
+                    if(users.compareAndSet(0, -1))
+                        closes.incrementAndGet();
+                    return;
+                }
+                synchronized(idles)
+                {
+                    //moved at the end if already there
+                    idles.put(this, Boolean.TRUE);
+                }
+            }
+        }
+
+        /**
+         * To be called when the file has been closed while in use. It happens when a thread
+         * is interrupted while reading the {@link java.nio.channels.FileChannel}: the channel is
+         * closed for every user of the handle. The next users will get a new handle.
+         */
+        void invalidate()
+        {
+            invalid=true;
+            handles.remove(file, this);
+        }
+
+        private boolean closeIfUnused() throws IOException
+        {
+            if(!users.compareAndSet(0, -1))
+                return users.get()<0;
+            synchronized(idles)
+            {
+                idles.remove(this);
+            }
+            doClose();
+            return true;
+        }
+
+        private void doClose() throws IOException
+        {
+            handles.remove(file, this);
+            input.close();
+            closes.incrementAndGet();
+        }
+
+        ImgFileInputStream getInput()
+        {
+            return input;
+        }
+    }
+}
@@ -19,13 +19,27 @@
  */
 package org.free.garminimg;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +58,18 @@ public class ImgFileBag
 
     private Map<String, RgnSubFile> rgn=new HashMap<String, RgnSubFile>();
 
+    /**
+     * The RGN files by id (see {@link LabelHandle}).
+     */
+    private List<RgnSubFile> rgnById=new ArrayList<RgnSubFile>();
+
+    /**
+     * The id of this file in the label handles.
+     */
+    private final int id;
+
+    private final LabelResolver labelResolver;
+
     private Map<String, TreSubFile> tre=new HashMap<String, TreSubFile>();
 
     private Map<String, Map<String, ImgSubFile>> otherFiles=new HashMap<String, Map<String, ImgSubFile>>();
@@ -52,22 +78,27 @@ public class ImgFileBag
 
     private static int FAT_BLOC_SIZE=512;
 
-    private ImgFileInputStream inputPrivate=null;
-
-    private boolean inputLocked=false;
-
     private ImgFilesBag parent;
 
     private Family family=null;
 
-    private boolean initDone=false;
+    private volatile boolean initDone=false;
 
-    private boolean initBoundariesDone=false;
+    private volatile boolean initBoundariesDone=false;
 
     /**
-     * Keep a cache of used blocs. Simple implementation, there is room for improvement...
+     * Used only if the storage is copying the blocs. Shared with the other files of the parent.
      */
-    private HashMap<Long, SoftReference<byte[]>> blocCache=new HashMap();
+    private final BlocCache blocCache;
+
+    /**
+     * Shared with the other files of the parent.
+     */
+    private final LabelCache labelCache;
+
+    private StorageMode storageMode=null;
+
+    private volatile BlocStorage storage=null;
 
     private ProductFile.MapDesc mapDescription=null;
 
@@ -79,51 +110,100 @@ public class ImgFileBag
 
     private int westBoundary;
 
+    /**
+     * Built once the file has been read.
+     */
+    private volatile TreIndex treIndex=null;
+
+    /**
+     * The index of the names of each TRE file, built the first time the file is searched by name
+     * or restored from the {@link MapIndex}.
+     */
+    private final ConcurrentHashMap<TreSubFile, FutureTask<LabelIndex>> labelIndexes=new ConcurrentHashMap<TreSubFile, FutureTask<LabelIndex>>();
+
+    private volatile boolean sortingSurfaceDone=false;
+
+    private long sortingSurface;
+
     public ImgFileBag(File file, ImgFilesBag parent) throws IOException
     {
         this.file=file;
         this.parent=parent;
+        blocCache=parent!=null?parent.getBlocCache():new BlocCache();
+        labelCache=parent!=null?parent.getLabelCache():new LabelCache();
+        labelResolver=parent!=null?parent.getLabelResolver():LabelResolver.getDefault();
+        id=labelResolver.register(this);
     }
 
     private void init() throws IOException
     {
         if(!initDone)
         {
-            System.out.println("reading file "+file.getName());
-            ImgFileInputStream input=getInput();
-
-            input.seek(0x49);
-            description=input.readString(20);
-
-            input.seek(0x61);
-            int e1=input.readByte();
-            int e2=input.readByte();
-            blocSize=1<<(e1+e2);
-
-            parseFat(input);
-            if(family==null)
-                family=guessFamily();
-            releaseInput();
-            initDone=true;
+            boolean justRead=false;
+            synchronized(this)
+            {
+                if(!initDone)
+                {
+                    MapIndex index=parent!=null?parent.getIndex():null;
+                    if(index==null || !restoreFromIndex(index))
+                    {
+                        System.out.println("reading file "+file.getName());
+                        FileHandlePool.Handle handle=acquireInput();
+                        try
+                        {
+                            ImgFileInputStream input=handle.getInput();
+                            //the position of the input is shared with the other users of the handle
+                            synchronized(input)
+                            {
+                                byte[] header=new byte[FAT_BLOC_SIZE];
+                                if(input.read(0, header)<header.length)
+                                    throw new IOException("File too small: "+file);
+                                description=new String(header, 0x49, 20);
+                                blocSize=1<<((header[0x61]&0xFF)+(header[0x62]&0xFF));
+
+                                parseFat(input, ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN));
+                            }
+                        }
+                        finally
+                        {
+                            handle.release();
+                        }
+                    }
+                    if(family==null)
+                        family=guessFamily();
+                    initDone=true;
+                    justRead=true;
+                }
+            }
+            //outside of the lock, the parent takes the locks of its sets, which
+            //may be held by threads waiting for this file
+            if(justRead && parent!=null)
+                parent.fileRead(this);
         }
     }
 
-    private void parseFat(ImgFileInputStream input) throws IOException
+    /**
+     * The FAT is read in one go and parsed from memory. The headers of the sub-files
+     * are parsed only when they are used (see {@link ImgSubFile#ensureInit()}).
+     */
+    private void parseFat(ImgFileInputStream input, ByteBuffer header) throws IOException
     {
-        input.seek(0x1FE);
-        int endOfPartitions=input.readUInt16();
+        int endOfPartitions=header.getShort(0x1FE)&0xFFFF;
         if(endOfPartitions!=0xAA55)
         {
             throw new IOException("Bad end of partition table: 0x"+Integer.toHexString(endOfPartitions));
         }
 
         //jump over some un-interesting blocs (usually only one, but can be more)
+        byte[] fatBloc=new byte[FAT_BLOC_SIZE];
         int interestingFatStart=0x200;
         while(true)
         {
-            input.seek(interestingFatStart);
-            int firstByte=input.readByte();
-            if(firstByte==1)
+            if(input.read(interestingFatStart, fatBloc)<fatBloc.length)
+            {
+                throw new IOException("Cannot find the start of the FAT");
+            }
+            if(fatBloc[0]==1)
             {
                 break;
             }
@@ -134,8 +214,7 @@ public class ImgFileBag
         }
 
         //the first block with startByte==1 contains the length and other unknown stuff
-        input.seek(interestingFatStart+0xc);
-        int fatLength=input.readInt32()-interestingFatStart;
+        int fatLength=ByteBuffer.wrap(fatBloc).order(ByteOrder.LITTLE_ENDIAN).getInt(0xc)-interestingFatStart;
         if(fatLength<0)
         {
             throw new IOException("Invalid FAT length: "+fatLength);
@@ -143,19 +222,22 @@ public class ImgFileBag
         interestingFatStart+=FAT_BLOC_SIZE;
 
         //the rest of the blocs contains the information to find the other files
-        input.seek(interestingFatStart);
         final int nbBlocks=fatLength/FAT_BLOC_SIZE;
+        byte[] fatContent=new byte[nbBlocks*FAT_BLOC_SIZE];
+        //if the file is truncated, the missing entries stay empty
+        input.read(interestingFatStart, fatContent);
+        ByteBuffer fat=ByteBuffer.wrap(fatContent).order(ByteOrder.LITTLE_ENDIAN);
         for(int fatBlock=0; fatBlock<nbBlocks; fatBlock++)
         {
-            input.seek(interestingFatStart+fatBlock*FAT_BLOC_SIZE);
-            int firstByte=input.readByte();
+            final int entry=fatBlock*FAT_BLOC_SIZE;
+            int firstByte=fatContent[entry];
             if(firstByte==0x1)
             {
-                String filename=input.readString(8);
-                String filetype=input.readString(3);
+                String filename=new String(fatContent, entry+1, 8);
+                String filetype=new String(fatContent, entry+9, 3);
                 String fullFilename=filename+"."+filetype;
-                int fileSize=input.readInt32();
-                int partNumber=input.readUInt16();
+                int fileSize=fat.getInt(entry+0xc);
+                int partNumber=fat.getShort(entry+0x10)&0xFFFF;
 
                 ImgSubFile subFile;
                 if(partNumber==0)
@@ -172,17 +254,32 @@ public class ImgFileBag
                     }
                 }
 
-                // read the list of blocs
-                input.seek(interestingFatStart+fatBlock*FAT_BLOC_SIZE+0x20);
+                // read the list of blocs, the consecutive ones are grouped in extents
                 int count=0;
                 int lastBloc;
+                int extentStart=-1;
+                int extentLength=0;
                 do
                 {
-                    lastBloc=input.readUInt16();
+                    lastBloc=fat.getShort(entry+0x20+count*2)&0xFFFF;
                     if(lastBloc!=0xFFFF)
-                        subFile.addBloc(lastBloc);
+                    {
+                        if(extentLength>0 && extentStart+extentLength==lastBloc)
+                        {
+                            extentLength++;
+                        }
+                        else
+                        {
+                            if(extentLength>0)
+                                subFile.addExtent(extentStart, extentLength);
+                            extentStart=lastBloc;
+                            extentLength=1;
+                        }
+                    }
                 }
                 while((++count)<240 && lastBloc!=0xFFFF);
+                if(extentLength>0)
+                    subFile.addExtent(extentStart, extentLength);
             }
             else
             {
@@ -191,14 +288,113 @@ public class ImgFileBag
                 break;*/
             }
         }
+    }
 
+    /**
+     * @return False if the index has no valid entry for this file.
+     */
+    private boolean restoreFromIndex(MapIndex index)
+    {
+        DataInputStream in=index.get(file);
+        if(in==null)
+            return false;
+        try
+        {
+            readIndex(in);
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.out.println("Ignoring the index entry of "+file.getName()+": "+e.getMessage());
+            lbl.clear();
+            net.clear();
+            rgn.clear();
+            rgnById.clear();
+            tre.clear();
+            otherFiles.clear();
+            labelIndexes.clear();
+            return false;
+        }
+    }
+
+    private void readIndex(DataInput in) throws IOException
+    {
+        description=in.readUTF();
+        blocSize=in.readInt();
+        int nbFiles=in.readInt();
+        for(int cpt=0; cpt<nbFiles; ++cpt)
+        {
+            String filetype=in.readUTF();
+            String filename=in.readUTF();
+            int fileSize=in.readInt();
+            ImgSubFile subFile=ImgSubFile.create(filename, filetype, fileSize, blocSize, this);
+            subFile.readIndex(in);
+            addFile(filetype, subFile);
+        }
+        int nbLabelIndexes=in.readInt();
+        for(int cpt=0; cpt<nbLabelIndexes; ++cpt)
+        {
+            TreSubFile cur=tre.get(in.readUTF());
+            final LabelIndex labelIndex=LabelIndex.read(in);
+            if(cur!=null)
+            {
+                FutureTask<LabelIndex> done=new FutureTask<LabelIndex>(new Callable<LabelIndex>()
+                {
+                    public LabelIndex call()
+                    {
+                        return labelIndex;
+                    }
+                });
+                done.run();
+                labelIndexes.put(cur, done);
+            }
+        }
+    }
+
+    /**
+     * Save what has been parsed from this file in the index. Does nothing if the file
+     * hasn't been read.
+     */
+    void writeIndex(MapIndex index) throws IOException
+    {
+        if(!initDone)
+            return;
+        final List<ImgSubFile> subFiles=new ArrayList<ImgSubFile>();
         foreachFile(new FileVisitor()
         {
             public void file(ImgSubFile file) throws IOException
             {
-                file.init();
+                subFiles.add(file);
             }
         });
+
+        ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(buffer);
+        out.writeUTF(description);
+        out.writeInt(blocSize);
+        out.writeInt(subFiles.size());
+        for(ImgSubFile subFile : subFiles)
+        {
+            out.writeUTF(subFile.getFiletype());
+            out.writeUTF(subFile.getFilename());
+            out.writeInt(subFile.getFileSize());
+            subFile.writeIndex(out);
+        }
+        Map<String, LabelIndex> builtLabelIndexes=new HashMap<String, LabelIndex>();
+        for(Map.Entry<TreSubFile, FutureTask<LabelIndex>> cur : labelIndexes.entrySet())
+        {
+            LabelIndex labelIndex=getIfBuilt(cur.getValue());
+            if(labelIndex!=null)
+                builtLabelIndexes.put(cur.getKey().getFilename(), labelIndex);
+        }
+        out.writeInt(builtLabelIndexes.size());
+        for(Map.Entry<String, LabelIndex> cur : builtLabelIndexes.entrySet())
+        {
+            out.writeUTF(cur.getKey());
+            cur.getValue().write(out);
+        }
+        out.close();
+        index.put(file, buffer.toByteArray());
     }
 
     public int guessLowestNbBits(int minLong, int maxLong, int minLat, int maxLat) throws IOException
@@ -215,7 +411,7 @@ public class ImgFileBag
         else
         {
             int result=24;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result = Math.min(result, cur.guessLowestNbBits());
             }
             return result;
@@ -227,28 +423,96 @@ public class ImgFileBag
         return description;
     }
 
-    public synchronized byte[] getBloc(long pos, long blocSize) throws IOException
+    /**
+     * @return The raw content of the bloc (the XOR byte is not applied).
+     * @see #getXorByte()
+     */
+    public ByteBuffer getBloc(long pos, int blocSize) throws IOException
+    {
+        BlocStorage storage=getStorage();
+        if(!storage.isCopying())
+        {
+            return storage.getBloc(pos, blocSize);
+        }
+
+        ByteBuffer result=blocCache.get(this, pos);
+        if(result==null)
+        {
+            result=storage.getBloc(pos, blocSize);
+            blocCache.put(this, pos, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return The raw content of a region of the file or null if it cannot be accessed
+     *         without copying it.
+     * @see BlocStorage#getRegion(long, long)
+     */
+    public ByteBuffer getRegion(long pos, long size) throws IOException
     {
-        SoftReference<byte[]> reference=blocCache.get(pos);
-        byte[] result;
-        if(reference==null || (result=reference.get())==null)
+        return getStorage().getRegion(pos, size);
+    }
+
+    private BlocStorage getStorage() throws IOException
+    {
+        BlocStorage result=storage;
+        if(result==null)
         {
-            ImgFileInputStream input=getInput();
-            input.seek(pos);
-            result=new byte[(int)blocSize];
-            input.readBloc(result);
-            blocCache.put(pos, new SoftReference<byte[]>(result));
-            releaseInput();
+            synchronized(this)
+            {
+                result=storage;
+                if(result==null)
+                {
+                    result=createStorage();
+                    storage=result;
+                }
+            }
         }
         return result;
     }
 
+    private BlocStorage createStorage() throws IOException
+    {
+        if(getStorageMode()==StorageMode.MEMORY_MAPPED)
+        {
+            try
+            {
+                return new MappedBlocStorage(file);
+            }
+            catch(IOException e)
+            {
+                //may happen with big files on a 32 bits VM
+                System.out.println("Cannot map "+file.getName()+" in memory, fallback to random access: "+e.getMessage());
+            }
+        }
+        return new RandomAccessBlocStorage(this);
+    }
+
+    public StorageMode getStorageMode()
+    {
+        if(storageMode!=null)
+            return storageMode;
+        else if(parent!=null)
+            return parent.getStorageMode();
+        else
+            return StorageMode.MEMORY_MAPPED;
+    }
+
+    /**
+     * Choose how the blocs of this file are accessed. Must be called before the file is read.
+     */
+    public void setStorageMode(StorageMode storageMode)
+    {
+        this.storageMode=storageMode;
+    }
+
     public long getFullSurface() throws IOException
     {
         initBoundaries();
         if(tre!=null) {
             long result=0;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result+=cur.getFullSurface();
             }
             return result;
@@ -257,6 +521,37 @@ public class ImgFileBag
         }
     }
 
+    /**
+     * @return The surface used to sort the files. Computed only once, so that the
+     *         order stays consistent.
+     */
+    long getSortingSurface()
+    {
+        if(!sortingSurfaceDone)
+        {
+            //computed outside of the lock, since it may read the file
+            long surface;
+            try
+            {
+                surface=getFullSurface();
+            }
+            catch(IOException e)
+            {
+                //ignored, sorted by filename only
+                surface=0;
+            }
+            synchronized(this)
+            {
+                if(!sortingSurfaceDone)
+                {
+                    sortingSurface=surface;
+                    sortingSurfaceDone=true;
+                }
+            }
+        }
+        return sortingSurface;
+    }
+
     private void initBoundaries() throws IOException
     {
         if(!initBoundariesDone)
@@ -277,6 +572,33 @@ public class ImgFileBag
         }
     }
 
+    /**
+     * @return The TRE sub-files, with their header parsed.
+     */
+    private Collection<TreSubFile> getTreFiles() throws IOException
+    {
+        Collection<TreSubFile> result=tre.values();
+        for(TreSubFile cur : result)
+        {
+            cur.ensureInit();
+        }
+        return result;
+    }
+
+    /**
+     * @return The LBL sub-files, with their header parsed.
+     */
+    Collection<LblSubFile> getLblFiles() throws IOException
+    {
+        init();
+        Collection<LblSubFile> result=lbl.values();
+        for(LblSubFile cur : result)
+        {
+            cur.ensureInit();
+        }
+        return result;
+    }
+
     private interface FileVisitor
     {
         void file(ImgSubFile file) throws IOException;
@@ -293,7 +615,7 @@ public class ImgFileBag
         for (NetSubFile cur : net.values()) {
             visitor.file(cur);
         }
-        for (TreSubFile cur : tre.values()) {
+        for (TreSubFile cur : getTreFiles()) {
             visitor.file(cur);
         }
 
@@ -316,6 +638,7 @@ public class ImgFileBag
         {
             public void file(ImgSubFile file) throws IOException
             {
+                file.ensureInit();
                 file.printDebug(out);
                 out.println();
             }
@@ -329,7 +652,14 @@ public class ImgFileBag
             System.out.println("file "+filename+"."+filetype+" already here!");
         }
         if("RGN".equals(filetype))
-            rgn.put(filename, (RgnSubFile)subFile);
+        {
+            RgnSubFile rgnFile=(RgnSubFile)subFile;
+            if(rgnById.size()>LabelHandle.MAX_SUB_FILE_ID)
+                throw new IllegalStateException("Too many RGN files in "+file);
+            rgnFile.setId(rgnById.size());
+            rgnById.add(rgnFile);
+            rgn.put(filename, rgnFile);
+        }
         else if("TRE".equals(filetype))
             tre.put(filename, (TreSubFile)subFile);
         else if("LBL".equals(filetype))
@@ -365,35 +695,110 @@ public class ImgFileBag
     public RgnSubFile getRgnFile(String filename) throws IOException
     {
         init();
-        return rgn.get(filename);
+        return ensureInit(rgn.get(filename));
+    }
+
+    /**
+     * @return The RGN file with the given id, without initializing it. Null if not found.
+     */
+    RgnSubFile getRgnFile(int id)
+    {
+        return initDone && id<rgnById.size() ? rgnById.get(id) : null;
+    }
+
+    RgnSubFile getRgnFileNoInit(String filename)
+    {
+        return initDone ? rgn.get(filename) : null;
+    }
+
+    int getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return The resolver of the label handles of this file (see {@link RawMapListener}).
+     */
+    public LabelResolver getLabelResolver()
+    {
+        return labelResolver;
     }
 
     public TreSubFile getTreFile(String filename) throws IOException
     {
         init();
-        return tre.get(filename);
+        return ensureInit(tre.get(filename));
     }
 
     public LblSubFile getLblFile(String filename) throws IOException
     {
         init();
-        return lbl.get(filename);
+        return ensureInit(lbl.get(filename));
     }
 
     public NetSubFile getNetFile(String filename) throws IOException
     {
         init();
-        return net.get(filename);
+        return ensureInit(net.get(filename));
+    }
+
+    private static <T extends ImgSubFile> T ensureInit(T subFile) throws IOException
+    {
+        if(subFile!=null)
+            subFile.ensureInit();
+        return subFile;
+    }
+
+    private TreIndex getTreIndex() throws IOException
+    {
+        TreIndex result=treIndex;
+        if(result==null)
+        {
+            init();
+            synchronized(this)
+            {
+                result=treIndex;
+                if(result==null)
+                {
+                    result=new TreIndex(getTreFiles());
+                    treIndex=result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The box {west, east, south, north} containing everything that can be
+     *         read from this file.
+     */
+    int[] getCoverage() throws IOException
+    {
+        initBoundaries();
+        if(tre.isEmpty())
+        {
+            return new int[]{westBoundary, eastBoundary, southBoundary, northBoundary};
+        }
+        int[] result;
+        if(mapDescription!=null)
+            result=new int[]{westBoundary, eastBoundary, southBoundary, northBoundary};
+        else
+            result=new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for(TreSubFile cur : getTreFiles())
+        {
+            result[0]=Math.min(result[0], cur.getWestBoundary());
+            result[1]=Math.max(result[1], cur.getEastBoundary());
+            result[2]=Math.min(result[2], cur.getSouthBoundary());
+            result[3]=Math.max(result[3], cur.getNorthBoundary());
+        }
+        return result;
     }
 
     private boolean containsCoordinates(int minLong, int maxLong, int minLat, int maxLat) throws IOException
     {
         initBoundaries();
         if(!tre.isEmpty()) {
-            for (TreSubFile cur : tre.values()) {
-                if(cur.matchesCoordinates(minLong, maxLong, minLat, maxLat)) return true;
-            }
-            return false;
+            return !getTreIndex().find(minLong, maxLong, minLat, maxLat).isEmpty();
         } else {
             return CoordUtils.matchesCoordinates(westBoundary, eastBoundary, southBoundary, northBoundary, minLong,
                                                  maxLong, minLat, maxLat);
@@ -407,48 +812,283 @@ public class ImgFileBag
 
     public void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, MapListener listener) throws IOException
     {
-        if(containsCoordinates(minLong, maxLong, minLat, maxLat))
+        readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, null);
+    }
+
+    /**
+     * @param options If not null, allows to stop the read before its end. Its status tells
+     *                if everything has been read.
+     */
+    public void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, MapListener listener, QueryOptions options) throws IOException
+    {
+        readMapRaw(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, LabelCreatingListener.wrap(listener, labelResolver), options);
+    }
+
+    /**
+     * Same as {@link #readMap(int, int, int, int, int, int, BitSet, MapListener, QueryOptions)}, but
+     * the labels are given as handles.
+     */
+    public void readMapRaw(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RawMapListener listener, QueryOptions options) throws IOException
+    {
+        List<TreSubFile> tres=getTreFilesToRead(minLong, maxLong, minLat, maxLat);
+        if(tres!=null)
         {
-            init();
             listener.startMap(this);
-            for (TreSubFile cur : tre.values()) {
-                String filename = cur.getFilename();
-                cur.readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, rgn.get(filename), lbl.get(filename), net.get(filename), listener);                
+            ExecutorService executor=getDecodingExecutor();
+            for(int cpt=0; cpt<tres.size(); ++cpt)
+            {
+                if(QueryOptions.mustStop(options))
+                    return;
+                readMap(tres.get(cpt), minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, executor, options);
             }
         }
     }
 
-    public File getFile()
+    /**
+     * @return The TRE files to read for the given coordinates, in order, or null if this
+     *         map doesn't contain the coordinates. Never an empty list.
+     */
+    List<TreSubFile> getTreFilesToRead(int minLong, int maxLong, int minLat, int maxLat) throws IOException
     {
-        return file;
+        initBoundaries();
+        //avoids reading the file if the boundaries are known and don't match
+        if(tre.isEmpty() && !CoordUtils.matchesCoordinates(westBoundary, eastBoundary, southBoundary, northBoundary,
+                                                           minLong, maxLong, minLat, maxLat))
+            return null;
+        TreIndex index=getTreIndex();
+        BitSet matching=index.find(minLong, maxLong, minLat, maxLat);
+        if(matching.isEmpty())
+            return null;
+        List<TreSubFile> result=new ArrayList<TreSubFile>(matching.cardinality());
+        for(int i=matching.nextSetBit(0); i>=0; i=matching.nextSetBit(i+1))
+        {
+            result.add(index.files[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Read one of the TRE files, without calling {@link MapListener#startMap}.
+     *
+     * @param executor To decode the sub-divisions in parallel, can be null.
+     * @param options  To stop the read before its end, can be null.
+     */
+    void readMap(TreSubFile tre, int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RawMapListener listener, ExecutorService executor, QueryOptions options) throws IOException
+    {
+        String filename=tre.getFilename();
+        //the LBL and NET files are initialized only if a label is resolved
+        tre.readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter,
+                    ensureInit(rgn.get(filename)), lbl.get(filename), net.get(filename), listener, executor, options);
+    }
+
+    /**
+     * @return The objects of a sub-division of one of the TRE files, decoded in memory.
+     * @see RgnSubFile#getDecoded
+     */
+    DecodedSubDivision decode(SubDivision subDivision, int objectKindFilter, BitSet objectTypeFilter, RgnContext rgnContext) throws IOException
+    {
+        String filename=subDivision.getTre().getFilename();
+        return ensureInit(rgn.get(filename)).getDecoded(subDivision, net.get(filename), subDivision.getLevel(),
+                                                        objectKindFilter, objectTypeFilter, rgnContext);
+    }
+
+    /**
+     * Same as {@link #readMapRaw}, but only the sub-divisions where a name matching the query is
+     * used are read. All their objects are sent, the listener must still check the names.
+     */
+    void readMapByName(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, LabelQuery query, RawMapListener listener, QueryOptions options) throws IOException
+    {
+        List<TreSubFile> tres=getTreFilesToRead(minLong, maxLong, minLat, maxLat);
+        if(tres==null)
+            return;
+        listener.startMap(this);
+        for(TreSubFile tre : tres)
+        {
+            if(QueryOptions.mustStop(options))
+                return;
+            BitSet matching=getLabelIndex(tre).find(query, objectKindFilter);
+            if(matching.isEmpty())
+                continue;
+            String filename=tre.getFilename();
+            RgnSubFile rgnFile=ensureInit(rgn.get(filename));
+            RgnContext rgnContext=new RgnContext();
+            for(SubDivision subDivision : tre.getSubDivisionsToRead(minLong, maxLong, minLat, maxLat, resolution))
+            {
+                if(QueryOptions.mustStop(options))
+                    return;
+                if(matching.get(subDivision.getIndex()))
+                    subDivision.readData(objectKindFilter, objectTypeFilter, rgnFile, lbl.get(filename), net.get(filename), listener, rgnContext);
+            }
+        }
+    }
+
+    /**
+     * @return The index of the names of the TRE file. Built the first time, which means decoding
+     *         the whole file.
+     */
+    LabelIndex getLabelIndex(final TreSubFile tre) throws IOException
+    {
+        FutureTask<LabelIndex> result=labelIndexes.get(tre);
+        if(result==null)
+        {
+            FutureTask<LabelIndex> build=new FutureTask<LabelIndex>(new Callable<LabelIndex>()
+            {
+                public LabelIndex call() throws IOException
+                {
+                    String filename=tre.getFilename();
+                    return LabelIndex.build(tre, getRgnFile(filename), getLblFile(filename), getNetFile(filename));
+                }
+            });
+            result=labelIndexes.putIfAbsent(tre, build);
+            if(result==null)
+            {
+                //built by this thread, the searches on the other TRE files don't wait
+                result=build;
+                build.run();
+            }
+        }
+        try
+        {
+            return result.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index of "+tre.getFilename());
+        }
+        catch(ExecutionException e)
+        {
+            //the next search will try again
+            labelIndexes.remove(tre, result);
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Cannot build the index of "+tre.getFilename(), e.getCause());
+        }
     }
 
-    private synchronized ImgFileInputStream getInput() throws IOException
+    /**
+     * @return The index or null if it is still being built or if its build failed.
+     */
+    private static LabelIndex getIfBuilt(FutureTask<LabelIndex> labelIndex)
     {
-        if(inputPrivate==null)
+        if(!labelIndex.isDone())
+            return null;
+        try
         {
-            if(parent!=null)
-                ImgFilesBag.registerOpenFile(this);
-            inputPrivate=new ImgFileInputStream(file);
+            return labelIndex.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            return null;
         }
-        inputLocked=true;
-        return inputPrivate;
     }
 
-    private synchronized void releaseInput()
+    public File getFile()
     {
-        inputLocked=false;
+        return file;
     }
 
-    public synchronized boolean close() throws IOException
+    /**
+     * @return A handle on the file, must be released after usage.
+     */
+    FileHandlePool.Handle acquireInput() throws IOException
     {
-        if(!inputLocked)
+        return getFileHandlePool().acquire(file);
+    }
+
+    private FileHandlePool getFileHandlePool()
+    {
+        return parent!=null?parent.getFileHandlePool():FileHandlePool.getDefault();
+    }
+
+    /**
+     * @return The cache of the decoded labels of the LBL files.
+     */
+    LabelCache getLabelCache()
+    {
+        return labelCache;
+    }
+
+    /**
+     * @return The cache of the decoded sub-divisions or null if not used.
+     */
+    SubDivisionCache getSubDivisionCache()
+    {
+        return parent!=null?parent.getSubDivisionCache():null;
+    }
+
+    /**
+     * @return The executor to use to decode the sub-divisions in parallel or null.
+     */
+    ExecutorService getDecodingExecutor()
+    {
+        return parent!=null?parent.getParallelExecutor():null;
+    }
+
+    /**
+     * Close the file if it's not in use.
+     * @return False if the file is still in use.
+     */
+    public boolean close() throws IOException
+    {
+        return getFileHandlePool().close(file);
+    }
+
+    /**
+     * The TRE files, in the order of the map, with an R-tree on their boundaries.
+     */
+    private static final class TreIndex
+    {
+        private final TreSubFile[] files;
+
+        private final PackedRTree tree;
+
+        public TreIndex(Collection<TreSubFile> tres)
         {
-            inputPrivate.close();
-            inputPrivate=null;
-            return true;
+            files=tres.toArray(new TreSubFile[tres.size()]);
+            int[] west=new int[files.length];
+            int[] east=new int[files.length];
+            int[] south=new int[files.length];
+            int[] north=new int[files.length];
+            for(int cpt=0; cpt<files.length; ++cpt)
+            {
+                west[cpt]=files[cpt].getWestBoundary();
+                east[cpt]=files[cpt].getEastBoundary();
+                south[cpt]=files[cpt].getSouthBoundary();
+                north[cpt]=files[cpt].getNorthBoundary();
+            }
+            tree=new PackedRTree(west, east, south, north);
+        }
+
+        /**
+         * @return The indexes of the TRE files matching the given coordinates.
+         */
+        public BitSet find(int minLong, int maxLong, int minLat, int maxLat)
+        {
+            BitSet result=new BitSet(files.length);
+            tree.query(minLong, maxLong, minLat, maxLat, result);
+            return result;
         }
-        return false;
+    }
+
+    /**
+     * How the content of the blocs is accessed.
+     */
+    public enum StorageMode
+    {
+        /**
+         * The file is mapped in memory, the blocs are read directly from the mapping.
+         */
+        MEMORY_MAPPED,
+        /**
+         * The blocs are read with a RandomAccessFile and copied in memory.
+         */
+        RANDOM_ACCESS
     }
 
     public enum Family
@@ -519,7 +1159,7 @@ public class ImgFileBag
         initBoundaries();
         if(!tre.isEmpty()) {
             int result=0;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result = Math.max(result, cur.getNorthBoundary());
             }
             return result;
@@ -532,7 +1172,7 @@ public class ImgFileBag
         initBoundaries();
         if(!tre.isEmpty()) {
             int result=0xFFFFFF;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result = Math.min(result, cur.getSouthBoundary());
             }
             return result;
@@ -545,7 +1185,7 @@ public class ImgFileBag
         initBoundaries();
         if(!tre.isEmpty()) {
             int result=0;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result = Math.max(result, cur.getEastBoundary());
             }
             return result;
@@ -558,7 +1198,7 @@ public class ImgFileBag
         initBoundaries();
         if(!tre.isEmpty()) {
             int result=0xFFFFFF;
-            for (TreSubFile cur : tre.values()) {
+            for (TreSubFile cur : getTreFiles()) {
                 result = Math.min(result, cur.getWestBoundary());
             }
             return result;
@@ -568,8 +1208,6 @@ public class ImgFileBag
 
     public int getXorByte() throws IOException
     {
-        int result=getInput().getXor();
-        releaseInput();
-        return result;
+        return getStorage().getXor();
     }
 }
@@ -22,6 +22,7 @@ package org.free.garminimg;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
  * Handle the "decryption" of a .img file.
@@ -70,7 +71,7 @@ class ImgFileInputStream
 
     public void readBloc(byte[] content) throws IOException
     {
-        file.read(content);
+        readRawBloc(content);
         if(xor==0) return;
         for(int cpt=0; cpt<content.length; cpt++)
         {
@@ -78,11 +79,54 @@ class ImgFileInputStream
         }
     }
 
+    /**
+     * Read the content without applying the XOR byte.
+     */
+    public void readRawBloc(byte[] content) throws IOException
+    {
+        file.read(content);
+    }
+
+    /**
+     * Read as many bytes as possible from the given position and apply the XOR byte.
+     *
+     * @return The number of bytes read, less than the size of the buffer only if
+     *         the end of the file is reached.
+     */
+    public int read(long pos, byte[] content) throws IOException
+    {
+        file.seek(pos);
+        int result=0;
+        while(result<content.length)
+        {
+            int nb=file.read(content, result, content.length-result);
+            if(nb<0)
+                break;
+            result+=nb;
+        }
+        if(xor!=0)
+        {
+            for(int cpt=0; cpt<result; cpt++)
+            {
+                content[cpt]=(byte)(content[cpt]^xor);
+            }
+        }
+        return result;
+    }
+
     public void close() throws IOException
     {
         file.close();
     }
 
+    /**
+     * @return The channel of the file, to be used only with positional reads.
+     */
+    public FileChannel getChannel()
+    {
+        return file.getChannel();
+    }
+
     public int getXor()
     {
         return xor;
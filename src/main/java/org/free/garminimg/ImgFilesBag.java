@@ -24,55 +24,224 @@ import org.free.garminimg.utils.ImgConstants;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The main entry point of the library. Manages the list of .img mapFiles.
- * <p>Instances of this class are supposed to be fully thread safe.
+ * <p>Instances of this class are fully thread safe: any number of threads can read the
+ * maps at the same time. Once parsed, the structure of the maps is not modified anymore
+ * and the parsing of each part is done only once, so the reads don't wait on each other.
  */
 public class ImgFilesBag
 {
-    private static final int MAX_OPEN_FILES=10;
+    private SortedSet<ImgFileBag> mapFiles=Collections.synchronizedSortedSet(new TreeSet<ImgFileBag>(new FileComparator()));
+
+    private SortedSet<ImgFileBag> baseMapFiles=Collections.synchronizedSortedSet(new TreeSet<ImgFileBag>(new FileComparator()));
+
+    private static final Pattern normalMapFilename=Pattern.compile("^\\d+\\.img$", Pattern.CASE_INSENSITIVE);
+
+    private List<ProductFile> products=new CopyOnWriteArrayList<ProductFile>();
+
+    private ImgFileBag.StorageMode storageMode=ImgFileBag.StorageMode.MEMORY_MAPPED;
+
+    private final BlocCache blocCache=new BlocCache();
+
+    private final LabelCache labelCache=new LabelCache();
+
+    private final LabelResolver labelResolver=new LabelResolver();
+
+    private volatile FileHandlePool fileHandlePool=FileHandlePool.getDefault();
+
+    private volatile SubDivisionCache subDivisionCache=null;
+
+    private volatile ExecutorService decodingExecutor=null;
+
+    private volatile ExecutionMode executionMode=ExecutionMode.PARALLEL_ORDERED;
 
     /**
-     * We cannot have too many files open at the same time (OS limitation) this list keeps the list of files open.
-     * <p>Every usages must be synchronised manually.
+     * Maximum number of TRE files decoded in advance, in parallel mode.
      */
-    private static List<ImgFileBag> openFiles=new ArrayList<ImgFileBag>();
+    private static final int MAX_PENDING_READS=32;
 
-    private SortedSet<ImgFileBag> mapFiles=Collections.synchronizedSortedSet(new TreeSet<ImgFileBag>(new FileComparator()));
+    private volatile MapIndex index=null;
 
-    private SortedSet<ImgFileBag> baseMapFiles=Collections.synchronizedSortedSet(new TreeSet<ImgFileBag>(new FileComparator()));
+    private volatile int nbLoadingThreads=Runtime.getRuntime().availableProcessors();
 
-    private static final Pattern normalMapFilename=Pattern.compile("^\\d+\\.img$", Pattern.CASE_INSENSITIVE);
+    /**
+     * R-trees on the files of mapFiles and baseMapFiles. Built when needed and reset when
+     * the files change.
+     */
+    private volatile SpatialIndex mapFilesIndex=null;
+
+    private volatile SpatialIndex baseMapFilesIndex=null;
+
+    private final AtomicInteger nbFilesRead=new AtomicInteger();
+
+    /**
+     * Built when first needed and reset when the files change.
+     */
+    private final AtomicReference<FutureTask<NameCompleter>> nameCompleter=new AtomicReference<FutureTask<NameCompleter>>();
 
-    private List<ProductFile> products=new ArrayList();
+    /**
+     * Incremented each time the files change, a name completer whose build overlapped a change
+     * is thrown away.
+     */
+    private final AtomicInteger filesGeneration=new AtomicInteger();
 
     /**
      * Add a single .img file to the repository.
      */
     public void addFile(File file) throws IOException
     {
-        if(file.getName().toLowerCase().endsWith(".tdb"))
+        addFiles(Collections.singletonList(file));
+    }
+
+    /**
+     * Add several .img or .tdb files to the repository. The .tdb files are read first. Then
+     * the .img files are analysed in parallel (see {@link #setNbLoadingThreads(int)}) and
+     * added to the sorted sets in one step.
+     */
+    public void addFiles(Collection<File> files) throws IOException
+    {
+        List<Callable<ProductFile>> productTasks=new ArrayList<Callable<ProductFile>>();
+        List<Callable<ImgFileBag>> imgTasks=new ArrayList<Callable<ImgFileBag>>();
+        final Set<ImgFileBag> baseMaps=new HashSet<ImgFileBag>();
+        for(final File file : files)
         {
-            ProductFile product=new ProductFile(file);
-            products.add(product);
+            if(file.getName().toLowerCase().endsWith(".tdb"))
+            {
+                productTasks.add(new Callable<ProductFile>()
+                {
+                    public ProductFile call() throws IOException
+                    {
+                        return new ProductFile(file);
+                    }
+                });
+            }
+            else
+            {
+                final ImgFileBag toAdd=new ImgFileBag(file, this);
+                Matcher matcher=normalMapFilename.matcher(file.getName());
+                if(!matcher.matches())
+                {
+                    toAdd.setFamily(ImgFileBag.Family.BASE_MAP);
+                    baseMaps.add(toAdd);
+                }
+                imgTasks.add(new Callable<ImgFileBag>()
+                {
+                    public ImgFileBag call()
+                    {
+                        //done here to avoid doing any I/O while sorting
+                        toAdd.getSortingSurface();
+                        return toAdd;
+                    }
+                });
+            }
         }
-        else
+
+        //needed to analyse the .img files
+        products.addAll(runAll(productTasks));
+
+        SortedSet<ImgFileBag> newMapFiles=new TreeSet<ImgFileBag>(new FileComparator());
+        SortedSet<ImgFileBag> newBaseMapFiles=new TreeSet<ImgFileBag>(new FileComparator());
+        for(ImgFileBag cur : runAll(imgTasks))
         {
-            ImgFileBag toAdd=new ImgFileBag(file, this);
-            Matcher matcher=normalMapFilename.matcher(file.getName());
-            if(matcher.matches())
-                mapFiles.add(toAdd);
+            if(baseMaps.contains(cur))
+                newBaseMapFiles.add(cur);
+            else
+                newMapFiles.add(cur);
+        }
+        synchronized(mapFiles)
+        {
+            mapFiles.addAll(newMapFiles);
+            mapFilesIndex=null;
+        }
+        synchronized(baseMapFiles)
+        {
+            baseMapFiles.addAll(newBaseMapFiles);
+            baseMapFilesIndex=null;
+        }
+        filesGeneration.incrementAndGet();
+        nameCompleter.set(null);
+    }
+
+    /**
+     * Run the given tasks with at most {@link #getNbLoadingThreads()} threads.
+     * @return The results, in the same order as the tasks.
+     */
+    private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException
+    {
+        List<T> result=new ArrayList<T>(tasks.size());
+        int nbThreads=Math.min(nbLoadingThreads, tasks.size());
+        try
+        {
+            if(nbThreads<=1)
+            {
+                for(Callable<T> task : tasks)
+                {
+                    result.add(task.call());
+                }
+            }
             else
             {
-                toAdd.setFamily(ImgFileBag.Family.BASE_MAP);
-                baseMapFiles.add(toAdd);
+                ExecutorService executor=Executors.newFixedThreadPool(nbThreads);
+                try
+                {
+                    for(Future<T> future : executor.invokeAll(tasks))
+                    {
+                        result.add(future.get());
+                    }
+                }
+                catch(ExecutionException e)
+                {
+                    if(e.getCause() instanceof Exception)
+                        throw (Exception)e.getCause();
+                    else
+                        throw (Error)e.getCause();
+                }
+                finally
+                {
+                    executor.shutdownNow();
+                }
             }
         }
+        catch(IOException e)
+        {
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            throw e;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the maps");
+        }
+        catch(Exception e)
+        {
+            IOException ioException=new IOException("Cannot load the maps: "+e);
+            ioException.initCause(e);
+            throw ioException;
+        }
+        return result;
     }
 
     /**
@@ -87,6 +256,7 @@ public class ImgFilesBag
         }
 
         //first the TDB files
+        List<File> files=new ArrayList<File>();
         String[] list=directory.list(new FilenameFilter()
         {
             public boolean accept(File dir, String name)
@@ -96,7 +266,7 @@ public class ImgFilesBag
         });
         for(int cpt=0; cpt<list.length; ++cpt)
         {
-            addFile(new File(directory, list[cpt]));
+            files.add(new File(directory, list[cpt]));
         }
 
         //then the IMG files
@@ -109,8 +279,176 @@ public class ImgFilesBag
         });
         for(int cpt=0; cpt<list.length; ++cpt)
         {
-            addFile(new File(directory, list[cpt]));
+            files.add(new File(directory, list[cpt]));
+        }
+        addFiles(files);
+    }
+
+    public int getNbLoadingThreads()
+    {
+        return nbLoadingThreads;
+    }
+
+    /**
+     * How many files can be analysed at the same time by {@link #addFiles(Collection)}.
+     * Defaults to the number of processors.
+     */
+    public void setNbLoadingThreads(int nbLoadingThreads)
+    {
+        this.nbLoadingThreads=nbLoadingThreads;
+    }
+
+    public ImgFileBag.StorageMode getStorageMode()
+    {
+        return storageMode;
+    }
+
+    /**
+     * Choose how the .img files are accessed. Memory mapping is the default, use
+     * {@link ImgFileBag.StorageMode#RANDOM_ACCESS} if the address space is too small for
+     * the maps. Applies only to the files not read yet.
+     */
+    public void setStorageMode(ImgFileBag.StorageMode storageMode)
+    {
+        this.storageMode=storageMode;
+    }
+
+    /**
+     * @return The cache of blocs shared by all the files. Can be used to change its size or
+     *         to get statistics.
+     */
+    public BlocCache getBlocCache()
+    {
+        return blocCache;
+    }
+
+    /**
+     * @return The resolver of the label handles given by the methods reading the maps with
+     *         a {@link RawMapListener}.
+     */
+    public LabelResolver getLabelResolver()
+    {
+        return labelResolver;
+    }
+
+    /**
+     * @return The cache of the decoded labels shared by all the files. Can be used to change
+     *         its size or to get statistics.
+     */
+    public LabelCache getLabelCache()
+    {
+        return labelCache;
+    }
+
+    /**
+     * @return The cache of the decoded sub-divisions, null if not used (the default).
+     */
+    public SubDivisionCache getSubDivisionCache()
+    {
+        return subDivisionCache;
+    }
+
+    /**
+     * Keep the decoded content of the sub-divisions in the given cache, to avoid reading and decoding
+     * them again when the same area is read again. Null to disable it.
+     */
+    public void setSubDivisionCache(SubDivisionCache subDivisionCache)
+    {
+        this.subDivisionCache=subDivisionCache;
+    }
+
+    public ExecutorService getDecodingExecutor()
+    {
+        return decodingExecutor;
+    }
+
+    /**
+     * Decode the maps in parallel with the given executor, see {@link #setExecutionMode}.
+     * The maps and sub-divisions are decoded in their own buffers, which are sent to the listener
+     * on the thread of the caller. So the listener doesn't have to be thread safe.
+     * <p>The executor must not be used to call readMap, to avoid dead-locks. Null (the default)
+     * to decode everything on the thread of the caller.
+     */
+    public void setDecodingExecutor(ExecutorService decodingExecutor)
+    {
+        this.decodingExecutor=decodingExecutor;
+    }
+
+    public ExecutionMode getExecutionMode()
+    {
+        return executionMode;
+    }
+
+    /**
+     * Choose how the maps are read when a decoding executor is set. The default is
+     * {@link ExecutionMode#PARALLEL_ORDERED}.
+     */
+    public void setExecutionMode(ExecutionMode executionMode)
+    {
+        this.executionMode=executionMode;
+    }
+
+    /**
+     * @return The executor to use if the maps must be read in parallel, null otherwise.
+     */
+    ExecutorService getParallelExecutor()
+    {
+        return executionMode!=ExecutionMode.SEQUENTIAL?decodingExecutor:null;
+    }
+
+    public FileHandlePool getFileHandlePool()
+    {
+        return fileHandlePool;
+    }
+
+    /**
+     * Use another pool for the file handles than the one shared by the whole VM.
+     */
+    public void setFileHandlePool(FileHandlePool fileHandlePool)
+    {
+        this.fileHandlePool=fileHandlePool;
+    }
+
+    public MapIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Use an index to avoid parsing the files again at each start. Must be called
+     * before adding the files.
+     * @param index null to stop using it.
+     * @see #saveIndex()
+     */
+    public void setIndex(MapIndex index)
+    {
+        this.index=index;
+    }
+
+    /**
+     * Update the index with what has been parsed from the files and save it.
+     * Does nothing if there is no index.
+     */
+    public void saveIndex() throws IOException
+    {
+        MapIndex index=this.index;
+        if(index==null)
+            return;
+        synchronized(baseMapFiles)
+        {
+            for(ImgFileBag file : baseMapFiles)
+            {
+                file.writeIndex(index);
+            }
         }
+        synchronized(mapFiles)
+        {
+            for(ImgFileBag file : mapFiles)
+            {
+                file.writeIndex(index);
+            }
+        }
+        index.save();
     }
 
     /**
@@ -118,14 +456,94 @@ public class ImgFilesBag
      */
     public synchronized void clear() throws IOException
     {
-        baseMapFiles.clear();
-        mapFiles.clear();
+        for(ImgFileBag file : baseMapFiles)
+        {
+            file.close();
+            labelResolver.unregister(file);
+        }
+        for(ImgFileBag file : mapFiles)
+        {
+            file.close();
+            labelResolver.unregister(file);
+        }
+        synchronized(baseMapFiles)
+        {
+            baseMapFiles.clear();
+            baseMapFilesIndex=null;
+        }
+        synchronized(mapFiles)
+        {
+            mapFiles.clear();
+            mapFilesIndex=null;
+        }
+        blocCache.clear();
+        labelCache.clear();
+        filesGeneration.incrementAndGet();
+        nameCompleter.set(null);
+        SubDivisionCache curSubDivisionCache=subDivisionCache;
+        if(curSubDivisionCache!=null)
+            curSubDivisionCache.clear();
+    }
 
-        for(ImgFileBag openFile : openFiles)
+    /**
+     * @return The completion of the names of all the maps. Built the first time from the
+     *         indexes of the names used by the searches (see {@link #readMapByName}).
+     */
+    public NameCompleter getNameCompleter() throws IOException
+    {
+        while(true)
         {
-            openFile.close();
+            FutureTask<NameCompleter> result=nameCompleter.get();
+            if(result==null)
+            {
+                FutureTask<NameCompleter> build=new FutureTask<NameCompleter>(new Callable<NameCompleter>()
+                {
+                    public NameCompleter call() throws IOException
+                    {
+                        int generation=filesGeneration.get();
+                        NameCompleter completer;
+                        try
+                        {
+                            completer=NameCompleter.build(ImgFilesBag.this, ObjectKind.ALL, null);
+                        }
+                        catch(IOException e)
+                        {
+                            //the files may have been closed by clear()
+                            if(generation!=filesGeneration.get())
+                                return null;
+                            throw e;
+                        }
+                        //null if the files changed while reading them
+                        return generation==filesGeneration.get() ? completer : null;
+                    }
+                });
+                if(!nameCompleter.compareAndSet(null, build))
+                    continue;
+                //not under a lock, clear() or addFiles() don't wait for the build
+                result=build;
+                build.run();
+            }
+            try
+            {
+                NameCompleter completer=result.get();
+                if(completer!=null)
+                    return completer;
+                nameCompleter.compareAndSet(result, null);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the name completer");
+            }
+            catch(ExecutionException e)
+            {
+                //the next call will try again
+                nameCompleter.compareAndSet(result, null);
+                if(e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException("Cannot build the name completer", e.getCause());
+            }
         }
-        openFiles.clear();
     }
 
     /**
@@ -137,40 +555,66 @@ public class ImgFilesBag
      * @see #readMap(int,int,int,int,int,int,BitSet,MapListener)
      */
     public void readMapForDrawing(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, MapListener listener) throws IOException
+    {
+        readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, listener, null);
+    }
+
+    /**
+     * Same as {@link #readMapForDrawing(int,int,int,int,int,int,MapListener)}, but can be stopped
+     * before its end. {@link MapListener#finishPainting()} is called even if the read is stopped.
+     * @param options If not null, tells when to stop the read.
+     * @return {@link QueryStatus#COMPLETE} if everything has been sent to the listener.
+     */
+    public QueryStatus readMapForDrawing(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, MapListener listener, QueryOptions options) throws IOException
+    {
+        return readMapForDrawingRaw(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, LabelCreatingListener.wrap(listener, labelResolver), options);
+    }
+
+    /**
+     * Same as {@link #readMapForDrawing(int,int,int,int,int,int,MapListener,QueryOptions)}, but the
+     * labels are given as handles. No label is created.
+     */
+    public QueryStatus readMapForDrawingRaw(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, RawMapListener listener, QueryOptions options) throws IOException
     {
         if((objectKindFilter&ObjectKind.BASE_MAP)!=0)
-            readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution, listener, baseMapFiles, objectKindFilter);
-        if((objectKindFilter&ObjectKind.NORMAL_MAP)!=0 && !wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
+            readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution, listener, baseMapFiles, objectKindFilter, options);
+        if((objectKindFilter&ObjectKind.NORMAL_MAP)!=0 && !QueryOptions.mustStop(options) &&
+           !wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
         {
-            readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution, listener, mapFiles, objectKindFilter);
+            readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution, listener, mapFiles, objectKindFilter, options);
         }
         listener.finishPainting();
+        return getStatus(options);
     }
 
-    private void readMapForDrawing(int minLong, int maxLong, int minLat, int maxLat, int resolution, MapListener listener, SortedSet<ImgFileBag> files, int objectKindFilter) throws IOException
+    private void readMapForDrawing(int minLong, int maxLong, int minLat, int maxLat, int resolution, RawMapListener listener, SortedSet<ImgFileBag> files, int objectKindFilter, QueryOptions options) throws IOException
     {
         //it's very important to read polygons first, to avoid hiding other objects.
         if((objectKindFilter&ObjectKind.POLYGON)!=0)
         {
+            //the polygons are decoded only once and then sent layer by layer
+            FeatureBuffer polygons=new FeatureBuffer(labelResolver);
+            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, null, polygons, files, options);
+
             //first, the map background
-            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, getMapBackgroundFilter(), listener, files);
+            polygons.replayRaw(listener, MAP_BACKGROUND_FILTER);
 
             //then, the city limits
-            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, getMapCityFilter(), listener, files);
+            polygons.replayRaw(listener, MAP_CITY_FILTER);
 
             //then, the definition of small zones
-            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, getMapZonesFilter(), listener, files);
+            polygons.replayRaw(listener, MAP_ZONES_FILTER);
 
             //then, the forests
-            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, getMapForestFilter(), listener, files);
+            polygons.replayRaw(listener, MAP_FOREST_FILTER);
 
             //finally, the rest
-            readMap(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYGON, getMapOthersFilter(), listener, files);
+            polygons.replayRaw(listener, MAP_OTHERS_FILTER);
         }
 
         //lines and points can be read in any order.
         if(objectKindFilter!=ObjectKind.POLYGON)
-            readMap(minLong, maxLong, minLat, maxLat, resolution, (ObjectKind.ALL^ObjectKind.POLYGON)&objectKindFilter, null, listener, files);
+            readMap(minLong, maxLong, minLat, maxLat, resolution, (ObjectKind.ALL^ObjectKind.POLYGON)&objectKindFilter, null, listener, files, options);
     }
 
     /**
@@ -184,26 +628,333 @@ public class ImgFilesBag
      */
     public void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, MapListener listener) throws IOException
     {
-        readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, baseMapFiles);
+        readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, (QueryOptions)null);
+    }
+
+    /**
+     * Same as {@link #readMap(int,int,int,int,int,int,BitSet,MapListener)}, but can be stopped
+     * before its end. The check is done before each sub-division, so the objects of a sub-division
+     * are always sent completely.
+     * @param options If not null, tells when to stop the read.
+     * @return {@link QueryStatus#COMPLETE} if everything has been sent to the listener.
+     */
+    public QueryStatus readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, MapListener listener, QueryOptions options) throws IOException
+    {
+        return readMapRaw(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, LabelCreatingListener.wrap(listener, labelResolver), options);
+    }
+
+    /**
+     * Same as {@link #readMap(int,int,int,int,int,int,BitSet,MapListener)}, but the labels are
+     * given as handles. No label is created.
+     * @see RawMapListener
+     */
+    public void readMapRaw(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RawMapListener listener) throws IOException
+    {
+        readMapRaw(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, null);
+    }
+
+    /**
+     * Same as {@link #readMap(int,int,int,int,int,int,BitSet,MapListener,QueryOptions)}, but the
+     * labels are given as handles. No label is created.
+     */
+    public QueryStatus readMapRaw(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RawMapListener listener, QueryOptions options) throws IOException
+    {
+        readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, baseMapFiles, options);
+        if(!QueryOptions.mustStop(options) && !wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
+        {
+            readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, mapFiles, options);
+        }
+        return getStatus(options);
+    }
+
+    /**
+     * Same as {@link #readMap(int,int,int,int,int,int,BitSet,MapListener)}, but only the sub-divisions
+     * using a name matching the query are read. All the objects of these sub-divisions are sent,
+     * the listener must still check their names (see
+     * {@link org.free.garminimg.utils.FindObjectByNameListener}).
+     * <p>The first search of a file builds the index of its names (see {@link LabelIndex}), which
+     * takes about the time of a full read.
+     */
+    public void readMapByName(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, LabelQuery query, MapListener listener) throws IOException
+    {
+        readMapByName(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, query, listener, null);
+    }
+
+    /**
+     * Same as {@link #readMapByName(int,int,int,int,int,int,BitSet,LabelQuery,MapListener)}, but can be
+     * stopped before its end.
+     * @param options If not null, tells when to stop the read.
+     * @return {@link QueryStatus#COMPLETE} if everything has been sent to the listener.
+     */
+    public QueryStatus readMapByName(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, LabelQuery query, MapListener listener, QueryOptions options) throws IOException
+    {
+        RawMapListener rawListener=LabelCreatingListener.wrap(listener, labelResolver);
+        readMapByName(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, query, rawListener, baseMapFiles, options);
+        if(!QueryOptions.mustStop(options) && !wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
+        {
+            readMapByName(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, query, rawListener, mapFiles, options);
+        }
+        return getStatus(options);
+    }
+
+    private void readMapByName(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, LabelQuery query, RawMapListener listener, SortedSet<ImgFileBag> files, QueryOptions options) throws IOException
+    {
+        for(ImgFileBag file : getSpatialIndex(files).find(minLong, maxLong, minLat, maxLat))
+        {
+            if(QueryOptions.mustStop(options))
+                return;
+            file.readMapByName(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, query, listener, options);
+        }
+    }
+
+    /**
+     * Same as {@link #readMap(int,int,int,int,int,int,BitSet,MapListener)}, but the objects are
+     * pulled one at a time from the returned cursor, and decoded only when it reaches them.
+     * @see FeatureCursor
+     */
+    public FeatureCursor createCursor(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter) throws IOException
+    {
+        return new FeatureCursor(this, minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter);
+    }
+
+    /**
+     * Stream of the objects given by {@link #readMap(int,int,int,int,int,int,BitSet,MapListener)},
+     * in the same order. Can be made parallel, it is split along the files and the sub-divisions.
+     * The IOExceptions are wrapped in UncheckedIOExceptions.
+     */
+    public Stream<Feature> stream(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter) throws IOException
+    {
+        List<ImgFileBag> files=new ArrayList<ImgFileBag>(findFiles(true, minLong, maxLong, minLat, maxLat));
         if(!wantOnlyBaseMaps(minLong, maxLong, minLat, maxLat, resolution))
+            files.addAll(findFiles(false, minLong, maxLong, minLat, maxLat));
+        return StreamSupport.stream(new FeatureSpliterator(files, minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter), false);
+    }
+
+    /**
+     * @return The files of the base maps or of the normal maps containing the given coordinates, in reading order.
+     */
+    List<ImgFileBag> findFiles(boolean baseMaps, int minLong, int maxLong, int minLat, int maxLat) throws IOException
+    {
+        return getSpatialIndex(baseMaps ? baseMapFiles : mapFiles).find(minLong, maxLong, minLat, maxLat);
+    }
+
+    private static QueryStatus getStatus(QueryOptions options)
+    {
+        return options!=null ? options.getStatus() : QueryStatus.COMPLETE;
+    }
+
+    private void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RawMapListener listener, SortedSet<ImgFileBag> files, QueryOptions options) throws IOException
+    {
+        List<ImgFileBag> matching=getSpatialIndex(files).find(minLong, maxLong, minLat, maxLat);
+        ExecutorService executor=getParallelExecutor();
+        if(executor==null)
+        {
+            for(ImgFileBag file : matching)
+            {
+                if(QueryOptions.mustStop(options))
+                    return;
+                file.readMapRaw(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, options);
+            }
+            return;
+        }
+
+        //one read per TRE file
+        List<Callable<FeatureBuffer>> reads=new ArrayList<Callable<FeatureBuffer>>();
+        for(ImgFileBag file : matching)
+        {
+            List<TreSubFile> tres=file.getTreFilesToRead(minLong, maxLong, minLat, maxLat);
+            if(tres==null)
+                continue;
+            if(tres.size()==1 && matching.size()==1)
+            {
+                //only one TRE file, its sub-divisions are decoded in parallel instead
+                listener.startMap(file);
+                file.readMap(tres.get(0), minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, executor, options);
+                return;
+            }
+            for(int cpt=0; cpt<tres.size(); ++cpt)
+            {
+                //in unordered mode, each buffer must start with its map
+                boolean startMap=cpt==0 || executionMode==ExecutionMode.PARALLEL_UNORDERED;
+                reads.add(createRead(file, tres.get(cpt), startMap, minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, options));
+            }
+        }
+        if(executionMode==ExecutionMode.PARALLEL_UNORDERED)
+            runUnordered(reads, listener, executor, options);
+        else
+            runOrdered(reads, listener, executor, options);
+    }
+
+    /**
+     * @param tre The TRE file to decode, never null.
+     * @return A task decoding a TRE file in a buffer. Its sub-divisions are decoded sequentially.
+     */
+    private static Callable<FeatureBuffer> createRead(final ImgFileBag file, final TreSubFile tre, final boolean startMap,
+                                                      final int minLong, final int maxLong, final int minLat, final int maxLat,
+                                                      final int resolution, final int objectKindFilter, final BitSet objectTypeFilter,
+                                                      final QueryOptions options)
+    {
+        return new Callable<FeatureBuffer>()
+        {
+            public FeatureBuffer call() throws IOException
+            {
+                FeatureBuffer result=new FeatureBuffer(file.getLabelResolver());
+                if(startMap)
+                    result.startMap(file);
+                if(!QueryOptions.mustStop(options))
+                    file.readMap(tre, minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, result, null, options);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Run the reads with the executor and send their results to the listener in the order of the list.
+     */
+    private static void runOrdered(List<Callable<FeatureBuffer>> reads, RawMapListener listener, ExecutorService executor, QueryOptions options) throws IOException
+    {
+        final int nb=reads.size();
+        List<Future<FeatureBuffer>> pending=new ArrayList<Future<FeatureBuffer>>(nb);
+        int nbSubmitted=0;
+        try
+        {
+            for(int cpt=0; cpt<nb; ++cpt)
+            {
+                while(nbSubmitted<nb && nbSubmitted<cpt+MAX_PENDING_READS)
+                {
+                    pending.add(executor.submit(reads.get(nbSubmitted++)));
+                }
+                FeatureBuffer buffer=pending.get(cpt).get();
+                if(QueryOptions.mustStop(options))
+                    return;
+                buffer.replayRaw(listener);
+                pending.set(cpt, null);
+            }
+        }
+        catch(ExecutionException e)
+        {
+            throw rethrow(e);
+        }
+        catch(InterruptedException e)
         {
-            readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener, mapFiles);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the maps");
+        }
+        finally
+        {
+            for(Future<FeatureBuffer> cur : pending)
+            {
+                if(cur!=null)
+                    cur.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Run the reads with the executor and send their results to the listener as soon as they are available.
+     */
+    private static void runUnordered(List<Callable<FeatureBuffer>> reads, RawMapListener listener, ExecutorService executor, QueryOptions options) throws IOException
+    {
+        final int nb=reads.size();
+        CompletionService<FeatureBuffer> completion=new ExecutorCompletionService<FeatureBuffer>(executor);
+        List<Future<FeatureBuffer>> submitted=new ArrayList<Future<FeatureBuffer>>(nb);
+        try
+        {
+            for(int cpt=0; cpt<nb; ++cpt)
+            {
+                while(submitted.size()<nb && submitted.size()<cpt+MAX_PENDING_READS)
+                {
+                    submitted.add(completion.submit(reads.get(submitted.size())));
+                }
+                FeatureBuffer buffer=completion.take().get();
+                if(QueryOptions.mustStop(options))
+                    return;
+                buffer.replayRaw(listener);
+            }
+        }
+        catch(ExecutionException e)
+        {
+            throw rethrow(e);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the maps");
+        }
+        finally
+        {
+            for(Future<FeatureBuffer> cur : submitted)
+            {
+                cur.cancel(false);
+            }
         }
     }
 
-    private void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, MapListener listener, SortedSet<ImgFileBag> files) throws IOException
+    /**
+     * @return The cause of the exception if it's an IOException. Unchecked exceptions are thrown directly.
+     */
+    static IOException rethrow(ExecutionException e)
+    {
+        Throwable cause=e.getCause();
+        if(cause instanceof IOException)
+            return (IOException)cause;
+        else if(cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+        else if(cause instanceof Error)
+            throw (Error)cause;
+        IOException result=new IOException("Cannot read the maps: "+cause);
+        result.initCause(cause);
+        return result;
+    }
+
+    private SpatialIndex getSpatialIndex(SortedSet<ImgFileBag> files) throws IOException
     {
-        for(ImgFileBag file : files)
+        SpatialIndex result=files==mapFiles?mapFilesIndex:baseMapFilesIndex;
+        if(result==null)
         {
-            file.readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, listener);
+            synchronized(files)
+            {
+                int nbRead;
+                do
+                {
+                    //if a file is read in the mean time, its boundaries may have changed
+                    nbRead=nbFilesRead.get();
+                    result=new SpatialIndex(files);
+                    if(files==mapFiles)
+                        mapFilesIndex=result;
+                    else
+                        baseMapFilesIndex=result;
+                }
+                while(nbFilesRead.get()!=nbRead);
+            }
         }
+        return result;
     }
 
-    private boolean wantOnlyBaseMaps(int minLong, int maxLong, int minLat, int maxLat, int resolution) throws IOException
+    /**
+     * Called when a file has been read. Its boundaries may be bigger than the ones
+     * known before (from the .tdb file), in which case the R-tree must be re-built.
+     * <p>Doesn't take any lock, since it's called while reading a file and the files
+     * may be read while an R-tree is being built. The counter of files read allows
+     * getSpatialIndex to see the files read while it was building its R-tree.
+     */
+    void fileRead(ImgFileBag file) throws IOException
+    {
+        nbFilesRead.incrementAndGet();
+        SpatialIndex cur=mapFilesIndex;
+        if(cur!=null && !cur.covers(file))
+            mapFilesIndex=null;
+        cur=baseMapFilesIndex;
+        if(cur!=null && !cur.covers(file))
+            baseMapFilesIndex=null;
+    }
+
+    boolean wantOnlyBaseMaps(int minLong, int maxLong, int minLat, int maxLat, int resolution) throws IOException
     {
         if(baseMapFiles.isEmpty()) return false;
         int nbBits=0;
-        for(ImgFileBag file : mapFiles)
+        //the files not matching would return 0
+        for(ImgFileBag file : getSpatialIndex(mapFiles).find(minLong, maxLong, minLat, maxLat))
         {
             nbBits=Math.max(nbBits, file.guessLowestNbBits(minLong, maxLong, minLat, maxLat));
         }
@@ -284,116 +1035,85 @@ public class ImgFilesBag
         return result;
     }
 
-    static synchronized void registerOpenFile(ImgFileBag bag) throws IOException
-    {
-        int cpt=0;
-        while(openFiles.size()>=MAX_OPEN_FILES && cpt<openFiles.size())
-        {
-            ImgFileBag toClose=openFiles.remove(0);
-            if(!toClose.close())
-            {   //failed (was in use), retry with another one
-                openFiles.add(toClose);
-            }
-            ++cpt;
-        }
-        openFiles.add(bag);
-    }
+    //the filters are shared by all the threads, they must not be modified
 
-    private static BitSet mapBackgroundFilter=null;
+    private static final BitSet MAP_BACKGROUND_FILTER=createMapBackgroundFilter();
 
-    private static BitSet getMapBackgroundFilter()
+    private static BitSet createMapBackgroundFilter()
     {
-        if(mapBackgroundFilter==null)
-        {
-            mapBackgroundFilter=new BitSet(0xB+1);
-            mapBackgroundFilter.set(ImgConstants.BACKGROUND);
-            mapBackgroundFilter.set(ImgConstants.DEFINITION_AREA);
-        }
-        return mapBackgroundFilter;
+        BitSet result=new BitSet(0xB+1);
+        result.set(ImgConstants.BACKGROUND);
+        result.set(ImgConstants.DEFINITION_AREA);
+        return result;
     }
 
-    private static BitSet mapForestFilter=null;
+    private static final BitSet MAP_FOREST_FILTER=createMapForestFilter();
 
-    private static BitSet getMapForestFilter()
+    private static BitSet createMapForestFilter()
     {
-        if(mapForestFilter==null)
-        {
-            mapForestFilter=new BitSet(ImgConstants.FOREST+1);
-            mapForestFilter.set(0x0E);
+        BitSet result=new BitSet(ImgConstants.FOREST+1);
+        result.set(0x0E);
 
-            mapForestFilter.set(0x14);
-            mapForestFilter.set(0x15);
-            mapForestFilter.set(0x16);
-            mapForestFilter.set(0x17);
-            mapForestFilter.set(0x18);
+        result.set(0x14);
+        result.set(0x15);
+        result.set(0x16);
+        result.set(0x17);
+        result.set(0x18);
 
-            mapForestFilter.set(0x1E);
-            mapForestFilter.set(0x1F);
-            mapForestFilter.set(0x20);
+        result.set(0x1E);
+        result.set(0x1F);
+        result.set(0x20);
 
-            mapForestFilter.set(0x50);
-            mapForestFilter.set(0x53);
-            mapForestFilter.set(ImgConstants.FOREST);
-        }
-        return mapForestFilter;
+        result.set(0x50);
+        result.set(0x53);
+        result.set(ImgConstants.FOREST);
+        return result;
     }
 
-    private static BitSet mapCityFilter=null;
+    private static final BitSet MAP_CITY_FILTER=createMapCityFilter();
 
-    private static BitSet getMapCityFilter()
+    private static BitSet createMapCityFilter()
     {
-        if(mapCityFilter==null)
-        {
-            mapCityFilter=new BitSet(0x03+1);
-
-            mapCityFilter.set(0x01);
-            mapCityFilter.set(0x02);
-            mapCityFilter.set(0x03);
+        BitSet result=new BitSet(0x03+1);
 
-        }
-        return mapCityFilter;
+        result.set(0x01);
+        result.set(0x02);
+        result.set(0x03);
+        return result;
     }
 
-    private static BitSet mapZonesFilter=null;
+    private static final BitSet MAP_ZONES_FILTER=createMapZonesFilter();
 
-    private static BitSet getMapZonesFilter()
+    private static BitSet createMapZonesFilter()
     {
-        if(mapZonesFilter==null)
-        {
-            mapZonesFilter=new BitSet(ImgConstants.GRAVEL_AREA+1);
+        BitSet result=new BitSet(ImgConstants.GRAVEL_AREA+1);
 
-            mapZonesFilter.set(0x07);
-            mapZonesFilter.set(0x0C);
-            mapZonesFilter.set(0x0D);
-            mapZonesFilter.set(0x0E);
-            mapZonesFilter.set(0x0F);
-            mapZonesFilter.set(0x11);
-            mapZonesFilter.set(0x19);
-            mapZonesFilter.set(0x1A);
-            mapZonesFilter.set(0x4E);
-            mapZonesFilter.set(0x4F);
+        result.set(0x07);
+        result.set(0x0C);
+        result.set(0x0D);
+        result.set(0x0E);
+        result.set(0x0F);
+        result.set(0x11);
+        result.set(0x19);
+        result.set(0x1A);
+        result.set(0x4E);
+        result.set(0x4F);
 
-            mapZonesFilter.set(ImgConstants.STATION_AREA);
-            mapZonesFilter.set(ImgConstants.GRAVEL_AREA);
-
-        }
-        return mapZonesFilter;
+        result.set(ImgConstants.STATION_AREA);
+        result.set(ImgConstants.GRAVEL_AREA);
+        return result;
     }
 
-    private static BitSet mapOthersFilter=null;
+    private static final BitSet MAP_OTHERS_FILTER=createMapOthersFilter();
 
-    private static BitSet getMapOthersFilter()
+    private static BitSet createMapOthersFilter()
     {
-        if(mapOthersFilter==null)
-        {
-            mapOthersFilter=new BitSet(512);
-            mapOthersFilter.or(mapBackgroundFilter);
-            mapOthersFilter.or(mapForestFilter);
-            mapOthersFilter.or(mapCityFilter);
-            mapOthersFilter.flip(0, mapOthersFilter.length()-1);
-
-        }
-        return mapOthersFilter;
+        BitSet result=new BitSet(512);
+        result.or(MAP_BACKGROUND_FILTER);
+        result.or(MAP_FOREST_FILTER);
+        result.or(MAP_CITY_FILTER);
+        result.flip(0, result.length()-1);
+        return result;
     }
 
     public ProductFile.MapDesc getMapDescription(ImgFileBag imgFileBag)
@@ -407,20 +1127,102 @@ public class ImgFilesBag
         return result;
     }
 
-    private static class FileComparator implements Comparator<ImgFileBag>
+    /**
+     * How the maps are read when a decoding executor is set.
+     */
+    public enum ExecutionMode
     {
-        public int compare(ImgFileBag o1, ImgFileBag o2)
+        /**
+         * Everything is decoded on the thread of the caller.
+         */
+        SEQUENTIAL,
+        /**
+         * The TRE files (or the sub-divisions if only one TRE file is read) are decoded in parallel.
+         * The listener receives exactly the same calls as in sequential mode.
+         */
+        PARALLEL_ORDERED,
+        /**
+         * The TRE files are decoded in parallel and each one is sent to the listener as soon as it's
+         * decoded, preceded by a call to {@link MapListener#startMap}. So a map can be started
+         * several times and the drawing order is not respected.
+         */
+        PARALLEL_UNORDERED
+    }
+
+    /**
+     * An R-tree on the files of a set. The files are numbered in the order of the set,
+     * so that the query results stay in the drawing order.
+     */
+    private static final class SpatialIndex
+    {
+        private final ImgFileBag[] files;
+
+        private final int[][] coverages;
+
+        private final Map<ImgFileBag, Integer> ranks=new IdentityHashMap<ImgFileBag, Integer>();
+
+        private final PackedRTree tree;
+
+        /**
+         * @param files Must be locked by the caller.
+         */
+        public SpatialIndex(SortedSet<ImgFileBag> files) throws IOException
         {
-            // biggest surface (less precise) first
-            int result=0;
-            try
+            this.files=files.toArray(new ImgFileBag[files.size()]);
+            coverages=new int[this.files.length][];
+            int[] west=new int[this.files.length];
+            int[] east=new int[this.files.length];
+            int[] south=new int[this.files.length];
+            int[] north=new int[this.files.length];
+            for(int cpt=0; cpt<this.files.length; ++cpt)
             {
-                result=Long.valueOf(o1.getFullSurface()).compareTo(o2.getFullSurface());
+                int[] coverage=this.files[cpt].getCoverage();
+                coverages[cpt]=coverage;
+                west[cpt]=coverage[0];
+                east[cpt]=coverage[1];
+                south[cpt]=coverage[2];
+                north[cpt]=coverage[3];
+                ranks.put(this.files[cpt], cpt);
             }
-            catch(IOException e)
+            tree=new PackedRTree(west, east, south, north);
+        }
+
+        /**
+         * @return The files that may have something in the given box, in the order of the set.
+         */
+        public List<ImgFileBag> find(int minLong, int maxLong, int minLat, int maxLat)
+        {
+            BitSet matching=new BitSet(files.length);
+            tree.query(minLong, maxLong, minLat, maxLat, matching);
+            List<ImgFileBag> result=new ArrayList<ImgFileBag>(matching.cardinality());
+            for(int cpt=matching.nextSetBit(0); cpt>=0; cpt=matching.nextSetBit(cpt+1))
             {
-                //ignored
+                result.add(files[cpt]);
             }
+            return result;
+        }
+
+        /**
+         * @return False if the file is indexed with boundaries smaller than its actual ones.
+         */
+        public boolean covers(ImgFileBag file) throws IOException
+        {
+            Integer rank=ranks.get(file);
+            if(rank==null)
+                return true;
+            int[] indexed=coverages[rank];
+            int[] actual=file.getCoverage();
+            return CoordUtils.includedInCoordinates(actual[0], actual[1], actual[2], actual[3],
+                                                    indexed[0], indexed[1], indexed[2], indexed[3]);
+        }
+    }
+
+    private static class FileComparator implements Comparator<ImgFileBag>
+    {
+        public int compare(ImgFileBag o1, ImgFileBag o2)
+        {
+            // biggest surface (less precise) first
+            int result=Long.valueOf(o1.getSortingSurface()).compareTo(o2.getSortingSurface());
             if(result!=0)
                 return -result;
 
@@ -19,11 +19,12 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 /**
  * One sub-file within a .img file.
@@ -36,13 +37,28 @@ public abstract class ImgSubFile
 
     private int fileSize;
 
-    private long blocSize;
+    private int blocSize;
 
     protected int headerLength;
 
     private int locked;
 
-    private List<Long> blocs=new ArrayList<Long>();
+    private volatile boolean initDone=false;
+
+    /**
+     * The blocs of the sub-file, grouped in extents of consecutive blocs. The extent
+     * number i is made of the blocs [extentFirstBloc[i], extentFirstBloc[i]+extentNbBlocs[i])
+     * of the .img file and starts at the bloc extentStart[i] of the sub-file.
+     */
+    private int nbExtents=0;
+
+    private int[] extentStart=new int[1];
+
+    private int[] extentFirstBloc=new int[1];
+
+    private int[] extentNbBlocs=new int[1];
+
+    private int nbBlocs=0;
 
     protected ImgFileBag fileBag;
 
@@ -71,6 +87,24 @@ public abstract class ImgSubFile
 
     public abstract void init() throws IOException;
 
+    /**
+     * Parse the header of the sub-file, if not already done.
+     */
+    public void ensureInit() throws IOException
+    {
+        if(!initDone)
+        {
+            synchronized(this)
+            {
+                if(!initDone)
+                {
+                    init();
+                    initDone=true;
+                }
+            }
+        }
+    }
+
     protected void superInit(FileContext context) throws IOException
     {
         seek(0, context);
@@ -80,6 +114,41 @@ public abstract class ImgSubFile
         locked=readByte(context);
     }
 
+    /**
+     * To be called instead of {@link #init()} when the header has been restored from an index.
+     */
+    protected void restoreHeader(int headerLength, int locked)
+    {
+        this.headerLength=headerLength;
+        this.locked=locked;
+        initDone=true;
+    }
+
+    /**
+     * Save the location of the sub-file in a {@link MapIndex}.
+     */
+    void writeIndex(DataOutput out) throws IOException
+    {
+        out.writeInt(nbExtents);
+        for(int cpt=0; cpt<nbExtents; ++cpt)
+        {
+            out.writeShort(extentFirstBloc[cpt]);
+            out.writeShort(extentNbBlocs[cpt]);
+        }
+    }
+
+    /**
+     * Restore what has been written by {@link #writeIndex(DataOutput)}.
+     */
+    void readIndex(DataInput in) throws IOException
+    {
+        int nb=in.readInt();
+        for(int cpt=0; cpt<nb; ++cpt)
+        {
+            addExtent(in.readUnsignedShort(), in.readUnsignedShort());
+        }
+    }
+
     /**
      * @return Position of the locked byte relative to the start of the sub-file.
      */
@@ -90,7 +159,66 @@ public abstract class ImgSubFile
 
     public void addBloc(long bloc)
     {
-        blocs.add(bloc);
+        addExtent((int)bloc, 1);
+    }
+
+    /**
+     * Add nbBlocs consecutive blocs, starting with firstBloc, at the end of the sub-file.
+     */
+    public void addExtent(int firstBloc, int nbBlocs)
+    {
+        if(nbExtents>0 && extentFirstBloc[nbExtents-1]+extentNbBlocs[nbExtents-1]==firstBloc)
+        {
+            extentNbBlocs[nbExtents-1]+=nbBlocs;
+        }
+        else
+        {
+            if(nbExtents==extentStart.length)
+            {
+                extentStart=grow(extentStart);
+                extentFirstBloc=grow(extentFirstBloc);
+                extentNbBlocs=grow(extentNbBlocs);
+            }
+            extentStart[nbExtents]=this.nbBlocs;
+            extentFirstBloc[nbExtents]=firstBloc;
+            extentNbBlocs[nbExtents]=nbBlocs;
+            nbExtents++;
+        }
+        this.nbBlocs+=nbBlocs;
+    }
+
+    private static int[] grow(int[] array)
+    {
+        int[] result=new int[array.length*2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * @return The number of runs of consecutive blocs the sub-file is made of.
+     */
+    public int getNbExtents()
+    {
+        return nbExtents;
+    }
+
+    /**
+     * @param bloc A bloc number relative to the start of the sub-file.
+     * @return The index of the extent containing it.
+     */
+    private int findExtent(int bloc)
+    {
+        int low=0;
+        int high=nbExtents-1;
+        while(low<high)
+        {
+            int middle=(low+high+1)>>>1;
+            if(extentStart[middle]<=bloc)
+                low=middle;
+            else
+                high=middle-1;
+        }
+        return low;
     }
 
     public String getFilename()
@@ -118,15 +246,35 @@ public abstract class ImgSubFile
         return locked;
     }
 
+    /**
+     * A cursor within a sub-file. Not thread safe, each thread must use its own.
+     * <p>The cursor reads from a window: a whole extent when the file is mapped in
+     * memory or a single bloc otherwise.
+     */
     public static class FileContext
     {
-        private byte[] curBlocContent=null;
+        /**
+         * Raw content of the current window (little endian), the XOR byte must be applied.
+         */
+        private ByteBuffer window=null;
 
-        private int curPosInBloc=-1;
+        /**
+         * Position of the window relative to the start of the sub-file.
+         */
+        private long windowStart=-1;
 
-        private long curPos=-1;
+        private int windowSize=0;
+
+        private int xor;
+
+        /**
+         * The XOR byte repeated 4 times, for reading multi-bytes values at once.
+         */
+        private int xor32;
+
+        private int posInWindow=-1;
 
-        private int curBloc=-1;
+        private long curPos=-1;
     }
 
     /**
@@ -138,23 +286,46 @@ public abstract class ImgSubFile
     {
         int bloc=(int)(relative/blocSize);
         long blocOffset=relative%blocSize;
-        if(bloc>=blocs.size())
-            throw new EOFException("offset="+relative+" bloc="+bloc+">="+blocs.size());
-        return blocs.get(bloc)*blocSize+blocOffset;
+        if(bloc>=nbBlocs)
+            throw new EOFException("offset="+relative+" bloc="+bloc+">="+nbBlocs);
+        int extent=findExtent(bloc);
+        return (long)(extentFirstBloc[extent]+bloc-extentStart[extent])*blocSize+blocOffset;
     }
 
     public void seek(long pos, FileContext context) throws IOException
     {
         context.curPos=pos;
-        int newBloc=(int)(pos/blocSize);
-        if(context.curBloc!=newBloc)
+        long posInWindow=pos-context.windowStart;
+        if(context.window==null || posInWindow<0 || posInWindow>=context.windowSize)
         {
-            context.curBloc=newBloc;
-            if(newBloc>=blocs.size())
-                throw new EOFException("offset="+pos+" bloc="+newBloc+">="+blocs.size());
-            context.curBlocContent=fileBag.getBloc(blocs.get(newBloc)*blocSize, blocSize);
+            loadWindow(pos, context);
+            posInWindow=pos-context.windowStart;
         }
-        context.curPosInBloc=(int)(pos%blocSize);
+        context.posInWindow=(int)posInWindow;
+    }
+
+    private void loadWindow(long pos, FileContext context) throws IOException
+    {
+        int bloc=(int)(pos/blocSize);
+        if(bloc>=nbBlocs)
+            throw new EOFException("offset="+pos+" bloc="+bloc+">="+nbBlocs);
+        int extent=findExtent(bloc);
+        long extentPos=(long)extentFirstBloc[extent]*blocSize;
+        ByteBuffer region=fileBag.getRegion(extentPos, (long)extentNbBlocs[extent]*blocSize);
+        if(region!=null)
+        {
+            context.window=region;
+            context.windowStart=(long)extentStart[extent]*blocSize;
+            context.windowSize=extentNbBlocs[extent]*blocSize;
+        }
+        else
+        {
+            context.window=fileBag.getBloc(extentPos+(long)(bloc-extentStart[extent])*blocSize, blocSize);
+            context.windowStart=(long)bloc*blocSize;
+            context.windowSize=blocSize;
+        }
+        context.xor=fileBag.getXorByte();
+        context.xor32=context.xor*0x01010101;
     }
 
     public long getNextReadPos(FileContext context)
@@ -164,15 +335,60 @@ public abstract class ImgSubFile
 
     public int readByte(FileContext context) throws IOException
     {
-        int result=context.curBlocContent[context.curPosInBloc++]&0xFF;
+        int result=(context.window.get(context.posInWindow++)^context.xor)&0xFF;
         context.curPos++;
-        if(context.curPosInBloc>=blocSize)
+        if(context.posInWindow>=context.windowSize)
         {
             seek(context.curPos, context);
         }
         return result;
     }
 
+    /**
+     * Move the cursor forward.
+     */
+    public void skip(int nbBytes, FileContext context) throws IOException
+    {
+        final int pos=context.posInWindow+nbBytes;
+        if(nbBytes>=0 && pos<context.windowSize)
+        {
+            context.posInWindow=pos;
+            context.curPos+=nbBytes;
+        }
+        else
+        {
+            seek(context.curPos+nbBytes, context);
+        }
+    }
+
+    /**
+     * Read a bunch of bytes at once.
+     */
+    public void readBytes(byte[] dest, int offset, int length, FileContext context) throws IOException
+    {
+        while(length>0)
+        {
+            //stop one byte before the end of the window, the last one must go through readByte
+            final int pos=context.posInWindow;
+            final int nb=Math.min(length, context.windowSize-1-pos);
+            final ByteBuffer content=context.window;
+            final int xor=context.xor;
+            for(int cpt=0; cpt<nb; ++cpt)
+            {
+                dest[offset+cpt]=(byte)(content.get(pos+cpt)^xor);
+            }
+            context.posInWindow=pos+nb;
+            context.curPos+=nb;
+            offset+=nb;
+            length-=nb;
+            if(length>0)
+            {
+                dest[offset++]=(byte)readByte(context);
+                length--;
+            }
+        }
+    }
+
     public String readString(int len, FileContext context) throws IOException
     {
         StringBuffer result=new StringBuffer(len);
@@ -181,21 +397,57 @@ public abstract class ImgSubFile
         return result.toString();
     }
 
+    /*
+     * The multi-bytes reads have a fast path used when the value is not the last
+     * one of the window. Then, it's read directly from the window's buffer and the cursor
+     * stays in the same window.
+     */
+
     public int readUInt16(FileContext context) throws IOException
     {
+        final int pos=context.posInWindow;
+        if(pos+2<context.windowSize)
+        {
+            context.posInWindow=pos+2;
+            context.curPos+=2;
+            return (context.window.getShort(pos)^context.xor32)&0xFFFF;
+        }
         return readByte(context)|readByte(context)<<8;
     }
 
     public int readUInt24(FileContext context) throws IOException
     {
+        final int pos=context.posInWindow;
+        if(pos+3<context.windowSize)
+        {
+            final ByteBuffer content=context.window;
+            context.posInWindow=pos+3;
+            context.curPos+=3;
+            return ((content.getShort(pos)&0xFFFF|(content.get(pos+2)&0xFF)<<16)^context.xor32)&0xFFFFFF;
+        }
         return readByte(context)|readByte(context)<<8|readByte(context)<<16;
     }
 
-    public long readUInt32(FileContext context) throws IOException
+    /**
+     * @return The 4 next bytes as a signed integer.
+     */
+    public int readInt32(FileContext context) throws IOException
     {
+        final int pos=context.posInWindow;
+        if(pos+4<context.windowSize)
+        {
+            context.posInWindow=pos+4;
+            context.curPos+=4;
+            return context.window.getInt(pos)^context.xor32;
+        }
         return readByte(context)|readByte(context)<<8|readByte(context)<<16|readByte(context)<<24;
     }
 
+    public long readUInt32(FileContext context) throws IOException
+    {
+        return readInt32(context)&0xFFFFFFFFL;
+    }
+
     public int readInt16(FileContext context) throws IOException
     {
         int result=readUInt16(context);
@@ -219,7 +471,7 @@ public abstract class ImgSubFile
     public void printDebug(PrintStream out) throws IOException
     {
         // TODO Auto-generated method stub
-        out.println(filename+"."+filetype+" size="+fileSize+" lock="+locked+" headerLength="+headerLength);
+        out.println(filename+"."+filetype+" size="+fileSize+" lock="+locked+" headerLength="+headerLength+" extents="+nbExtents);
     }
 
     public void debugPrintHex(FileContext context, long startOffset, long length) throws IOException
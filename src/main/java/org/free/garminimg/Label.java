@@ -34,7 +34,10 @@ public abstract class Label
 
     protected String name=null;
 
-    protected boolean initDone=false;
+    /**
+     * Set to true once the name is known. Labels may be shared by several threads.
+     */
+    protected volatile boolean initDone=false;
 
     public Label(ImgFileBag file, String filename, int labelOffset)
     {
@@ -43,12 +46,18 @@ public abstract class Label
         this.labelOffset=labelOffset;
     }
 
-    protected synchronized void initIfNeeded() throws IOException
+    protected void initIfNeeded() throws IOException
     {
         if(!initDone)
         {
-            init();
-            initDone=true;
+            synchronized(this)
+            {
+                if(!initDone)
+                {
+                    init();
+                    initDone=true;
+                }
+            }
         }
     }
 
@@ -60,6 +69,28 @@ public abstract class Label
 
     protected abstract void init() throws IOException;
 
+    /**
+     * @return The kind used in the handles, one of the LabelHandle.KIND_* constants.
+     */
+    protected int getHandleKind()
+    {
+        return LabelHandle.KIND_SIMPLE;
+    }
+
+    /**
+     * @return The handle of this label (see {@link RawMapListener}), {@link LabelHandle#NONE} if
+     *         it is not from a file.
+     */
+    public long getHandle()
+    {
+        if(file==null)
+            return LabelHandle.NONE;
+        RgnSubFile rgn=file.getRgnFileNoInit(filename);
+        if(rgn==null)
+            return LabelHandle.NONE;
+        return rgn.createLabelHandle(getHandleKind(), labelOffset);
+    }
+
     public String toString()
     {
         try
@@ -84,7 +115,10 @@ public abstract class Label
     public boolean equals(Object o)
     {
         if(o==this) return true;
+        if(!(o instanceof Label)) return false;
         Label obj=(Label)o;
+        //the kinds may compare differently (see ContourLabel), a label equals only labels of its kind
+        if(getHandleKind()!=obj.getHandleKind()) return false;
         if(file!=null && obj.file!=null)
             return labelOffset==obj.labelOffset && file.getFile().equals(obj.file.getFile());
         else
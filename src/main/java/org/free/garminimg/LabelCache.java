@@ -0,0 +1,82 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Cache of the decoded labels of the LBL files, keyed by their file and offset. The same names
+ * (streets, cities...) are resolved again each time a map is drawn, this avoids decoding them
+ * each time. One instance is shared by all the files of an {@link ImgFilesBag}.
+ */
+public class LabelCache extends LruCache<LabelCache.Key, String>
+{
+    public static final long DEFAULT_MAX_SIZE=8*1024*1024;
+
+    public LabelCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public LabelCache(long maxSize)
+    {
+        super(maxSize);
+    }
+
+    protected int getWeight(String value)
+    {
+        //the entry, the key and the string
+        return 80+2*value.length();
+    }
+
+    String get(LblSubFile lbl, int offset)
+    {
+        return get(new Key(lbl, offset));
+    }
+
+    void put(LblSubFile lbl, int offset, String label)
+    {
+        put(new Key(lbl, offset), label);
+    }
+
+    static final class Key
+    {
+        private final LblSubFile lbl;
+
+        private final int offset;
+
+        public Key(LblSubFile lbl, int offset)
+        {
+            this.lbl=lbl;
+            this.offset=offset;
+        }
+
+        public int hashCode()
+        {
+            return System.identityHashCode(lbl)*31+offset;
+        }
+
+        public boolean equals(Object o)
+        {
+            if(o==this) return true;
+            if(!(o instanceof Key)) return false;
+            Key other=(Key)o;
+            return lbl==other.lbl && offset==other.offset;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Sends what it receives to a {@link MapListener}, creating the labels from their handles.
+ * The maps are always decoded with handles, this is used for the classic listeners.
+ */
+class LabelCreatingListener implements RawMapListener
+{
+    private final MapListener listener;
+
+    private final LabelResolver resolver;
+
+    public LabelCreatingListener(MapListener listener, LabelResolver resolver)
+    {
+        this.listener=listener;
+        this.resolver=resolver;
+    }
+
+    public void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed)
+    {
+        listener.addPoint(type, subType, longitude, latitude, resolver.getLabel(label), indexed);
+    }
+
+    public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction)
+    {
+        listener.addPoly(type, longitudes, latitudes, nbPoints, resolver.getLabel(label), line, direction);
+    }
+
+    public void startMap(ImgFileBag file)
+    {
+        listener.startMap(file);
+    }
+
+    public void startSubDivision(SubDivision subDivision)
+    {
+        listener.startSubDivision(subDivision);
+    }
+
+    public void finishPainting()
+    {
+        listener.finishPainting();
+    }
+
+    /**
+     * @return The listener to give to the methods reading the maps with handles.
+     */
+    static RawMapListener wrap(MapListener listener, LabelResolver resolver)
+    {
+        if(listener instanceof RawMapListener)
+            return (RawMapListener)listener;  //avoids creating the labels for the buffers
+        return new LabelCreatingListener(listener, resolver);
+    }
+}
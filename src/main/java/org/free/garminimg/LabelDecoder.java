@@ -0,0 +1,174 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the labels of the LBL files from raw bytes (XOR already applied).
+ * <p>The 6 bits coding is a small state machine (normal, symbol and special character
+ * sets). The transitions and the characters are precomputed in one table indexed by
+ * the current set and the 6 bits code.
+ * <p>The characters go in a buffer that is re-used from one label to the other. Not
+ * thread safe, one instance per thread.
+ */
+final class LabelDecoder
+{
+    private static final int SET_NORMAL=0;
+
+    private static final int SET_SYMBOL=1;
+
+    private static final int SET_SPECIAL=2;
+
+    /**
+     * Table values that are not characters.
+     */
+    private static final char END=0xFFFF;
+
+    private static final char TO_SYMBOL=0xFFFE;
+
+    private static final char TO_SPECIAL=0xFFFD;
+
+    private static final String NORMAL_CHARS=" ABCDEFGHIJKLMNOPQRSTUVWXYZ~~~~~0123456789~~~~~~";
+
+    private static final String SYMBOL_CHARS="@!\"#$%&'()*+,-./~~~~~~~~~~:;<=>?~~~~~~~~~~~[\\]^_";
+
+    private static final String SPECIAL_CHARS="`abcdefghijklmnopqrstuvwxyz~~~~~0123456789~~~~~~";
+
+    /**
+     * Indexed by set*64+code. After a character, the set always goes back to normal.
+     */
+    private static final char[] TABLE_6B=new char[3*64];
+
+    static
+    {
+        Arrays.fill(TABLE_6B, END);
+        for(int cpt=0; cpt<0x30; ++cpt)
+        {
+            TABLE_6B[SET_NORMAL*64+cpt]=NORMAL_CHARS.charAt(cpt);
+            TABLE_6B[SET_SYMBOL*64+cpt]=SYMBOL_CHARS.charAt(cpt);
+            TABLE_6B[SET_SPECIAL*64+cpt]=SPECIAL_CHARS.charAt(cpt);
+        }
+        TABLE_6B[SET_NORMAL*64+0x1b]=TO_SPECIAL;
+        TABLE_6B[SET_NORMAL*64+0x1c]=TO_SYMBOL;
+        TABLE_6B[SET_NORMAL*64+0x1d]='|';
+        TABLE_6B[SET_NORMAL*64+0x1e]=' ';
+        TABLE_6B[SET_NORMAL*64+0x1f]=' ';
+    }
+
+    private char[] chars=new char[64];
+
+    private byte[] bytes=new byte[64];
+
+    private int nbChars=0;
+
+    /**
+     * Decode one label. The result is in {@link #getChars()} and {@link #getNbChars()}.
+     *
+     * @param coding The label coding of the LBL file (6 or 9).
+     * @return The position after the label (after the last 3 bytes group for the 6 bits coding)
+     *         or -1 if the label is not finished before end.
+     */
+    public int decode(int coding, byte[] bytes, int pos, int end)
+    {
+        return coding==6 ? decode6b(bytes, pos, end) : decode8b(bytes, pos, end);
+    }
+
+    public int decode6b(byte[] bytes, int pos, int end)
+    {
+        nbChars=0;
+        //offset of the current set in the table
+        int set=SET_NORMAL*64;
+        while(pos+3<=end)
+        {
+            final int group=(bytes[pos]&0xFF)<<16|(bytes[pos+1]&0xFF)<<8|(bytes[pos+2]&0xFF);
+            pos+=3;
+            ensureCapacity(4);
+            for(int shift=18; shift>=0; shift-=6)
+            {
+                final char value=TABLE_6B[set+((group>>>shift)&0x3F)];
+                if(value==END)
+                    return pos;
+                else if(value==TO_SYMBOL)
+                    set=SET_SYMBOL*64;
+                else if(value==TO_SPECIAL)
+                    set=SET_SPECIAL*64;
+                else
+                {
+                    chars[nbChars++]=value;
+                    set=SET_NORMAL*64;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public int decode8b(byte[] bytes, int pos, int end)
+    {
+        nbChars=0;
+        while(pos<end)
+        {
+            final int value=bytes[pos++]&0xFF;
+            if(value==0)
+                return pos;
+            ensureCapacity(1);
+            chars[nbChars++]=(char)value;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int nbNewChars)
+    {
+        if(nbChars+nbNewChars>chars.length)
+        {
+            char[] newChars=new char[chars.length*2];
+            System.arraycopy(chars, 0, newChars, 0, nbChars);
+            chars=newChars;
+        }
+    }
+
+    /**
+     * @return A buffer of at least the given size, re-used for reading the raw bytes.
+     */
+    public byte[] getBytes(int minSize)
+    {
+        if(bytes.length<minSize)
+            bytes=new byte[Math.max(minSize, bytes.length*2)];
+        return bytes;
+    }
+
+    /**
+     * @return The characters of the last decoded label. Overwritten by the next call.
+     */
+    public char[] getChars()
+    {
+        return chars;
+    }
+
+    public int getNbChars()
+    {
+        return nbChars;
+    }
+
+    public String getString()
+    {
+        return new String(chars, 0, nbChars);
+    }
+}
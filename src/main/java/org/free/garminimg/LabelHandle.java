@@ -0,0 +1,93 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * A reference to a label packed in a long, given to the {@link RawMapListener}s instead of
+ * a {@link Label} instance. Resolved with {@link LabelResolver}.
+ * <p>Layout, from the highest bits: kind (4 bits), id of the IMG file (24 bits), id of the
+ * RGN sub-file in the IMG file (14 bits), offset of the label (22 bits).
+ */
+public final class LabelHandle
+{
+    /**
+     * The value of "no label".
+     */
+    public static final long NONE=0;
+
+    public static final int KIND_SIMPLE=1;
+
+    public static final int KIND_POI=2;
+
+    public static final int KIND_LINE_IN_NET=3;
+
+    /**
+     * A contour line, the label is an altitude in feet, converted to meters when resolved.
+     */
+    public static final int KIND_CONTOUR=4;
+
+    private static final int OFFSET_BITS=22;
+
+    private static final int SUB_FILE_BITS=14;
+
+    private static final int FILE_BITS=24;
+
+    static final int MAX_SUB_FILE_ID=(1<<SUB_FILE_BITS)-1;
+
+    static final int MAX_FILE_ID=(1<<FILE_BITS)-1;
+
+    private LabelHandle()
+    {
+    }
+
+    static long create(int kind, int fileId, int subFileId, int offset)
+    {
+        return ((long)kind<<(FILE_BITS+SUB_FILE_BITS+OFFSET_BITS))|
+               ((long)fileId<<(SUB_FILE_BITS+OFFSET_BITS))|
+               ((long)subFileId<<OFFSET_BITS)|
+               offset;
+    }
+
+    /**
+     * @return One of the KIND_* constants, 0 for {@link #NONE}.
+     */
+    public static int getKind(long handle)
+    {
+        return (int)(handle>>>(FILE_BITS+SUB_FILE_BITS+OFFSET_BITS));
+    }
+
+    public static int getFileId(long handle)
+    {
+        return (int)(handle>>>(SUB_FILE_BITS+OFFSET_BITS))&MAX_FILE_ID;
+    }
+
+    public static int getSubFileId(long handle)
+    {
+        return (int)(handle>>>OFFSET_BITS)&MAX_SUB_FILE_ID;
+    }
+
+    /**
+     * @return The offset of the label in the LBL file (or in the NET file for {@link #KIND_LINE_IN_NET}).
+     */
+    public static int getOffset(long handle)
+    {
+        return (int)handle&((1<<OFFSET_BITS)-1);
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of the labels of a TRE file: for each distinct name, the sub-divisions
+ * having objects with this name, and for each word (token), the names containing it. Built
+ * by walking all the sub-divisions once. With it, a search by name decodes only the
+ * sub-divisions where a matching name is used.
+ * <p>Kept compact in memory: the names and the words are stored in one char array each, the
+ * lists in int arrays. A posting is the index of the sub-division in the 16 upper bits, the
+ * kind of the objects using the name in the next 4 bits ({@link ObjectKind} shifted by 4) and
+ * their type in the 12 lower bits.
+ * <p>Saved with the rest of the file in the {@link MapIndex}, if one is used. The
+ * {@link NameCompleter} is built from these indexes.
+ * <p>Immutable once built.
+ */
+class LabelIndex
+{
+    private static final int KIND_SHIFT=4;
+
+    private static final int KIND_MASK=0xF;
+
+    private static final int SUB_DIVISION_SHIFT=16;
+
+    private static final int MAX_SUB_DIVISION=0xFFFF;
+
+    private static final int POSTING_KIND_SHIFT=12;
+
+    private static final int TYPE_MASK=0xFFF;
+
+    /**
+     * The distinct names, one after the other.
+     */
+    private final char[] names;
+
+    /**
+     * nbNames+1 elements, where each name starts in names.
+     */
+    private final int[] nameStarts;
+
+    /**
+     * nbNames+1 elements, where the postings of each name start.
+     */
+    private final int[] postingStarts;
+
+    private final int[] postings;
+
+    /**
+     * The distinct words of the names, in upper case and sorted.
+     */
+    private final char[] tokens;
+
+    private final int[] tokenStarts;
+
+    /**
+     * nbTokens+1 elements, where the names of each token start in tokenNames.
+     */
+    private final int[] tokenNameStarts;
+
+    private final int[] tokenNames;
+
+    private LabelIndex(char[] names, int[] nameStarts, int[] postingStarts, int[] postings, char[] tokens,
+                       int[] tokenStarts, int[] tokenNameStarts, int[] tokenNames)
+    {
+        this.names=names;
+        this.nameStarts=nameStarts;
+        this.postingStarts=postingStarts;
+        this.postings=postings;
+        this.tokens=tokens;
+        this.tokenStarts=tokenStarts;
+        this.tokenNameStarts=tokenNameStarts;
+        this.tokenNames=tokenNames;
+    }
+
+    /**
+     * Decode all the sub-divisions of the TRE file to find what labels they use. The sub-division
+     * cache is not used, to not fill it with the whole map.
+     */
+    static LabelIndex build(TreSubFile tre, RgnSubFile rgn, LblSubFile lbl, NetSubFile net) throws IOException
+    {
+        //the postings of each label, by kind and offset
+        final Map<Long, IntList> byLabel=new HashMap<Long, IntList>();
+        RgnContext rgnContext=new RgnContext();
+        List<SubDivision> subDivisions=tre.getSubDivisionsToRead(Integer.MIN_VALUE, Integer.MAX_VALUE,
+                                                                 Integer.MIN_VALUE, Integer.MAX_VALUE, -1);
+        for(final SubDivision subDivision : subDivisions)
+        {
+            if(subDivision.getIndex()>MAX_SUB_DIVISION)
+                throw new IOException("Too many sub-divisions to index in "+tre.getFilename());
+            rgn.decodeAll(subDivision, net, new RawMapListener()
+            {
+                public void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed)
+                {
+                    add(label, indexed?ObjectKind.INDEXED_POINT:ObjectKind.POINT, type);
+                }
+
+                public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction)
+                {
+                    add(label, line?ObjectKind.POLYLINE:ObjectKind.POLYGON, type);
+                }
+
+                private void add(long label, int kind, int type)
+                {
+                    if(label==LabelHandle.NONE)
+                        return;
+                    Long key=getKey(LabelHandle.getKind(label), LabelHandle.getOffset(label));
+                    IntList list=byLabel.get(key);
+                    if(list==null)
+                    {
+                        list=new IntList();
+                        byLabel.put(key, list);
+                    }
+                    final int posting=subDivision.getIndex()<<SUB_DIVISION_SHIFT|(kind>>KIND_SHIFT)<<POSTING_KIND_SHIFT|type&TYPE_MASK;
+                    //the same name is often used by consecutive objects (segments of a street)
+                    if(list.size()==0 || list.get(list.size()-1)!=posting)
+                        list.add(posting);
+                }
+
+                public void startMap(ImgFileBag file)
+                {
+                }
+
+                public void startSubDivision(SubDivision subDivision)
+                {
+                }
+
+                public void finishPainting()
+                {
+                }
+            }, rgnContext);
+        }
+
+        Map<Long, String> labelNames=resolveNames(byLabel, rgn, lbl);
+
+        //group the labels having the same name
+        Map<String, IntList> byName=new HashMap<String, IntList>();
+        for(Map.Entry<Long, IntList> cur : byLabel.entrySet())
+        {
+            String name=labelNames.get(cur.getKey());
+            if(name==null || name.length()==0)
+                continue;
+            IntList list=byName.get(name);
+            if(list==null)
+            {
+                list=new IntList();
+                byName.put(name, list);
+            }
+            list.addAll(cur.getValue());
+        }
+        return create(byName);
+    }
+
+    /**
+     * The simple labels are decoded in bulk. The others, and the simple labels not found at the
+     * beginning of a label (some labels are suffixes of others), are resolved one by one.
+     */
+    private static Map<Long, String> resolveNames(final Map<Long, IntList> byLabel, RgnSubFile rgn, LblSubFile lbl) throws IOException
+    {
+        final Map<Long, String> result=new HashMap<Long, String>();
+        if(lbl!=null)
+        {
+            lbl.readLabels(new LblSubFile.LabelVisitor()
+            {
+                public void visit(int offset, char[] chars, int nbChars)
+                {
+                    Long simple=getKey(LabelHandle.KIND_SIMPLE, offset);
+                    Long contour=getKey(LabelHandle.KIND_CONTOUR, offset);
+                    if(byLabel.containsKey(simple))
+                        result.put(simple, new String(chars, 0, nbChars));
+                    if(byLabel.containsKey(contour))
+                        result.put(contour, ContourLabel.toMeters(new String(chars, 0, nbChars)));
+                }
+            });
+        }
+        for(Long key : byLabel.keySet())
+        {
+            if(!result.containsKey(key))
+                result.put(key, rgn.getLabelName((int)(key>>>32), (int)(long)key));
+        }
+        return result;
+    }
+
+    private static Long getKey(int kind, int offset)
+    {
+        return (long)kind<<32|offset;
+    }
+
+    private static LabelIndex create(Map<String, IntList> byName)
+    {
+        String[] sortedNames=byName.keySet().toArray(new String[byName.size()]);
+        Arrays.sort(sortedNames);
+        final int nbNames=sortedNames.length;
+
+        int[] nameStarts=new int[nbNames+1];
+        int[] postingStarts=new int[nbNames+1];
+        IntList postings=new IntList();
+        StringBuilder names=new StringBuilder();
+        Map<String, IntList> byToken=new HashMap<String, IntList>();
+        for(int cpt=0; cpt<nbNames; ++cpt)
+        {
+            final String name=sortedNames[cpt];
+            nameStarts[cpt]=names.length();
+            names.append(name);
+            postingStarts[cpt]=postings.size();
+            addSorted(byName.get(name), postings);
+
+            for(String token : tokenize(name))
+            {
+                IntList list=byToken.get(token);
+                if(list==null)
+                {
+                    list=new IntList();
+                    byToken.put(token, list);
+                }
+                //a name can contain the same word twice
+                if(list.size()==0 || list.get(list.size()-1)!=cpt)
+                    list.add(cpt);
+            }
+        }
+        nameStarts[nbNames]=names.length();
+        postingStarts[nbNames]=postings.size();
+
+        String[] sortedTokens=byToken.keySet().toArray(new String[byToken.size()]);
+        Arrays.sort(sortedTokens);
+        final int nbTokens=sortedTokens.length;
+        int[] tokenStarts=new int[nbTokens+1];
+        int[] tokenNameStarts=new int[nbTokens+1];
+        StringBuilder tokens=new StringBuilder();
+        IntList tokenNames=new IntList();
+        for(int cpt=0; cpt<nbTokens; ++cpt)
+        {
+            tokenStarts[cpt]=tokens.length();
+            tokens.append(sortedTokens[cpt]);
+            tokenNameStarts[cpt]=tokenNames.size();
+            tokenNames.addAll(byToken.get(sortedTokens[cpt]));
+        }
+        tokenStarts[nbTokens]=tokens.length();
+        tokenNameStarts[nbTokens]=tokenNames.size();
+
+        return new LabelIndex(toArray(names), nameStarts, postingStarts, postings.toArray(), toArray(tokens),
+                              tokenStarts, tokenNameStarts, tokenNames.toArray());
+    }
+
+    /**
+     * Sort the postings by sub-division and remove the duplicates.
+     */
+    private static void addSorted(IntList source, IntList dest)
+    {
+        int[] values=source.toArray();
+        Arrays.sort(values);
+        for(int cpt=0; cpt<values.length; ++cpt)
+        {
+            if(cpt==0 || values[cpt]!=values[cpt-1])
+                dest.add(values[cpt]);
+        }
+    }
+
+    /**
+     * Save the index, to be restored with {@link #read(DataInput)}.
+     */
+    void write(DataOutput out) throws IOException
+    {
+        writeChars(out, names);
+        writeInts(out, nameStarts);
+        writeInts(out, postingStarts);
+        writeInts(out, postings);
+        writeChars(out, tokens);
+        writeInts(out, tokenStarts);
+        writeInts(out, tokenNameStarts);
+        writeInts(out, tokenNames);
+    }
+
+    static LabelIndex read(DataInput in) throws IOException
+    {
+        return new LabelIndex(readChars(in), readInts(in), readInts(in), readInts(in), readChars(in),
+                              readInts(in), readInts(in), readInts(in));
+    }
+
+    private static void writeChars(DataOutput out, char[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for(char value : values)
+        {
+            out.writeChar(value);
+        }
+    }
+
+    private static char[] readChars(DataInput in) throws IOException
+    {
+        char[] result=new char[in.readInt()];
+        for(int cpt=0; cpt<result.length; ++cpt)
+        {
+            result[cpt]=in.readChar();
+        }
+        return result;
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for(int value : values)
+        {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInput in) throws IOException
+    {
+        int[] result=new int[in.readInt()];
+        for(int cpt=0; cpt<result.length; ++cpt)
+        {
+            result[cpt]=in.readInt();
+        }
+        return result;
+    }
+
+    private static char[] toArray(StringBuilder builder)
+    {
+        char[] result=new char[builder.length()];
+        builder.getChars(0, result.length, result, 0);
+        return result;
+    }
+
+    /**
+     * @return The words of the text, in upper case. The words are separated by anything
+     *         that is not a letter or a digit.
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> result=new ArrayList<String>();
+        final int length=text.length();
+        int start=-1;
+        for(int cpt=0; cpt<=length; ++cpt)
+        {
+            boolean inWord=cpt<length && Character.isLetterOrDigit(text.charAt(cpt));
+            if(inWord && start<0)
+            {
+                start=cpt;
+            }
+            else if(!inWord && start>=0)
+            {
+                result.add(text.substring(start, cpt).toUpperCase());
+                start=-1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The indexes of the sub-divisions having objects of the given kinds with a name
+     *         matching the query.
+     */
+    public BitSet find(LabelQuery query, int objectKindFilter)
+    {
+        BitSet matchingNames=query.getPattern()!=null ? findNames(query.getPattern()) : findNames(query.getPrefixes());
+        BitSet result=new BitSet();
+        final int kinds=(objectKindFilter>>KIND_SHIFT)&KIND_MASK;
+        for(int name=matchingNames.nextSetBit(0); name>=0; name=matchingNames.nextSetBit(name+1))
+        {
+            for(int cpt=postingStarts[name]; cpt<postingStarts[name+1]; ++cpt)
+            {
+                final int posting=postings[cpt];
+                if((posting>>>POSTING_KIND_SHIFT&KIND_MASK&kinds)!=0)
+                    result.set(posting>>>SUB_DIVISION_SHIFT);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Give each use of the names to the visitor, name by name and sorted by sub-division.
+     */
+    void visitPostings(PostingVisitor visitor) throws IOException
+    {
+        for(int name=0; name<getNbNames(); ++name)
+        {
+            final String nameString=new String(names, nameStarts[name], nameStarts[name+1]-nameStarts[name]);
+            for(int cpt=postingStarts[name]; cpt<postingStarts[name+1]; ++cpt)
+            {
+                final int posting=postings[cpt];
+                visitor.visit(nameString, posting>>>SUB_DIVISION_SHIFT, (posting>>>POSTING_KIND_SHIFT&KIND_MASK)<<KIND_SHIFT,
+                              posting&TYPE_MASK);
+            }
+        }
+    }
+
+    private BitSet findNames(Pattern pattern)
+    {
+        BitSet result=new BitSet();
+        CharRange name=new CharRange(names);
+        Matcher matcher=pattern.matcher(name);
+        for(int cpt=0; cpt<getNbNames(); ++cpt)
+        {
+            name.set(nameStarts[cpt], nameStarts[cpt+1]);
+            matcher.reset(name);
+            if(matcher.find())
+                result.set(cpt);
+        }
+        return result;
+    }
+
+    /**
+     * @return The names having, for each prefix, a word starting with it.
+     */
+    private BitSet findNames(String[] prefixes)
+    {
+        BitSet result=null;
+        for(String prefix : prefixes)
+        {
+            BitSet cur=new BitSet();
+            for(int token=findFirstToken(prefix); token<getNbTokens() && tokenStartsWith(token, prefix); ++token)
+            {
+                for(int cpt=tokenNameStarts[token]; cpt<tokenNameStarts[token+1]; ++cpt)
+                {
+                    cur.set(tokenNames[cpt]);
+                }
+            }
+            if(result==null)
+                result=cur;
+            else
+                result.and(cur);
+        }
+        if(result==null)
+        {
+            //no word, every name
+            result=new BitSet();
+            result.set(0, getNbNames());
+        }
+        return result;
+    }
+
+    /**
+     * @return The first token greater or equal to the given text.
+     */
+    private int findFirstToken(String text)
+    {
+        int low=0;
+        int high=getNbTokens();
+        while(low<high)
+        {
+            int mid=(low+high)>>>1;
+            if(compareToken(mid, text)<0)
+                low=mid+1;
+            else
+                high=mid;
+        }
+        return low;
+    }
+
+    private int compareToken(int token, String text)
+    {
+        final int start=tokenStarts[token];
+        final int length=tokenStarts[token+1]-start;
+        final int min=Math.min(length, text.length());
+        for(int cpt=0; cpt<min; ++cpt)
+        {
+            int diff=tokens[start+cpt]-text.charAt(cpt);
+            if(diff!=0)
+                return diff;
+        }
+        return length-text.length();
+    }
+
+    private boolean tokenStartsWith(int token, String prefix)
+    {
+        final int start=tokenStarts[token];
+        if(tokenStarts[token+1]-start<prefix.length())
+            return false;
+        for(int cpt=0; cpt<prefix.length(); ++cpt)
+        {
+            if(tokens[start+cpt]!=prefix.charAt(cpt))
+                return false;
+        }
+        return true;
+    }
+
+    public int getNbNames()
+    {
+        return nameStarts.length-1;
+    }
+
+    public int getNbTokens()
+    {
+        return tokenStarts.length-1;
+    }
+
+    /**
+     * @return The approximate memory used, in bytes.
+     */
+    public long getWeight()
+    {
+        return 2L*(names.length+tokens.length)+
+               4L*(nameStarts.length+postingStarts.length+postings.length+tokenStarts.length+tokenNameStarts.length+tokenNames.length);
+    }
+
+    /**
+     * Receives the postings given by {@link LabelIndex#visitPostings(PostingVisitor)}.
+     */
+    interface PostingVisitor
+    {
+        /**
+         * @param subDivision The index of the sub-division using the name.
+         * @param kind        The {@link ObjectKind} of the objects using the name.
+         * @param type        The type of the objects using the name.
+         */
+        void visit(String name, int subDivision, int kind, int type) throws IOException;
+    }
+
+    /**
+     * A part of a char array, seen as a CharSequence without copying it. Re-used for each name.
+     */
+    private static final class CharRange implements CharSequence
+    {
+        private final char[] chars;
+
+        private int start;
+
+        private int end;
+
+        public CharRange(char[] chars)
+        {
+            this.chars=chars;
+        }
+
+        public void set(int start, int end)
+        {
+            this.start=start;
+            this.end=end;
+        }
+
+        public int length()
+        {
+            return end-start;
+        }
+
+        public char charAt(int index)
+        {
+            return chars[start+index];
+        }
+
+        public CharSequence subSequence(int from, int to)
+        {
+            return new String(chars, start+from, to-from);
+        }
+
+        public String toString()
+        {
+            return new String(chars, start, end-start);
+        }
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    private static final class IntList
+    {
+        private int[] values=new int[4];
+
+        private int size=0;
+
+        public void add(int value)
+        {
+            if(size==values.length)
+                values=Arrays.copyOf(values, size*2);
+            values[size++]=value;
+        }
+
+        public void addAll(IntList other)
+        {
+            for(int cpt=0; cpt<other.size; ++cpt)
+                add(other.values[cpt]);
+        }
+
+        public int get(int index)
+        {
+            return values[index];
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public int[] toArray()
+        {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
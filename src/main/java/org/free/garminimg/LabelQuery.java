@@ -0,0 +1,72 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * What names to look for with
+ * {@link ImgFilesBag#readMapByName(int, int, int, int, int, int, java.util.BitSet, LabelQuery, MapListener)}.
+ * Evaluated on the dictionaries of a {@link LabelIndex}, before anything is decoded.
+ */
+public final class LabelQuery
+{
+    private final Pattern pattern;
+
+    /**
+     * Upper case.
+     */
+    private final String[] prefixes;
+
+    private LabelQuery(Pattern pattern, String[] prefixes)
+    {
+        this.pattern=pattern;
+        this.prefixes=prefixes;
+    }
+
+    /**
+     * The names where the regular expression is found (same as {@link java.util.regex.Matcher#find()}).
+     */
+    public static LabelQuery pattern(Pattern pattern)
+    {
+        return new LabelQuery(pattern, null);
+    }
+
+    /**
+     * The names having, for each word of the text, a word starting with it. The case is ignored.
+     * For example, "rue gen" finds "RUE DU GENERAL DUFOUR".
+     */
+    public static LabelQuery prefix(String text)
+    {
+        List<String> words=LabelIndex.tokenize(text);
+        return new LabelQuery(null, words.toArray(new String[words.size()]));
+    }
+
+    Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    String[] getPrefixes()
+    {
+        return prefixes;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+/**
+ * Turns the label handles (see {@link LabelHandle}) into names or {@link Label}s.
+ * <p>Each {@link ImgFileBag} registers itself in the resolver of its {@link ImgFilesBag} when
+ * created, to get the id used in the handles. The files without parent use the one returned
+ * by {@link #getDefault()}. Only weak references are kept, so the files can be garbage
+ * collected. The ids of the files removed or garbage collected are reused, the handles of
+ * those files must not be used anymore.
+ * <p>Thread safe.
+ */
+public class LabelResolver
+{
+    private static final LabelResolver DEFAULT=new LabelResolver();
+
+    private volatile WeakReference<ImgFileBag>[] files=createArray(64);
+
+    private int nbFiles=1;   //0 is never used
+
+    /**
+     * The ids that can be reused.
+     */
+    private int[] freeIds=new int[16];
+
+    private int nbFreeIds=0;
+
+    /**
+     * @return The resolver of the files created without {@link ImgFilesBag}.
+     */
+    public static LabelResolver getDefault()
+    {
+        return DEFAULT;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static WeakReference<ImgFileBag>[] createArray(int size)
+    {
+        return new WeakReference[size];
+    }
+
+    /**
+     * @return The id of the file in the handles.
+     */
+    synchronized int register(ImgFileBag file)
+    {
+        WeakReference<ImgFileBag>[] cur=files;
+        if(nbFreeIds==0 && (nbFiles==cur.length || nbFiles>LabelHandle.MAX_FILE_ID))
+            collectFreedIds(cur);
+        int result;
+        if(nbFreeIds>0)
+        {
+            result=freeIds[--nbFreeIds];
+        }
+        else
+        {
+            if(nbFiles>LabelHandle.MAX_FILE_ID)
+                throw new IllegalStateException("Too many IMG files opened");
+            if(nbFiles==cur.length)
+            {
+                WeakReference<ImgFileBag>[] newFiles=createArray(cur.length*2);
+                System.arraycopy(cur, 0, newFiles, 0, nbFiles);
+                cur=newFiles;
+            }
+            result=nbFiles++;
+        }
+        cur[result]=new WeakReference<ImgFileBag>(file);
+        //published by the volatile write
+        files=cur;
+        return result;
+    }
+
+    /**
+     * Free the id of a file that won't be used anymore.
+     */
+    synchronized void unregister(ImgFileBag file)
+    {
+        WeakReference<ImgFileBag>[] cur=files;
+        int id=file.getId();
+        if(id<nbFiles && cur[id]!=null && cur[id].get()==file)
+        {
+            cur[id]=null;
+            files=cur;
+            addFreeId(id);
+        }
+    }
+
+    /**
+     * Look for the files that have been garbage collected.
+     */
+    private void collectFreedIds(WeakReference<ImgFileBag>[] cur)
+    {
+        for(int cpt=1; cpt<nbFiles; ++cpt)
+        {
+            if(cur[cpt]!=null && cur[cpt].get()==null)
+            {
+                cur[cpt]=null;
+                addFreeId(cpt);
+            }
+        }
+    }
+
+    private void addFreeId(int id)
+    {
+        if(nbFreeIds==freeIds.length)
+        {
+            int[] newFreeIds=new int[freeIds.length*2];
+            System.arraycopy(freeIds, 0, newFreeIds, 0, nbFreeIds);
+            freeIds=newFreeIds;
+        }
+        freeIds[nbFreeIds++]=id;
+    }
+
+    private RgnSubFile getRgn(long handle)
+    {
+        final int fileId=LabelHandle.getFileId(handle);
+        final WeakReference<ImgFileBag>[] cur=files;
+        if(fileId>=cur.length || cur[fileId]==null)
+            return null;
+        ImgFileBag file=cur[fileId].get();
+        return file!=null ? file.getRgnFile(LabelHandle.getSubFileId(handle)) : null;
+    }
+
+    /**
+     * @return A new label, null for {@link LabelHandle#NONE} or if the file is not known anymore.
+     */
+    public Label getLabel(long handle)
+    {
+        if(handle==LabelHandle.NONE)
+            return null;
+        RgnSubFile rgn=getRgn(handle);
+        if(rgn==null)
+            return null;
+        return rgn.createLabel(LabelHandle.getKind(handle), LabelHandle.getOffset(handle));
+    }
+
+    /**
+     * @return The name, without creating a {@link Label}. Null for {@link LabelHandle#NONE} or if the
+     *         file is not known anymore.
+     */
+    public String getName(long handle) throws IOException
+    {
+        if(handle==LabelHandle.NONE)
+            return null;
+        RgnSubFile rgn=getRgn(handle);
+        if(rgn==null)
+            return null;
+        return rgn.getLabelName(LabelHandle.getKind(handle), LabelHandle.getOffset(handle));
+    }
+}
@@ -315,269 +315,128 @@ class LblSubFile extends ImgSubFile
 
     public String getLabel(long offset) throws IOException
     {
-        FileContext context=new FileContext();
-        return getLabelInternal(offset, context);
+        return getLabelInternal(offset, null);
     }
 
+    /**
+     * @param context Can be null, created only if the label is not in the cache.
+     */
     private String getLabelInternal(long offset, FileContext context) throws IOException
     {
+        //the offsets are on 22 bits
+        LabelCache cache=fileBag.getLabelCache();
+        String result=offset>=0 && offset<=Integer.MAX_VALUE ? cache.get(this, (int)offset) : null;
+        if(result!=null)
+            return result;
         if(offset<0 || offset*dataOffsetMultiplier>=dataLength)
             throw new IOException("Invalid label offset: 0x"+Long.toHexString(offset));
         long actualOffset=dataOffset+offset*dataOffsetMultiplier;
 
-        return getAbsoluteLabel(actualOffset, context);
+        result=getAbsoluteLabel(actualOffset, context!=null ? context : new FileContext());
+        if(result!=null)
+            cache.put(this, (int)offset, result);
+        return result;
     }
 
     private String getAbsoluteLabel(long actualOffset, FileContext context)
             throws IOException
     {
-        final String result;
+        if(labelCoding!=6 && labelCoding!=9)
+        {
+            System.out.println("Don't know how to decode label with coding "+labelCoding);
+            return "???";
+        }
         long save=getNextReadPos(context);
-        switch(labelCoding)
+        LabelDecoder decoder=DECODERS.get();
+        long end=dataOffset+dataLength;
+        //most labels are short, read more only if needed
+        int size=32;
+        while(true)
         {
-            case 6:
-                result=getLabel6b(actualOffset, context);
-                break;
-            case 9:
-                result=getLabel8b(actualOffset, context);
+            int nb=(int)Math.min(size, end-actualOffset);
+            byte[] bytes=decoder.getBytes(nb);
+            seek(actualOffset, context);
+            readBytes(bytes, 0, nb, context);
+            //a label not terminated before the end of the data section is truncated
+            if(decoder.decode(labelCoding, bytes, 0, nb)>=0 || nb<size)
                 break;
-            default:
-                System.out.println("Don't know how to decode label with coding "+labelCoding);
-                return "???";
+            size*=2;
         }
         seek(save, context);
-        return result;
-    }
-
-    private enum CharSet
-    {
-        NORMAL, SYMBOL, SPECIAL,
+        return decoder.getString();
     }
 
-    private static final char NORMAL_CHARS[]=
-            {
-                    ' ',
-                    'A',
-                    'B',
-                    'C',
-                    'D',
-                    'E',
-                    'F',
-                    'G',
-                    'H',
-                    'I',
-                    'J',
-                    'K',
-                    'L',
-                    'M',
-                    'N',
-                    'O',
-                    'P',
-                    'Q',
-                    'R',
-                    'S',
-                    'T',
-                    'U',
-                    'V',
-                    'W',
-                    'X',
-                    'Y',
-                    'Z',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '0',
-                    '1',
-                    '2',
-                    '3',
-                    '4',
-                    '5',
-                    '6',
-                    '7',
-                    '8',
-                    '9',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~'};
-
-    private static final char SYMBOL_CHARS[]=
-            {
-                    '@',
-                    '!',
-                    '"',
-                    '#',
-                    '$',
-                    '%',
-                    '&',
-                    '\'',
-                    '(',
-                    ')',
-                    '*',
-                    '+',
-                    ',',
-                    '-',
-                    '.',
-                    '/',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    ':',
-                    ';',
-                    '<',
-                    '=',
-                    '>',
-                    '?',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '[',
-                    '\\',
-                    ']',
-                    '^',
-                    '_'};
-
-    private static final char SPECIAL_CHARS[]=
-            {
-                    '`',
-                    'a',
-                    'b',
-                    'c',
-                    'd',
-                    'e',
-                    'f',
-                    'g',
-                    'h',
-                    'i',
-                    'j',
-                    'k',
-                    'l',
-                    'm',
-                    'n',
-                    'o',
-                    'p',
-                    'q',
-                    'r',
-                    's',
-                    't',
-                    'u',
-                    'v',
-                    'w',
-                    'x',
-                    'y',
-                    'z',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '0',
-                    '1',
-                    '2',
-                    '3',
-                    '4',
-                    '5',
-                    '6',
-                    '7',
-                    '8',
-                    '9',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~',
-                    '~'};
-
-    private String getLabel6b(long offset, FileContext context) throws IOException
+    /**
+     * Decode all the labels of the data section, in the order they are stored.
+     */
+    public void readLabels(LabelVisitor visitor) throws IOException
     {
-        seek(offset, context);
-        StringBuffer result=new StringBuffer();
-        CharSet curCharSet=CharSet.NORMAL;
+        if(labelCoding!=6 && labelCoding!=9)
+        {
+            System.out.println("Don't know how to decode label with coding "+labelCoding);
+            return;
+        }
+        FileContext context=new FileContext();
+        LabelDecoder decoder=new LabelDecoder();
+        byte[] bytes=new byte[BULK_READ_SIZE];
+        //position of bytes[0] relative to the start of the data section
+        long bufferStart=0;
+        int nbInBuffer=0;
+        int cur=0;
         while(true)
         {
-            int b1=readByte(context);
-            int b2=readByte(context);
-            int b3=readByte(context);
-
-            int c[]=
-                    {b1>>2, (b1&0x3)<<4|b2>>4, (b2&0xF)<<2|b3>>6, b3&0x3F};
-
-            for(int cpt=0; cpt<4; ++cpt)
+            int next=cur<nbInBuffer ? decoder.decode(labelCoding, bytes, cur, nbInBuffer) : -1;
+            if(next<0)
             {
-                if(c[cpt]>0x2F)
-                    return result.toString();
-                switch(curCharSet)
-                {
-                    case NORMAL:
-                        if(c[cpt]==0x1c)
-                        {
-                            curCharSet=CharSet.SYMBOL;
-                        }
-                        else if(c[cpt]==0x1b)
-                        {
-                            curCharSet=CharSet.SPECIAL;
-                        }
-                        else if(c[cpt]==0x1d)
-                        {
-                            result.append('|');
-                        }
-                        else if(c[cpt]==0x1f)
-                        {
-                            result.append(' ');
-                        }
-                        else if(c[cpt]==0x1e)
-                        {
-                            result.append(' ');
-                        }
-                        else
-                        {
-                            result.append(NORMAL_CHARS[c[cpt]]);
-                        }
-                        break;
-                    case SYMBOL:
-                        result.append(SYMBOL_CHARS[c[cpt]]);
-                        curCharSet=CharSet.NORMAL;
-                        break;
-                    case SPECIAL:
-                        result.append(SPECIAL_CHARS[c[cpt]]);
-                        curCharSet=CharSet.NORMAL;
-                        break;
-                }
-
+                //the label is not complete in the buffer, read what follows it
+                if(bufferStart+nbInBuffer>=dataLength)
+                    break;
+                int remaining=Math.max(0, nbInBuffer-cur);
+                byte[] dest=remaining==bytes.length ? new byte[bytes.length*2] : bytes;
+                System.arraycopy(bytes, cur, dest, 0, remaining);
+                bytes=dest;
+                bufferStart+=cur;
+                cur=0;
+                int nb=(int)Math.min(bytes.length-remaining, dataLength-bufferStart-remaining);
+                if(nb<=0)
+                    break;
+                seek(dataOffset+bufferStart+remaining, context);
+                readBytes(bytes, remaining, nb, context);
+                nbInBuffer=remaining+nb;
+                continue;
             }
+            long labelPos=bufferStart+cur;
+            visitor.visit((int)(labelPos/dataOffsetMultiplier), decoder.getChars(), decoder.getNbChars());
+            //the next label is aligned on the offset multiplier
+            long nextPos=bufferStart+next;
+            nextPos=(nextPos+dataOffsetMultiplier-1)/dataOffsetMultiplier*dataOffsetMultiplier;
+            cur=(int)(nextPos-bufferStart);
         }
     }
 
-    private String getLabel8b(long offset, FileContext context) throws IOException
+    private static final int BULK_READ_SIZE=16*1024;
+
+    /**
+     * Each thread decodes the labels in its own buffers.
+     */
+    private static final ThreadLocal<LabelDecoder> DECODERS=new ThreadLocal<LabelDecoder>()
     {
-        seek(offset, context);
-        StringBuffer result=new StringBuffer();
-        while(true)
+        protected LabelDecoder initialValue()
         {
-            char cur=(char)readByte(context);
-            if(cur==0)
-                break;
-            result.append(cur);
+            return new LabelDecoder();
         }
-        return result.toString();
+    };
+
+    /**
+     * Receives the labels decoded by {@link LblSubFile#readLabels(LabelVisitor)}.
+     */
+    interface LabelVisitor
+    {
+        /**
+         * @param offset   The offset of the label, as found in the other sub-files.
+         * @param chars    Only valid during the call.
+         * @param nbChars  The length of the label.
+         */
+        void visit(int offset, char[] chars, int nbChars) throws IOException;
     }
 }
@@ -36,6 +36,11 @@ public class LineInNetLabel extends Label
         name=getNet().getRoadName(labelOffset, file.getLblFile(filename));
     }
 
+    protected int getHandleKind()
+    {
+        return LabelHandle.KIND_LINE_IN_NET;
+    }
+
     public boolean equals(Object o)
     {
         return o==this || (o instanceof LineInNetLabel && super.equals(o));
@@ -0,0 +1,282 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache with a maximum size in bytes. When full, the least recently used
+ * entries are evicted.
+ * <p>To allow concurrent accesses, the entries are split in segments according to their
+ * hash code. Each segment has its own lock and its own part of the maximum size.
+ * <p>Keeps some statistics to help choosing the size of the cache.
+ */
+public abstract class LruCache<K, V>
+{
+    public static final int DEFAULT_NB_SEGMENTS=16;
+
+    private final Segment[] segments;
+
+    private volatile long maxSize;
+
+    protected LruCache(long maxSize)
+    {
+        this(maxSize, DEFAULT_NB_SEGMENTS);
+    }
+
+    /**
+     * @param nbSegments The number of segments, must be a power of 2.
+     */
+    protected LruCache(long maxSize, int nbSegments)
+    {
+        if(Integer.bitCount(nbSegments)!=1)
+            throw new IllegalArgumentException("The number of segments must be a power of 2: "+nbSegments);
+        this.maxSize=maxSize;
+        segments=createArray(nbSegments);
+        for(int cpt=0; cpt<nbSegments; ++cpt)
+        {
+            segments[cpt]=new Segment(maxSize/nbSegments);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Segment[] createArray(int size)
+    {
+        return new LruCache.Segment[size];
+    }
+
+    /**
+     * @return The approximate memory used by this value, in bytes.
+     */
+    protected abstract int getWeight(V value);
+
+    private Segment getSegment(Object key)
+    {
+        //spread the bits of the hash code, like HashMap does
+        int hash=key.hashCode();
+        hash^=(hash>>>20)^(hash>>>12);
+        hash^=(hash>>>7)^(hash>>>4);
+        return segments[hash&(segments.length-1)];
+    }
+
+    /**
+     * @return The cached value or null if not present.
+     */
+    public V get(K key)
+    {
+        return getSegment(key).get(key);
+    }
+
+    public void put(K key, V value)
+    {
+        getSegment(key).put(key, value);
+    }
+
+    public void clear()
+    {
+        for(Segment segment : segments)
+        {
+            segment.clear();
+        }
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Change the maximum size in bytes of the cache. Evicts entries if needed.
+     */
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize=maxSize;
+        for(Segment segment : segments)
+        {
+            segment.setMaxSize(maxSize/segments.length);
+        }
+    }
+
+    /**
+     * @return The current size in bytes.
+     */
+    public long getSize()
+    {
+        long result=0;
+        for(Segment segment : segments)
+        {
+            result+=segment.getSize();
+        }
+        return result;
+    }
+
+    public int getNbEntries()
+    {
+        int result=0;
+        for(Segment segment : segments)
+        {
+            result+=segment.getNbEntries();
+        }
+        return result;
+    }
+
+    public long getHits()
+    {
+        long result=0;
+        for(Segment segment : segments)
+        {
+            result+=segment.getHits();
+        }
+        return result;
+    }
+
+    public long getMisses()
+    {
+        long result=0;
+        for(Segment segment : segments)
+        {
+            result+=segment.getMisses();
+        }
+        return result;
+    }
+
+    public long getEvictions()
+    {
+        long result=0;
+        for(Segment segment : segments)
+        {
+            result+=segment.getEvictions();
+        }
+        return result;
+    }
+
+    public void resetStatistics()
+    {
+        for(Segment segment : segments)
+        {
+            segment.resetStatistics();
+        }
+    }
+
+    public String toString()
+    {
+        return getClass().getSimpleName()+"[size="+getSize()+"/"+maxSize+" entries="+getNbEntries()+" hits="+getHits()
+               +" misses="+getMisses()+" evictions="+getEvictions()+"]";
+    }
+
+    private class Segment
+    {
+        private final LinkedHashMap<K, V> entries=new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        private long maxSize;
+
+        private long size=0;
+
+        private long hits=0;
+
+        private long misses=0;
+
+        private long evictions=0;
+
+        public Segment(long maxSize)
+        {
+            this.maxSize=maxSize;
+        }
+
+        public synchronized V get(K key)
+        {
+            V result=entries.get(key);
+            if(result!=null)
+                hits++;
+            else
+                misses++;
+            return result;
+        }
+
+        public synchronized void put(K key, V value)
+        {
+            int weight=getWeight(value);
+            if(weight>maxSize)
+                return;
+            V previous=entries.put(key, value);
+            if(previous!=null)
+                size-=getWeight(previous);
+            size+=weight;
+            evictIfNeeded();
+        }
+
+        private void evictIfNeeded()
+        {
+            Iterator<Map.Entry<K, V>> it=entries.entrySet().iterator();
+            while(size>maxSize && it.hasNext())
+            {
+                size-=getWeight(it.next().getValue());
+                it.remove();
+                evictions++;
+            }
+        }
+
+        public synchronized void clear()
+        {
+            entries.clear();
+            size=0;
+        }
+
+        public synchronized void setMaxSize(long maxSize)
+        {
+            this.maxSize=maxSize;
+            evictIfNeeded();
+        }
+
+        public synchronized long getSize()
+        {
+            return size;
+        }
+
+        public synchronized int getNbEntries()
+        {
+            return entries.size();
+        }
+
+        public synchronized long getHits()
+        {
+            return hits;
+        }
+
+        public synchronized long getMisses()
+        {
+            return misses;
+        }
+
+        public synchronized long getEvictions()
+        {
+            return evictions;
+        }
+
+        public synchronized void resetStatistics()
+        {
+            hits=0;
+            misses=0;
+            evictions=0;
+        }
+    }
+}
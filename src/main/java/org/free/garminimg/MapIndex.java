@@ -0,0 +1,189 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of what has been parsed from the .img files of a map set: the FAT,
+ * the headers of the TRE files, their levels and their sub-division trees. With it,
+ * the files don't have to be read when a map set is opened. The indexes of the names
+ * built by the searches ({@link LabelIndex}) are saved as well.
+ * <p>An entry is used only if the size and the modification time of its .img file
+ * didn't change. The content of the entries is written and read by the classes
+ * that parsed it (see {@link ImgFileBag#writeIndex}).
+ * <p>To use it, call {@link ImgFilesBag#setIndex(MapIndex)} before adding the files and
+ * {@link ImgFilesBag#saveIndex()} once the maps have been used.
+ */
+public class MapIndex
+{
+    private static final int MAGIC=0x4A474958;  //"JGIX"
+
+    private static final int VERSION=3;
+
+    private final File file;
+
+    private final Map<File, Entry> entries=new HashMap<File, Entry>();
+
+    private boolean modified=false;
+
+    /**
+     * @param file Where the index is stored. If it exists, it's loaded.
+     */
+    public MapIndex(File file)
+    {
+        this.file=file;
+        if(file.exists())
+        {
+            try
+            {
+                load();
+            }
+            catch(IOException e)
+            {
+                System.out.println("Ignoring the invalid index "+file+": "+e.getMessage());
+                entries.clear();
+            }
+        }
+    }
+
+    private void load() throws IOException
+    {
+        DataInputStream input=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if(input.readInt()!=MAGIC)
+                throw new IOException("Not an index file");
+            int version=input.readInt();
+            if(version!=VERSION)
+                throw new IOException("Unsupported version: "+version);
+            int nbEntries=input.readInt();
+            for(int cpt=0; cpt<nbEntries; ++cpt)
+            {
+                File imgFile=new File(input.readUTF());
+                long length=input.readLong();
+                long lastModified=input.readLong();
+                byte[] content=new byte[input.readInt()];
+                input.readFully(content);
+                entries.put(imgFile, new Entry(length, lastModified, content));
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Write the index on the disk, if it has been modified.
+     */
+    public synchronized void save() throws IOException
+    {
+        if(!modified)
+            return;
+        File tmpFile=new File(file.getPath()+".tmp");
+        DataOutputStream output=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for(Map.Entry<File, Entry> cur : entries.entrySet())
+            {
+                Entry entry=cur.getValue();
+                output.writeUTF(cur.getKey().getPath());
+                output.writeLong(entry.length);
+                output.writeLong(entry.lastModified);
+                output.writeInt(entry.content.length);
+                output.write(entry.content);
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+        //replace the old index only once the new one is complete
+        if(file.exists() && !file.delete() || !tmpFile.renameTo(file))
+            throw new IOException("Cannot replace "+file);
+        modified=false;
+    }
+
+    /**
+     * @return The content indexed for the given .img file or null if there is none or
+     *         if the file changed since.
+     */
+    synchronized DataInputStream get(File imgFile)
+    {
+        Entry entry=entries.get(imgFile.getAbsoluteFile());
+        if(entry==null || entry.length!=imgFile.length() || entry.lastModified!=imgFile.lastModified())
+            return null;
+        return new DataInputStream(new ByteArrayInputStream(entry.content));
+    }
+
+    synchronized void put(File imgFile, byte[] content)
+    {
+        File key=imgFile.getAbsoluteFile();
+        Entry previous=entries.get(key);
+        Entry entry=new Entry(imgFile.length(), imgFile.lastModified(), content);
+        if(previous==null || previous.length!=entry.length || previous.lastModified!=entry.lastModified ||
+           !Arrays.equals(previous.content, content))
+        {
+            entries.put(key, entry);
+            modified=true;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized int getNbEntries()
+    {
+        return entries.size();
+    }
+
+    private static final class Entry
+    {
+        private final long length;
+
+        private final long lastModified;
+
+        private final byte[] content;
+
+        public Entry(long length, long lastModified, byte[] content)
+        {
+            this.length=length;
+            this.lastModified=lastModified;
+            this.content=content;
+        }
+    }
+}
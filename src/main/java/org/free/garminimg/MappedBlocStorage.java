@@ -0,0 +1,131 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps the whole .img file in memory. The blocs are returned as slices of the
+ * mapped regions, without any copy.
+ * <p>The mapping stays valid after the file has been closed, so this storage doesn't
+ * keep any file handle open.
+ */
+class MappedBlocStorage implements BlocStorage
+{
+    /**
+     * Files bigger than that are mapped in several chunks. Since the blocs are a power of 2 and
+     * aligned, they won't cross a chunk boundary.
+     */
+    private static final int CHUNK_BITS=30;
+
+    private static final long CHUNK_SIZE=1L<<CHUNK_BITS;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final long length;
+
+    private final int xor;
+
+    public MappedBlocStorage(File file) throws IOException
+    {
+        RandomAccessFile input=new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel=input.getChannel();
+            length=channel.size();
+            if(length==0)
+                throw new IOException("Empty file: "+file);
+            chunks=new MappedByteBuffer[(int)((length+CHUNK_SIZE-1)>>>CHUNK_BITS)];
+            for(int cpt=0; cpt<chunks.length; ++cpt)
+            {
+                long start=cpt*CHUNK_SIZE;
+                chunks[cpt]=channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length-start));
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        xor=chunks[0].get(0)&0xFF;
+    }
+
+    public ByteBuffer getBloc(long pos, int size) throws IOException
+    {
+        if(pos<0 || pos>=length)
+            throw new IOException("Bloc out of the file: pos="+pos+" length="+length);
+        int chunk=(int)(pos>>>CHUNK_BITS);
+        int posInChunk=(int)(pos&(CHUNK_SIZE-1));
+        MappedByteBuffer content=chunks[chunk];
+        if(posInChunk+size<=content.capacity())
+        {
+            ByteBuffer result=content.duplicate();
+            result.position(posInChunk);
+            result.limit(posInChunk+size);
+            return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        else
+        {
+            //last bloc of the file (truncated) or crossing a chunk boundary
+            byte[] result=new byte[size];
+            for(int cpt=0; cpt<size && pos+cpt<length; ++cpt)
+            {
+                long cur=pos+cpt;
+                result[cpt]=chunks[(int)(cur>>>CHUNK_BITS)].get((int)(cur&(CHUNK_SIZE-1)));
+            }
+            return ByteBuffer.wrap(result).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public ByteBuffer getRegion(long pos, long size) throws IOException
+    {
+        if(pos<0 || size>Integer.MAX_VALUE || pos+size>length)
+            return null;
+        int chunk=(int)(pos>>>CHUNK_BITS);
+        int posInChunk=(int)(pos&(CHUNK_SIZE-1));
+        MappedByteBuffer content=chunks[chunk];
+        if(posInChunk+size>content.capacity())
+            return null;
+        ByteBuffer result=content.duplicate();
+        result.position(posInChunk);
+        result.limit(posInChunk+(int)size);
+        return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getXor()
+    {
+        return xor;
+    }
+
+    public boolean isCopying()
+    {
+        return false;
+    }
+
+    public void close()
+    {
+        //nothing to do, the mapped regions are freed by the GC
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Completion of the names of the maps (places, streets...) from the first letters typed.
+ * <p>Built once from the indexes of the names of the maps (see {@link LabelIndex} and
+ * {@link ImgFilesBag#getNameCompleter()}). The distinct names are kept in a table sorted by
+ * their normalized key (upper case, without accents). A second table, sorted the same way,
+ * has an entry for each word of the names after the first one, so "gen" completes
+ * "Rue du General Dufour". A completion is two binary searches in these tables.
+ * <p>For each name, the positions of the objects using it are kept (the center of their
+ * sub-division), one per sub-division, kind and type of object, so the completions can be
+ * filtered like a search.
+ * <p>Immutable once built, can be used by several threads.
+ */
+public class NameCompleter
+{
+    /**
+     * The names, sorted by key.
+     */
+    private final String[] names;
+
+    /**
+     * The normalized keys of the names, one after the other.
+     */
+    private final char[] keys;
+
+    /**
+     * nbNames+1 elements, where each key starts in keys.
+     */
+    private final int[] keyStarts;
+
+    /**
+     * For each word after the first one, the name and the position of the word in keys.
+     * Sorted by the key from this position.
+     */
+    private final int[] wordNames;
+
+    private final int[] wordStarts;
+
+    /**
+     * nbNames+1 elements, where the locations of each name start.
+     */
+    private final int[] locationStarts;
+
+    private final int[] longitudes;
+
+    private final int[] latitudes;
+
+    /**
+     * The {@link ObjectKind} of each location.
+     */
+    private final int[] kinds;
+
+    private final int[] types;
+
+    private NameCompleter(String[] names, char[] keys, int[] keyStarts, int[] wordNames, int[] wordStarts,
+                          int[] locationStarts, int[] longitudes, int[] latitudes, int[] kinds, int[] types)
+    {
+        this.names=names;
+        this.keys=keys;
+        this.keyStarts=keyStarts;
+        this.wordNames=wordNames;
+        this.wordStarts=wordStarts;
+        this.locationStarts=locationStarts;
+        this.longitudes=longitudes;
+        this.latitudes=latitudes;
+        this.kinds=kinds;
+        this.types=types;
+    }
+
+    /**
+     * Build the completer from the indexes of the names of the TRE files (see {@link LabelIndex}),
+     * without reading the objects again. An index not restored from the {@link MapIndex} is built
+     * the first time, which means decoding its TRE file once.
+     *
+     * @param objectKindFilter What kind of objects to take the names from (see {@link ObjectKind}).
+     * @param objectTypeFilter If not null, the types of objects to take the names from.
+     */
+    public static NameCompleter build(ImgFilesBag maps, final int objectKindFilter, final BitSet objectTypeFilter) throws IOException
+    {
+        final int minLongitude=maps.getMinLongitude();
+        final int maxLongitude=maps.getMaxLongitude();
+        final int minLatitude=maps.getMinLatitude();
+        final int maxLatitude=maps.getMaxLatitude();
+        List<ImgFileBag> files=new ArrayList<ImgFileBag>(maps.findFiles(true, minLongitude, maxLongitude, minLatitude, maxLatitude));
+        files.addAll(maps.findFiles(false, minLongitude, maxLongitude, minLatitude, maxLatitude));
+
+        //group the uses of the names, from all the TRE files
+        final Map<String, Locations> byName=new HashMap<String, Locations>();
+        for(ImgFileBag file : files)
+        {
+            List<TreSubFile> tres=file.getTreFilesToRead(minLongitude, maxLongitude, minLatitude, maxLatitude);
+            if(tres==null)
+                continue;
+            for(TreSubFile tre : tres)
+            {
+                //only the sub-divisions with the highest details, the index has all the levels
+                final Map<Integer, SubDivision> subDivisions=new HashMap<Integer, SubDivision>();
+                for(SubDivision subDivision : tre.getSubDivisionsToRead(minLongitude, maxLongitude, minLatitude, maxLatitude, 1))
+                {
+                    subDivisions.put(subDivision.getIndex(), subDivision);
+                }
+                file.getLabelIndex(tre).visitPostings(new LabelIndex.PostingVisitor()
+                {
+                    public void visit(String name, int subDivisionIndex, int kind, int type)
+                    {
+                        SubDivision subDivision=subDivisions.get(subDivisionIndex);
+                        if(subDivision==null || (kind&objectKindFilter)==0 ||
+                           (objectTypeFilter!=null && !objectTypeFilter.get(type)) || name.trim().length()==0)
+                            return;
+                        Locations locations=byName.get(name);
+                        if(locations==null)
+                        {
+                            locations=new Locations();
+                            byName.put(name, locations);
+                        }
+                        locations.add(subDivision.getLongitudeCenter(), subDivision.getLatitudeCenter(), kind, type);
+                    }
+                });
+            }
+        }
+
+        final int nbNames=byName.size();
+        final String[] names=byName.keySet().toArray(new String[nbNames]);
+        final String[] nameKeys=new String[nbNames];
+        Integer[] order=new Integer[nbNames];
+        for(int cpt=0; cpt<nbNames; ++cpt)
+        {
+            nameKeys[cpt]=normalize(names[cpt]);
+            order[cpt]=cpt;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer o1, Integer o2)
+            {
+                int result=nameKeys[o1].compareTo(nameKeys[o2]);
+                return result!=0 ? result : names[o1].compareTo(names[o2]);
+            }
+        });
+
+        String[] sortedNames=new String[nbNames];
+        int[] keyStarts=new int[nbNames+1];
+        int[] locationStarts=new int[nbNames+1];
+        StringBuilder keys=new StringBuilder();
+        Locations locations=new Locations();
+        for(int cpt=0; cpt<nbNames; ++cpt)
+        {
+            final int name=order[cpt];
+            sortedNames[cpt]=names[name];
+            keyStarts[cpt]=keys.length();
+            keys.append(nameKeys[name]);
+            locationStarts[cpt]=locations.size;
+            locations.addAll(byName.get(names[name]));
+        }
+        keyStarts[nbNames]=keys.length();
+        locationStarts[nbNames]=locations.size;
+
+        char[] keyChars=new char[keys.length()];
+        keys.getChars(0, keyChars.length, keyChars, 0);
+        long[] words=findWords(keyChars, keyStarts);
+        return new NameCompleter(sortedNames, keyChars, keyStarts, getHighs(words), getLows(words),
+                                 locationStarts, Arrays.copyOf(locations.longitudes, locations.size),
+                                 Arrays.copyOf(locations.latitudes, locations.size),
+                                 Arrays.copyOf(locations.kinds, locations.size), Arrays.copyOf(locations.types, locations.size));
+    }
+
+    /**
+     * @return For each word after the first one, the name in the high 32 bits and the position
+     *         in the keys in the low 32 bits, sorted by the key from the word.
+     */
+    private static long[] findWords(final char[] keys, int[] keyStarts)
+    {
+        List<Long> words=new ArrayList<Long>();
+        for(int name=0; name<keyStarts.length-1; ++name)
+        {
+            for(int cpt=keyStarts[name]+1; cpt<keyStarts[name+1]; ++cpt)
+            {
+                if(Character.isLetterOrDigit(keys[cpt]) && !Character.isLetterOrDigit(keys[cpt-1]))
+                    words.add((long)name<<32|cpt);
+            }
+        }
+        final int[] ends=new int[keys.length];
+        for(int name=0; name<keyStarts.length-1; ++name)
+        {
+            Arrays.fill(ends, keyStarts[name], keyStarts[name+1], keyStarts[name+1]);
+        }
+        Long[] sorted=words.toArray(new Long[words.size()]);
+        Arrays.sort(sorted, new Comparator<Long>()
+        {
+            public int compare(Long o1, Long o2)
+            {
+                int pos1=(int)(long)o1;
+                int pos2=(int)(long)o2;
+                int result=compareRanges(keys, pos1, ends[pos1], pos2, ends[pos2]);
+                return result!=0 ? result : Long.compare(o1, o2);
+            }
+        });
+        long[] result=new long[sorted.length];
+        for(int cpt=0; cpt<sorted.length; ++cpt)
+            result[cpt]=sorted[cpt];
+        return result;
+    }
+
+    private static int compareRanges(char[] chars, int start1, int end1, int start2, int end2)
+    {
+        final int length1=end1-start1;
+        final int length2=end2-start2;
+        final int min=Math.min(length1, length2);
+        for(int cpt=0; cpt<min; ++cpt)
+        {
+            int diff=chars[start1+cpt]-chars[start2+cpt];
+            if(diff!=0)
+                return diff;
+        }
+        return length1-length2;
+    }
+
+    private static int[] getHighs(long[] values)
+    {
+        int[] result=new int[values.length];
+        for(int cpt=0; cpt<values.length; ++cpt)
+            result[cpt]=(int)(values[cpt]>>>32);
+        return result;
+    }
+
+    private static int[] getLows(long[] values)
+    {
+        int[] result=new int[values.length];
+        for(int cpt=0; cpt<values.length; ++cpt)
+            result[cpt]=(int)values[cpt];
+        return result;
+    }
+
+    /**
+     * @return The key used for the completion: in upper case and without the accents.
+     */
+    public static String normalize(String text)
+    {
+        String decomposed=Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder result=new StringBuilder(decomposed.length());
+        for(int cpt=0; cpt<decomposed.length(); ++cpt)
+        {
+            char cur=decomposed.charAt(cpt);
+            if(Character.getType(cur)!=Character.NON_SPACING_MARK)
+                result.append(Character.toUpperCase(cur));
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return At most max names starting with the given text, followed by the names having a word
+     *         starting with it. Each group is in alphabetical order.
+     */
+    public List<Completion> complete(String prefix, int max)
+    {
+        return createSession().complete(prefix, max);
+    }
+
+    /**
+     * Same as {@link #complete(String, int)}, but only with the objects matching the filters.
+     */
+    public List<Completion> complete(String prefix, int max, int objectKindFilter, BitSet objectTypeFilter)
+    {
+        return createSession().complete(prefix, max, objectKindFilter, objectTypeFilter);
+    }
+
+    /**
+     * @return A session for the completions of a text typed letter by letter. Each completion
+     *         searches only among the results of the previous one, when the text has been extended.
+     */
+    public Session createSession()
+    {
+        return new Session();
+    }
+
+    public int getNbNames()
+    {
+        return names.length;
+    }
+
+    /**
+     * @return The first entry of the table having a key greater or equal to the prefix,
+     *         searched between low and high.
+     */
+    private int findFirst(boolean wordTable, String prefix, int low, int high)
+    {
+        while(low<high)
+        {
+            int mid=(low+high)>>>1;
+            if(compareToPrefix(wordTable, mid, prefix)<0)
+                low=mid+1;
+            else
+                high=mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return The first entry after low not starting with the prefix.
+     */
+    private int findEnd(boolean wordTable, String prefix, int low, int high)
+    {
+        while(low<high)
+        {
+            int mid=(low+high)>>>1;
+            if(compareToPrefix(wordTable, mid, prefix)<=0)
+                low=mid+1;
+            else
+                high=mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return 0 if the key of the entry starts with the prefix, otherwise the result of
+     *         comparing the key with the prefix.
+     */
+    private int compareToPrefix(boolean wordTable, int entry, String prefix)
+    {
+        final int name=wordTable ? wordNames[entry] : entry;
+        final int start=wordTable ? wordStarts[entry] : keyStarts[entry];
+        final int length=keyStarts[name+1]-start;
+        final int min=Math.min(length, prefix.length());
+        for(int cpt=0; cpt<min; ++cpt)
+        {
+            int diff=keys[start+cpt]-prefix.charAt(cpt);
+            if(diff!=0)
+                return diff;
+        }
+        return length>=prefix.length() ? 0 : -1;
+    }
+
+    /**
+     * @return The locations of the name matching the filters, null if all of them match.
+     */
+    private int[] getMatchingLocations(int name, int objectKindFilter, BitSet objectTypeFilter)
+    {
+        final int start=locationStarts[name];
+        final int end=locationStarts[name+1];
+        int[] result=new int[end-start];
+        int nb=0;
+        for(int cpt=start; cpt<end; ++cpt)
+        {
+            if((kinds[cpt]&objectKindFilter)!=0 && (objectTypeFilter==null || objectTypeFilter.get(types[cpt])))
+                result[nb++]=cpt;
+        }
+        return nb==result.length ? null : Arrays.copyOf(result, nb);
+    }
+
+    /**
+     * A name found for a prefix, with the positions of the objects using it.
+     */
+    public final class Completion
+    {
+        private final int name;
+
+        /**
+         * The matching locations, null for all the ones of the name.
+         */
+        private final int[] locations;
+
+        private Completion(int name, int[] locations)
+        {
+            this.name=name;
+            this.locations=locations;
+        }
+
+        public String getName()
+        {
+            return names[name];
+        }
+
+        public int getNbLocations()
+        {
+            return locations!=null ? locations.length : locationStarts[name+1]-locationStarts[name];
+        }
+
+        public int getLongitude(int location)
+        {
+            return longitudes[getIndex(location)];
+        }
+
+        public int getLatitude(int location)
+        {
+            return latitudes[getIndex(location)];
+        }
+
+        private int getIndex(int location)
+        {
+            return locations!=null ? locations[location] : locationStarts[name]+location;
+        }
+
+        public String toString()
+        {
+            return getName();
+        }
+    }
+
+    /**
+     * Remembers the ranges of the tables matching the last prefix. Not thread safe.
+     */
+    public final class Session
+    {
+        private String prefix=null;
+
+        private int nameLow;
+
+        private int nameHigh;
+
+        private int wordLow;
+
+        private int wordHigh;
+
+        private Session()
+        {
+        }
+
+        public List<Completion> complete(String text, int max)
+        {
+            return complete(text, max, ObjectKind.ALL, null);
+        }
+
+        /**
+         * @param objectKindFilter The kinds of objects (see {@link ObjectKind}) the completions must have.
+         * @param objectTypeFilter If not null, the types of objects the completions must have.
+         */
+        public List<Completion> complete(String text, int max, int objectKindFilter, BitSet objectTypeFilter)
+        {
+            String newPrefix=normalize(text);
+            if(prefix==null || !newPrefix.startsWith(prefix))
+            {
+                //not a narrowing of the previous search
+                nameLow=0;
+                nameHigh=names.length;
+                wordLow=0;
+                wordHigh=wordNames.length;
+            }
+            prefix=newPrefix;
+            nameLow=findFirst(false, prefix, nameLow, nameHigh);
+            nameHigh=findEnd(false, prefix, nameLow, nameHigh);
+            wordLow=findFirst(true, prefix, wordLow, wordHigh);
+            wordHigh=findEnd(true, prefix, wordLow, wordHigh);
+
+            List<Completion> result=new ArrayList<Completion>(Math.min(max, 16));
+            final boolean filtered=objectKindFilter!=ObjectKind.ALL || objectTypeFilter!=null;
+            for(int cpt=nameLow; cpt<nameHigh && result.size()<max; ++cpt)
+            {
+                addCompletion(result, cpt, filtered, objectKindFilter, objectTypeFilter);
+            }
+            BitSet taken=new BitSet();
+            for(int cpt=wordLow; cpt<wordHigh && result.size()<max; ++cpt)
+            {
+                final int name=wordNames[cpt];
+                //already found by the start of its name or by another word
+                if(compareToPrefix(false, name, prefix)==0 || taken.get(name))
+                    continue;
+                taken.set(name);
+                addCompletion(result, name, filtered, objectKindFilter, objectTypeFilter);
+            }
+            return result;
+        }
+
+        private void addCompletion(List<Completion> result, int name, boolean filtered, int objectKindFilter, BitSet objectTypeFilter)
+        {
+            int[] locations=null;
+            if(filtered)
+            {
+                locations=getMatchingLocations(name, objectKindFilter, objectTypeFilter);
+                if(locations!=null && locations.length==0)
+                    return;
+            }
+            result.add(new Completion(name, locations));
+        }
+    }
+
+    private static class Locations
+    {
+        private int[] longitudes=new int[2];
+
+        private int[] latitudes=new int[2];
+
+        private int[] kinds=new int[2];
+
+        private int[] types=new int[2];
+
+        private int size=0;
+
+        public void add(int longitude, int latitude, int kind, int type)
+        {
+            if(size==longitudes.length)
+            {
+                longitudes=Arrays.copyOf(longitudes, size*2);
+                latitudes=Arrays.copyOf(latitudes, size*2);
+                kinds=Arrays.copyOf(kinds, size*2);
+                types=Arrays.copyOf(types, size*2);
+            }
+            longitudes[size]=longitude;
+            latitudes[size]=latitude;
+            kinds[size]=kind;
+            types[size]=type;
+            size++;
+        }
+
+        public void addAll(Locations other)
+        {
+            for(int cpt=0; cpt<other.size; ++cpt)
+                add(other.longitudes[cpt], other.latitudes[cpt], other.kinds[cpt], other.types[cpt]);
+        }
+    }
+}
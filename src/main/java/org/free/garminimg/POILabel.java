@@ -36,25 +36,36 @@ public class POILabel extends Label
 
     private String phone=null;
 
-    private boolean fullInitDone=false;
+    private volatile boolean fullInitDone=false;
 
     public POILabel(ImgFileBag file, String filename, int labelOffset)
     {
         super(file, filename, labelOffset);
     }
 
+    protected int getHandleKind()
+    {
+        return LabelHandle.KIND_POI;
+    }
+
     protected void init() throws IOException
     {
         name=file.getLblFile(filename).getPOIName(labelOffset);
     }
 
-    private synchronized void fullInitIfNeeded() throws IOException
+    private void fullInitIfNeeded() throws IOException
     {
         if(!fullInitDone)
         {
-            fullInit();
-            fullInitDone=true;
-            initDone=true;
+            synchronized(this)
+            {
+                if(!fullInitDone)
+                {
+                    fullInit();
+                    fullInitDone=true;
+                    initDone=true;
+                }
+            }
         }
     }
 
@@ -0,0 +1,183 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A read-only R-tree of boxes, packed with the Sort-Tile-Recursive algorithm.
+ * The items are identified by their index in the arrays given to the constructor.
+ * <p>All the nodes are stored in primitive arrays, level by level, starting with
+ * the leaves. The children of a node are consecutive in the level below.
+ * <p>Immutable, so thread safe.
+ */
+class PackedRTree
+{
+    private static final int NODE_SIZE=16;
+
+    private final int[] minLons;
+
+    private final int[] maxLons;
+
+    private final int[] minLats;
+
+    private final int[] maxLats;
+
+    /**
+     * The item of each leaf.
+     */
+    private final int[] items;
+
+    /**
+     * Position of the end of each level (exclusive), the leaves being the level 0.
+     */
+    private final int[] levelEnds;
+
+    public PackedRTree(int[] itemMinLons, int[] itemMaxLons, int[] itemMinLats, int[] itemMaxLats)
+    {
+        final int nbItems=itemMinLons.length;
+
+        int nbLevels=0;
+        int[] ends=new int[32];
+        int total=0;
+        int levelSize=nbItems;
+        while(true)
+        {
+            total+=levelSize;
+            ends[nbLevels++]=total;
+            if(levelSize<=1)
+                break;
+            levelSize=(levelSize+NODE_SIZE-1)/NODE_SIZE;
+        }
+        levelEnds=new int[nbLevels];
+        System.arraycopy(ends, 0, levelEnds, 0, nbLevels);
+
+        minLons=new int[total];
+        maxLons=new int[total];
+        minLats=new int[total];
+        maxLats=new int[total];
+        items=new int[nbItems];
+
+        //the leaves: sorted by longitude, then cut in vertical slices sorted by latitude
+        long[] keys=new long[nbItems];
+        for(int cpt=0; cpt<nbItems; ++cpt)
+        {
+            keys[cpt]=(long)center(itemMinLons[cpt], itemMaxLons[cpt])<<32|cpt;
+        }
+        Arrays.sort(keys);
+        int nbLeafNodes=(nbItems+NODE_SIZE-1)/NODE_SIZE;
+        int sliceSize=(int)Math.ceil(Math.sqrt(nbLeafNodes))*NODE_SIZE;
+        for(int start=0; start<nbItems; start+=sliceSize)
+        {
+            int end=Math.min(start+sliceSize, nbItems);
+            for(int cpt=start; cpt<end; ++cpt)
+            {
+                int item=(int)keys[cpt];
+                keys[cpt]=(long)center(itemMinLats[item], itemMaxLats[item])<<32|item;
+            }
+            Arrays.sort(keys, start, end);
+        }
+        for(int cpt=0; cpt<nbItems; ++cpt)
+        {
+            int item=(int)keys[cpt];
+            items[cpt]=item;
+            minLons[cpt]=itemMinLons[item];
+            maxLons[cpt]=itemMaxLons[item];
+            minLats[cpt]=itemMinLats[item];
+            maxLats[cpt]=itemMaxLats[item];
+        }
+
+        //the nodes: the union of their children
+        for(int level=1; level<nbLevels; ++level)
+        {
+            int childEnd=levelEnds[level-1];
+            int childPos=getLevelStart(level-1);
+            for(int pos=getLevelStart(level); pos<levelEnds[level]; ++pos)
+            {
+                int end=Math.min(childPos+NODE_SIZE, childEnd);
+                int minLon=Integer.MAX_VALUE;
+                int maxLon=Integer.MIN_VALUE;
+                int minLat=Integer.MAX_VALUE;
+                int maxLat=Integer.MIN_VALUE;
+                for(; childPos<end; ++childPos)
+                {
+                    minLon=Math.min(minLon, minLons[childPos]);
+                    maxLon=Math.max(maxLon, maxLons[childPos]);
+                    minLat=Math.min(minLat, minLats[childPos]);
+                    maxLat=Math.max(maxLat, maxLats[childPos]);
+                }
+                minLons[pos]=minLon;
+                maxLons[pos]=maxLon;
+                minLats[pos]=minLat;
+                maxLats[pos]=maxLat;
+            }
+        }
+    }
+
+    private static int center(int min, int max)
+    {
+        return (int)(((long)min+max)>>1);
+    }
+
+    private int getLevelStart(int level)
+    {
+        return level==0?0:levelEnds[level-1];
+    }
+
+    public int getNbItems()
+    {
+        return items.length;
+    }
+
+    /**
+     * Find the items matching the given box, with the same semantic as
+     * {@link CoordUtils#matchesCoordinates(int, int, int, int, int, int, int, int)}.
+     *
+     * @param result The bits of the matching items are set in it.
+     */
+    public void query(int minLon, int maxLon, int minLat, int maxLat, BitSet result)
+    {
+        if(items.length>0)
+        {
+            int top=levelEnds.length-1;
+            query(top, getLevelStart(top), levelEnds[top], minLon, maxLon, minLat, maxLat, result);
+        }
+    }
+
+    private void query(int level, int start, int end, int minLon, int maxLon, int minLat, int maxLat, BitSet result)
+    {
+        for(int pos=start; pos<end; ++pos)
+        {
+            if(minLons[pos]>maxLon || maxLons[pos]<minLon || minLats[pos]>maxLat || maxLats[pos]<minLat)
+                continue;
+            if(level==0)
+            {
+                result.set(items[pos]);
+            }
+            else
+            {
+                int childStart=getLevelStart(level-1)+(pos-getLevelStart(level))*NODE_SIZE;
+                int childEnd=Math.min(childStart+NODE_SIZE, levelEnds[level-1]);
+                query(level-1, childStart, childEnd, minLon, maxLon, minLat, maxLat, result);
+            }
+        }
+    }
+}
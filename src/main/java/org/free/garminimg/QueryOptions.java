@@ -0,0 +1,126 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Options for one read of the maps (see
+ * {@link ImgFilesBag#readMap(int, int, int, int, int, int, java.util.BitSet, MapListener, QueryOptions)}).
+ * <p>The read is stopped if the cancellation token is cancelled or if the deadline is
+ * reached. This is checked before each sub-division, so the objects of a sub-division
+ * are always sent completely.
+ * <p>Keeps the status of the read, so an instance must be used for only one read at a time.
+ * A stopped read can be continued with {@link #reset()}.
+ */
+public class QueryOptions
+{
+    private CancellationToken cancellationToken=null;
+
+    /**
+     * In ms, as returned by System.currentTimeMillis(). 0 if none.
+     */
+    private long deadline=0;
+
+    private volatile QueryStatus status=QueryStatus.COMPLETE;
+
+    public QueryOptions()
+    {
+    }
+
+    public QueryOptions(CancellationToken cancellationToken)
+    {
+        this.cancellationToken=cancellationToken;
+    }
+
+    public CancellationToken getCancellationToken()
+    {
+        return cancellationToken;
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken)
+    {
+        this.cancellationToken=cancellationToken;
+    }
+
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * @param deadline The time (as returned by System.currentTimeMillis()) after which the read
+     *                 must stop. 0 for no deadline.
+     */
+    public void setDeadline(long deadline)
+    {
+        this.deadline=deadline;
+    }
+
+    /**
+     * Set the deadline to now plus the given number of milliseconds.
+     */
+    public void setTimeout(long timeout)
+    {
+        deadline=System.currentTimeMillis()+timeout;
+    }
+
+    /**
+     * @return How the read ended, or {@link QueryStatus#COMPLETE} if it was not stopped (yet).
+     */
+    public QueryStatus getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Forget the status of the previous read.
+     */
+    public void reset()
+    {
+        status=QueryStatus.COMPLETE;
+    }
+
+    /**
+     * @return True if the read must stop. Once stopped, stays stopped.
+     */
+    boolean mustStop()
+    {
+        if(status!=QueryStatus.COMPLETE)
+            return true;
+        if(cancellationToken!=null && cancellationToken.isCancelled())
+        {
+            status=QueryStatus.CANCELLED;
+            return true;
+        }
+        if(deadline!=0 && System.currentTimeMillis()>deadline)
+        {
+            status=QueryStatus.DEADLINE_EXCEEDED;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the given options say that the read must stop.
+     */
+    static boolean mustStop(QueryOptions options)
+    {
+        return options!=null && options.mustStop();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * How a read of the maps ended.
+ *
+ * @see QueryOptions
+ */
+public enum QueryStatus
+{
+    /**
+     * Everything has been sent to the listener.
+     */
+    COMPLETE,
+    /**
+     * Stopped by its {@link CancellationToken}, only a part of the objects have been sent.
+     */
+    CANCELLED,
+    /**
+     * Stopped because the deadline was reached, only a part of the objects have been sent.
+     */
+    DEADLINE_EXCEEDED
+}
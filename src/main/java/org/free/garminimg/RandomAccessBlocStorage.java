@@ -0,0 +1,121 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the blocs from a pooled {@link ImgFileInputStream}, using positional
+ * reads. Since the position of the file is not touched, any number of threads can
+ * read at the same time. Every bloc is copied in a new buffer.
+ * <p>A thread interrupted while reading closes the channel, for every thread using
+ * the same handle. The handle is then dropped from the pool and the other threads
+ * retry with a new one.
+ */
+class RandomAccessBlocStorage implements BlocStorage
+{
+    /**
+     * How many times to try reading a bloc when the file is closed by other threads.
+     */
+    private static final int MAX_ATTEMPTS=5;
+
+    private final ImgFileBag fileBag;
+
+    private final int xor;
+
+    public RandomAccessBlocStorage(ImgFileBag fileBag) throws IOException
+    {
+        this.fileBag=fileBag;
+        FileHandlePool.Handle handle=fileBag.acquireInput();
+        try
+        {
+            xor=handle.getInput().getXor();
+        }
+        finally
+        {
+            handle.release();
+        }
+    }
+
+    public ByteBuffer getBloc(long pos, int size) throws IOException
+    {
+        ByteBuffer result=ByteBuffer.allocate(size);
+        for(int attempt=1; ; ++attempt)
+        {
+            FileHandlePool.Handle handle=fileBag.acquireInput();
+            try
+            {
+                FileChannel channel=handle.getInput().getChannel();
+                while(result.hasRemaining())
+                {
+                    if(channel.read(result, pos+result.position())<0)
+                        break;   //end of file, the rest stays at 0
+                }
+                break;
+            }
+            catch(ClosedByInterruptException e)
+            {
+                //we closed it
+                handle.invalidate();
+                throw e;
+            }
+            catch(ClosedChannelException e)
+            {
+                //closed by another thread being interrupted
+                handle.invalidate();
+                if(attempt>=MAX_ATTEMPTS || Thread.currentThread().isInterrupted())
+                    throw e;
+                result.clear();
+            }
+            finally
+            {
+                handle.release();
+            }
+        }
+        result.clear();
+        return result.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ByteBuffer getRegion(long pos, long size)
+    {
+        //would have to copy everything
+        return null;
+    }
+
+    public int getXor()
+    {
+        return xor;
+    }
+
+    public boolean isCopying()
+    {
+        return true;
+    }
+
+    public void close()
+    {
+        //the input is closed by the ImgFileBag
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Same as {@link MapListener}, but the labels are given as handles (see {@link LabelHandle}).
+ * No {@link Label} is created while reading the maps; the listeners needing a name ask it
+ * to {@link LabelResolver}.
+ *
+ * @see ImgFilesBag#readMapRaw(int, int, int, int, int, int, java.util.BitSet, RawMapListener)
+ */
+public interface RawMapListener
+{
+    /**
+     * @param label The handle of the label, {@link LabelHandle#NONE} if there is none.
+     * @see MapListener#addPoint
+     */
+    void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed);
+
+    /**
+     * @param label The handle of the label, {@link LabelHandle#NONE} if there is none.
+     * @see MapListener#addPoly
+     */
+    void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction);
+
+    /**
+     * @see MapListener#startMap
+     */
+    void startMap(ImgFileBag file);
+
+    /**
+     * @see MapListener#startSubDivision
+     */
+    void startSubDivision(SubDivision subDivision);
+
+    /**
+     * @see MapListener#finishPainting
+     */
+    void finishPainting();
+}
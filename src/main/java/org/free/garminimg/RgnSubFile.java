@@ -42,11 +42,70 @@ class RgnSubFile extends ImgSubFile
 
     private static final int SEG_POS_POLYGON=3;
 
+    /**
+     * The id of this file in the label handles.
+     */
+    private int id;
+
     public RgnSubFile(String filename, String filetype, int fileSize, int blocSize, ImgFileBag fileBag)
     {
         super(filename, filetype, fileSize, blocSize, fileBag);
     }
 
+    void setId(int id)
+    {
+        this.id=id;
+    }
+
+    /**
+     * @param kind One of the LabelHandle.KIND_* constants.
+     */
+    long createLabelHandle(int kind, int offset)
+    {
+        return LabelHandle.create(kind, fileBag.getId(), id, offset);
+    }
+
+    /**
+     * @return A new label of the given kind, null if kind is 0.
+     */
+    Label createLabel(int kind, int offset)
+    {
+        switch(kind)
+        {
+            case LabelHandle.KIND_SIMPLE:
+                return new SimpleLabel(fileBag, getFilename(), offset);
+            case LabelHandle.KIND_POI:
+                return new POILabel(fileBag, getFilename(), offset);
+            case LabelHandle.KIND_LINE_IN_NET:
+                return new LineInNetLabel(fileBag, getFilename(), offset);
+            case LabelHandle.KIND_CONTOUR:
+                return new ContourLabel(fileBag, getFilename(), offset);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The same name as the label created by {@link #createLabel}, without creating it.
+     */
+    String getLabelName(int kind, int offset) throws IOException
+    {
+        final String filename=getFilename();
+        switch(kind)
+        {
+            case LabelHandle.KIND_SIMPLE:
+                return fileBag.getLblFile(filename).getLabel(offset);
+            case LabelHandle.KIND_POI:
+                return fileBag.getLblFile(filename).getPOIName(offset);
+            case LabelHandle.KIND_LINE_IN_NET:
+                return fileBag.getNetFile(filename).getRoadName(offset, fileBag.getLblFile(filename));
+            case LabelHandle.KIND_CONTOUR:
+                return ContourLabel.toMeters(fileBag.getLblFile(filename).getLabel(offset));
+            default:
+                return null;
+        }
+    }
+
     public void init() throws IOException
     {
         FileContext context=new FileContext();
@@ -56,8 +115,62 @@ class RgnSubFile extends ImgSubFile
         dataLength=readUInt32(context);
     }
 
-    public void parseSubDivision(SubDivision subDivision, LblSubFile lbl, NetSubFile net, MapListener listener,
+    public void parseSubDivision(SubDivision subDivision, LblSubFile lbl, NetSubFile net, RawMapListener listener,
                                  int targetLevel, int objectKindFilter, BitSet objectTypeFilter, RgnContext rgnContext) throws IOException
+    {
+        final SubDivisionCache cache=fileBag.getSubDivisionCache();
+        if(cache==null)
+        {
+            decodeSubDivision(subDivision, net, listener, targetLevel, objectKindFilter, objectTypeFilter, rgnContext);
+            return;
+        }
+
+        getCached(cache, subDivision, net, targetLevel, rgnContext).replay(this, listener, objectKindFilter, objectTypeFilter, rgnContext);
+    }
+
+    /**
+     * Decode the sub-division in memory, or take it from the cache.
+     *
+     * @return The decoded objects. Can contain objects not matching the filters (when coming
+     *         from the cache), they must be checked with {@link DecodedSubDivision#matches}.
+     */
+    DecodedSubDivision getDecoded(SubDivision subDivision, NetSubFile net, int targetLevel, int objectKindFilter,
+                                  BitSet objectTypeFilter, RgnContext rgnContext) throws IOException
+    {
+        final SubDivisionCache cache=fileBag.getSubDivisionCache();
+        if(cache!=null)
+            return getCached(cache, subDivision, net, targetLevel, rgnContext);
+        DecodedSubDivision.Builder builder=new DecodedSubDivision.Builder();
+        decodeSubDivision(subDivision, net, builder, targetLevel, objectKindFilter, objectTypeFilter, rgnContext);
+        return builder.build();
+    }
+
+    /**
+     * Decode all the objects of the sub-division, without using the cache.
+     */
+    void decodeAll(SubDivision subDivision, NetSubFile net, RawMapListener listener, RgnContext rgnContext) throws IOException
+    {
+        decodeSubDivision(subDivision, net, listener, subDivision.getLevel(), ObjectKind.ALL, null, rgnContext);
+    }
+
+    private DecodedSubDivision getCached(SubDivisionCache cache, SubDivision subDivision, NetSubFile net, int targetLevel,
+                                         RgnContext rgnContext) throws IOException
+    {
+        final TreSubFile tre=subDivision.getTre();
+        DecodedSubDivision decoded=cache.get(tre, subDivision.getIndex(), targetLevel);
+        if(decoded==null)
+        {
+            //everything is decoded, the filters are applied when replaying
+            DecodedSubDivision.Builder builder=new DecodedSubDivision.Builder();
+            decodeSubDivision(subDivision, net, builder, targetLevel, ObjectKind.ALL, null, rgnContext);
+            decoded=builder.build();
+            cache.put(tre, subDivision.getIndex(), targetLevel, decoded);
+        }
+        return decoded;
+    }
+
+    private void decodeSubDivision(SubDivision subDivision, NetSubFile net, RawMapListener listener, int targetLevel,
+                                   int objectKindFilter, BitSet objectTypeFilter, RgnContext rgnContext) throws IOException
     {
         Segment[] segments=getSegments(subDivision, rgnContext.context);
         if(segments==null)
@@ -110,14 +223,16 @@ class RgnSubFile extends ImgSubFile
             seek(segment.segmentStart, context);
             while(getNextReadPos(context)<segment.segmentEnd)
             {
-                int type=readByte(context);
-                int info=readUInt24(context);
+                int header=readInt32(context);
+                int type=header&0xFF;
+                int info=header>>>8;
                 boolean hasSubType=((info&0x800000)!=0); // The doc is wrong
                 // in that area...
                 boolean isPOI=((info&0x400000)!=0);
                 int lblOffset=info&0x3FFFFF;
-                int longitudeDelta=readInt16(context);
-                int latitudeDelta=readInt16(context);
+                int deltas=readInt32(context);
+                int longitudeDelta=(short)deltas;
+                int latitudeDelta=deltas>>16;
                 int subType=0;
                 if(hasSubType)
                 {
@@ -150,16 +265,18 @@ class RgnSubFile extends ImgSubFile
     /**
      * Parse all the poly[gons|lines] of the RGN and send the results to the listener.
      */
-    private void parsePoly(SubDivision subDivision, NetSubFile net, Segment segment, MapListener listener, boolean line,
+    private void parsePoly(SubDivision subDivision, NetSubFile net, Segment segment, RawMapListener listener, boolean line,
                            int targetLevel, BitSet objectTypeFilter, RgnContext rgnContext) throws IOException
     {
         final FileContext context=rgnContext.context;
         seek(segment.segmentStart, context);
-        final BitStreamReader reader=new BitStreamReader();
+        final BitStreamReader reader=new BitStreamReader(this);
 
         while(getNextReadPos(context)<segment.segmentEnd)
         {
-            int info=readByte(context);
+            //the fixed part of the header is read with two 32 bits reads
+            final int header=readInt32(context);
+            final int info=header&0xFF;
             int type;
             final boolean direction;
             if(line)
@@ -174,12 +291,13 @@ class RgnSubFile extends ImgSubFile
             }
             boolean twoBytesLen=(info&0x80)!=0;
 
-            info=readUInt24(context);
-            final int labelOffset=info&0x3FFFFF;
-            final boolean extraBit=(info&0x400000)!=0;
-            final boolean dataInNet=(info&0x800000)!=0;
-            final int longitudeDelta=readInt16(context);
-            final int latitudeDelta=readInt16(context);
+            final int labelInfo=header>>>8;
+            final int labelOffset=labelInfo&0x3FFFFF;
+            final boolean extraBit=(labelInfo&0x400000)!=0;
+            final boolean dataInNet=(labelInfo&0x800000)!=0;
+            final int deltas=readInt32(context);
+            final int longitudeDelta=(short)deltas;
+            final int latitudeDelta=deltas>>16;
             final int bitStreamLen;
             if(twoBytesLen)
                 bitStreamLen=readUInt16(context);
@@ -244,26 +362,25 @@ class RgnSubFile extends ImgSubFile
                 }
                 reader.finish(context);
 
-                Label label=null;
+                long label=LabelHandle.NONE;
                 if(labelOffset!=0)
                 {
-                    if(line && dataInNet)
+                    final int kind;
+                    if(line && type>=ImgConstants.MINOR_LAND_CONTOUR && type<=ImgConstants.MAJOR_DEPTH_CONTOUR)
                     {
-                        if(net!=null)
-                        {
-                            label=new LineInNetLabel(fileBag, getFilename(), labelOffset);
-                        }
-                        else
-                        {
-                            // I don't know what to do, here...
-                            label=new SimpleLabel(fileBag, getFilename(), labelOffset);
-                        }
+                        //contour lines are in feet
+                        kind=LabelHandle.KIND_CONTOUR;
+                    }
+                    else if(line && dataInNet && net!=null)
+                    {
+                        kind=LabelHandle.KIND_LINE_IN_NET;
                     }
                     else
                     {
-                        label=new SimpleLabel(fileBag, getFilename(), labelOffset);
+                        // if the data is in the NET file without NET file, I don't know what to do...
+                        kind=LabelHandle.KIND_SIMPLE;
                     }
-                    label=translateLabel(type, label, line);
+                    label=createLabelHandle(kind, labelOffset);
                 }
 
                 type=translateType(type, label, line);
@@ -272,7 +389,7 @@ class RgnSubFile extends ImgSubFile
             }
             else
             {
-                seek(getNextReadPos(context)+bitStreamLen, context);
+                skip(bitStreamLen, context);
             }
         }
         if(getNextReadPos(context)>segment.segmentEnd)
@@ -282,38 +399,25 @@ class RgnSubFile extends ImgSubFile
         }
     }
 
-    private Label translateLabel(int type, Label label, boolean line) throws IOException
-    {
-        if(label!=null && line)
-        {
-            if(type>=ImgConstants.MINOR_LAND_CONTOUR && type<=ImgConstants.MAJOR_DEPTH_CONTOUR)
-            {   //contour lines are in feet
-                //TODO: add some way to setup if we want feet or meters. For the moment, it's meters
-                double feet=Double.parseDouble(label.getName());
-                return new SimpleLabel(Integer.toString((int)Math.round(feet*0.3048/10)*10));
-            }
-        }
-        return label;
-    }
-
-    private int translateType(int type, Label label, boolean line) throws IOException
+    private int translateType(int type, long label, boolean line) throws IOException
     {
         switch(fileBag.getFamily())
         {
             case SWISS_TOPO:
-                if(label==null) return type;
+                if(label==LabelHandle.NONE) return type;
+                final String labelName=getLabelName(LabelHandle.getKind(label), LabelHandle.getOffset(label));
                 if(line)
                 {
-                    if(type<=0x14 && label.getName().equals("TUNNEL"))
+                    if(type<=0x14 && labelName.equals("TUNNEL"))
                         return type+ImgConstants.TUNNEL_SHIFT;
-                    else if(type<=0x06 && label.getName().equals("RUINE"))
+                    else if(type<=0x06 && labelName.equals("RUINE"))
                         return ImgConstants.RUINS;
                 }
                 else
                 {
                     if(type==0x13)
                     {
-                        String name=label.getName();
+                        String name=labelName;
                         if(name.equals("GARE") || name.equals("BAHNHOF"))
                             return ImgConstants.STATION_AREA;
                         else if((name.length()==8 && (name.startsWith("GRAVI") ||
@@ -323,8 +427,8 @@ class RgnSubFile extends ImgSubFile
 
                     }
                     else
-                    if(type==0x15 && ((label.getName().startsWith("FOR") && label.getName().length()==5 && label.getName().endsWith("T")) ||
-                                      label.getName().equals("WALD")))
+                    if(type==0x15 && ((labelName.startsWith("FOR") && labelName.length()==5 && labelName.endsWith("T")) ||
+                                      labelName.equals("WALD")))
                     {
                         return ImgConstants.FOREST;
                     }
@@ -349,19 +453,21 @@ class RgnSubFile extends ImgSubFile
     /**
      * Parse all the points of the RGN and send the results to the listener.
      */
-    private void parsePoints(SubDivision subDivision, Segment segment, MapListener listener, boolean indexed, int targetLevel, BitSet objectTypeFilter, ImgSubFile.FileContext context) throws IOException
+    private void parsePoints(SubDivision subDivision, Segment segment, RawMapListener listener, boolean indexed, int targetLevel, BitSet objectTypeFilter, ImgSubFile.FileContext context) throws IOException
     {
         seek(segment.segmentStart, context);
         while(getNextReadPos(context)<segment.segmentEnd)
         {
-            int type=readByte(context);
-            int info=readUInt24(context);
+            int header=readInt32(context);
+            int type=header&0xFF;
+            int info=header>>>8;
             boolean hasSubType=((info&0x800000)!=0); // The doc is wrong
             // in that area...
             boolean isPOI=((info&0x400000)!=0);
             int lblOffset=info&0x3FFFFF;
-            int longitudeDelta=readInt16(context);
-            int latitudeDelta=readInt16(context);
+            int deltas=readInt32(context);
+            int longitudeDelta=(short)deltas;
+            int latitudeDelta=deltas>>16;
             int subType=0;
             if(hasSubType)
             {
@@ -373,17 +479,10 @@ class RgnSubFile extends ImgSubFile
             if((curLevel==0 || curLevel-levelDiff<targetLevel) &&
                (objectTypeFilter==null || objectTypeFilter.get(type)))
             {
-                Label label=null;
+                long label=LabelHandle.NONE;
                 if(lblOffset!=0)
                 {
-                    if(isPOI)
-                    {
-                        label=new POILabel(fileBag, getFilename(), lblOffset);
-                    }
-                    else
-                    {
-                        label=new SimpleLabel(fileBag, getFilename(), lblOffset);
-                    }
+                    label=createLabelHandle(isPOI?LabelHandle.KIND_POI:LabelHandle.KIND_SIMPLE, lblOffset);
                 }
 
                 listener.addPoint(type, subType, subDivision.getLongitude(longitudeDelta, 0), subDivision.getLatitude(
@@ -399,9 +498,12 @@ class RgnSubFile extends ImgSubFile
     private Segment[] getSegments(SubDivision subDivision, ImgSubFile.FileContext context) throws IOException
     {
         long offset=subDivision.getDataOffset()+dataOffset;
-        if(subDivision.getDataEnd()==0)
-            subDivision.setDataEnd(dataLength);
-        long end=subDivision.getDataEnd()+dataOffset;
+        //the last sub-division ends with the data, not modified in the sub-division
+        //since it may be read by other threads
+        long dataEnd=subDivision.getDataEnd();
+        if(dataEnd==0)
+            dataEnd=dataLength;
+        long end=dataEnd+dataOffset;
         if(subDivision.getDataOffset()==0)
         {
             return null;
@@ -503,34 +605,45 @@ class RgnSubFile extends ImgSubFile
 
     /**
      * Reads a series of bits from the RGN file regardless of the Bytes limits.
+     * <p>Up to 64 bits are buffered, loaded 32 bits at a time when possible.
      */
-    private class BitStreamReader
+    static final class BitStreamReader
     {
-        int length;
+        private final ImgSubFile file;
+
+        /**
+         * Number of bytes of the stream not loaded yet.
+         */
+        private int length;
 
-        int remainingBits;
+        /**
+         * The loaded bits not consumed yet, the next one is the LSB.
+         */
+        private long bits;
 
-        int curByte;
+        private int nbBits;
+
+        BitStreamReader(ImgSubFile file)
+        {
+            this.file=file;
+        }
 
         public final void reset(int length)
         {
             this.length=length;
-            remainingBits=0;
+            bits=0;
+            nbBits=0;
         }
 
         public final void finish(FileContext context) throws IOException
         {
-            while(length>0)
-            {
-                readByte(context);
-                --length;
-            }
-
+            file.skip(length, context);
+            length=0;
         }
 
         public final boolean hasNext(int nbBits)
         {
-            return length*8+remainingBits>=nbBits;
+            return length*8+this.nbBits>=nbBits;
         }
 
         public final int readCoordOffset(int nbBits, int sign, int extraBit, FileContext context) throws IOException
@@ -597,42 +710,36 @@ class RgnSubFile extends ImgSubFile
             }
         }
 
+        /**
+         * @param toGet Between 1 and 32.
+         */
         public final int readNextBits(int toGet, FileContext context) throws IOException
         {
-            int curPos=0;
-            int result=0;
-            do
+            if(nbBits<toGet)
             {
-                getSomethingIfNeeded(context);
-                final int remainingToGet=toGet-curPos;
-                if(remainingToGet>=remainingBits)
-                {
-                    result|=curByte<<curPos;
-                    curPos+=remainingBits;
-                    remainingBits=0;
-                }
-                else
-                {
-                    int mask=(1<<remainingToGet)-1;
-                    result|=(curByte&mask)<<curPos;
-                    curByte>>>=remainingToGet;
-                    remainingBits-=remainingToGet;
-                    return result;
-                }
+                load(context);
+                if(nbBits<toGet)
+                    throw new EOFException();
             }
-            while(curPos<toGet);
+            final int result=(int)(bits&(0xFFFFFFFFL>>>(32-toGet)));
+            bits>>>=toGet;
+            nbBits-=toGet;
             return result;
         }
 
-        private void getSomethingIfNeeded(FileContext context) throws IOException
+        private void load(FileContext context) throws IOException
         {
-            if(remainingBits==0)
+            if(nbBits<=32 && length>=4)
             {
-                if(length==0)
-                    throw new EOFException();
-                remainingBits=8;
+                bits|=(file.readInt32(context)&0xFFFFFFFFL)<<nbBits;
+                nbBits+=32;
+                length-=4;
+            }
+            while(nbBits<=56 && length>0)
+            {
+                bits|=(long)file.readByte(context)<<nbBits;
+                nbBits+=8;
                 length--;
-                curByte=readByte(context);
             }
         }
     }
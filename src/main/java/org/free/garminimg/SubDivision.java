@@ -19,6 +19,8 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -83,6 +85,52 @@ public class SubDivision
         return last;
     }
 
+    /**
+     * Save the sub-division and its children in a {@link MapIndex}.
+     */
+    void writeIndex(DataOutput out) throws IOException
+    {
+        out.writeInt(index);
+        out.writeByte(level);
+        out.writeInt((int)dataOffset);
+        out.writeInt((int)dataEnd);
+        out.writeByte(objectTypes);
+        out.writeInt(longitudeCenter);
+        out.writeInt(latitudeCenter);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeShort(nextLevel);
+        out.writeInt(subDivisions.size());
+        for(int cpt=0; cpt<subDivisions.size(); ++cpt)
+        {
+            subDivisions.get(cpt).writeIndex(out);
+        }
+    }
+
+    /**
+     * Restore what has been saved by {@link #writeIndex(DataOutput)}, except the index
+     * and the level that are given to the constructor.
+     */
+    void readIndex(DataInput in) throws IOException
+    {
+        dataOffset=in.readInt()&0xFFFFFFFFL;
+        dataEnd=in.readInt()&0xFFFFFFFFL;
+        objectTypes=in.readUnsignedByte();
+        longitudeCenter=in.readInt();
+        latitudeCenter=in.readInt();
+        width=in.readUnsignedShort();
+        height=in.readUnsignedShort();
+        nextLevel=in.readUnsignedShort();
+        subFile.registerRegionByIndex(index, this);
+        int nb=in.readInt();
+        for(int cpt=0; cpt<nb; ++cpt)
+        {
+            SubDivision cur=new SubDivision(in.readInt(), in.readUnsignedByte(), subFile);
+            cur.readIndex(in);
+            subDivisions.add(cur);
+        }
+    }
+
     public long getDataOffset()
     {
         return dataOffset;
@@ -234,9 +282,28 @@ public class SubDivision
 
     private boolean matchesCoordinates(int minLong, int maxLong, int minLat, int maxLat)
     {
-        return CoordUtils.matchesCoordinates(longitudeCenter-getLongitudeWidth(), longitudeCenter+getLongitudeWidth(),
-                                             latitudeCenter-getLatitudeHeight(), latitudeCenter+getLatitudeHeight(), minLong, maxLong, minLat,
-                                             maxLat);
+        return CoordUtils.matchesCoordinates(getMinLongitude(), getMaxLongitude(), getMinLatitude(), getMaxLatitude(),
+                                             minLong, maxLong, minLat, maxLat);
+    }
+
+    public int getMinLongitude()
+    {
+        return longitudeCenter-getLongitudeWidth();
+    }
+
+    public int getMaxLongitude()
+    {
+        return longitudeCenter+getLongitudeWidth();
+    }
+
+    public int getMinLatitude()
+    {
+        return latitudeCenter-getLatitudeHeight();
+    }
+
+    public int getMaxLatitude()
+    {
+        return latitudeCenter+getLatitudeHeight();
     }
 
     public boolean includedInCoordinates(int minLong, int maxLong, int minLat, int maxLat)
@@ -246,7 +313,7 @@ public class SubDivision
                                                 minLong, maxLong, minLat, maxLat);
     }
 
-    public void readMap(int minLong, int maxLong, int minLat, int maxLat, int targetLevel, int objectKindFilter, BitSet objectTypeFilter, RgnSubFile rgn, LblSubFile lbl, NetSubFile net, MapListener listener, RgnContext rgnContext) throws IOException
+    public void readMap(int minLong, int maxLong, int minLat, int maxLat, int targetLevel, int objectKindFilter, BitSet objectTypeFilter, RgnSubFile rgn, LblSubFile lbl, NetSubFile net, RawMapListener listener, RgnContext rgnContext) throws IOException
     {
         if(level<targetLevel)
             return;
@@ -255,8 +322,7 @@ public class SubDivision
 
         if(dataOffset!=0 && level==targetLevel)
         {
-            listener.startSubDivision(this);
-            rgn.parseSubDivision(this, lbl, net, listener, targetLevel, objectKindFilter, objectTypeFilter, rgnContext);
+            readData(objectKindFilter, objectTypeFilter, rgn, lbl, net, listener, rgnContext);
             return;
         }
 
@@ -267,6 +333,15 @@ public class SubDivision
         }
     }
 
+    /**
+     * Send the objects of this sub-division to the listener.
+     */
+    void readData(int objectKindFilter, BitSet objectTypeFilter, RgnSubFile rgn, LblSubFile lbl, NetSubFile net, RawMapListener listener, RgnContext rgnContext) throws IOException
+    {
+        listener.startSubDivision(this);
+        rgn.parseSubDivision(this, lbl, net, listener, level, objectKindFilter, objectTypeFilter, rgnContext);
+    }
+
     public int getResolution()
     {
         return subFile.getResolution(level);
@@ -0,0 +1,85 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * Cache of the decoded content of the sub-divisions. When a sub-division is in the cache,
+ * reading it again doesn't access the RGN file and doesn't decode anything.
+ * <p>Optional, see {@link ImgFilesBag#setSubDivisionCache(SubDivisionCache)}. One instance
+ * is shared by all the files of an {@link ImgFilesBag}.
+ */
+public class SubDivisionCache extends LruCache<SubDivisionCache.Key, DecodedSubDivision>
+{
+    public static final long DEFAULT_MAX_SIZE=64*1024*1024;
+
+    public SubDivisionCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public SubDivisionCache(long maxSize)
+    {
+        super(maxSize);
+    }
+
+    protected int getWeight(DecodedSubDivision value)
+    {
+        return value.getWeight();
+    }
+
+    DecodedSubDivision get(TreSubFile tre, int index, int level)
+    {
+        return get(new Key(tre, index, level));
+    }
+
+    void put(TreSubFile tre, int index, int level, DecodedSubDivision decoded)
+    {
+        put(new Key(tre, index, level), decoded);
+    }
+
+    static final class Key
+    {
+        private final TreSubFile tre;
+
+        private final int index;
+
+        private final int level;
+
+        public Key(TreSubFile tre, int index, int level)
+        {
+            this.tre=tre;
+            this.index=index;
+            this.level=level;
+        }
+
+        public int hashCode()
+        {
+            return (System.identityHashCode(tre)*31+index)*31+level;
+        }
+
+        public boolean equals(Object o)
+        {
+            if(o==this) return true;
+            if(!(o instanceof Key)) return false;
+            Key other=(Key)o;
+            return tre==other.tre && index==other.index && level==other.level;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flat view of the sub-division trees of a TRE file, to find the sub-divisions
+ * of a level matching some coordinates without walking the trees.
+ * <p>The sub-divisions are numbered in the order of a depth first walk of the trees
+ * and their boundaries are pre-computed. For each level, an R-tree contains the
+ * sub-divisions having some data.
+ * <p>The result is the same as the one of the recursive
+ * {@link SubDivision#readMap SubDivision.readMap}: a sub-division is returned
+ * only if its parents match the coordinates as well and the sub-divisions are returned
+ * in the order of the walk.
+ * <p>The resolutions of the levels must not change after the creation.
+ */
+class SubDivisionIndex
+{
+    private static final int NB_LEVELS=16;
+
+    private final SubDivision[] subDivisions;
+
+    /**
+     * Number of the parent of each sub-division, -1 for the roots.
+     */
+    private final int[] parents;
+
+    private final int[] minLons;
+
+    private final int[] maxLons;
+
+    private final int[] minLats;
+
+    private final int[] maxLats;
+
+    /**
+     * For each level, the numbers of the sub-divisions in the R-tree.
+     */
+    private final int[][] levelItems=new int[NB_LEVELS][];
+
+    private final PackedRTree[] levelTrees=new PackedRTree[NB_LEVELS];
+
+    public SubDivisionIndex(List<SubDivision> roots)
+    {
+        List<SubDivision> all=new ArrayList<SubDivision>();
+        List<Integer> allParents=new ArrayList<Integer>();
+        for(int cpt=0; cpt<roots.size(); ++cpt)
+        {
+            walk(roots.get(cpt), -1, all, allParents);
+        }
+
+        final int nb=all.size();
+        subDivisions=all.toArray(new SubDivision[nb]);
+        parents=new int[nb];
+        minLons=new int[nb];
+        maxLons=new int[nb];
+        minLats=new int[nb];
+        maxLats=new int[nb];
+        int[] nbByLevel=new int[NB_LEVELS];
+        for(int cpt=0; cpt<nb; ++cpt)
+        {
+            SubDivision cur=subDivisions[cpt];
+            parents[cpt]=allParents.get(cpt);
+            minLons[cpt]=cur.getMinLongitude();
+            maxLons[cpt]=cur.getMaxLongitude();
+            minLats[cpt]=cur.getMinLatitude();
+            maxLats[cpt]=cur.getMaxLatitude();
+            if(cur.getDataOffset()!=0)
+                nbByLevel[cur.getLevel()]++;
+        }
+
+        for(int level=0; level<NB_LEVELS; ++level)
+        {
+            if(nbByLevel[level]==0)
+                continue;
+            int[] items=new int[nbByLevel[level]];
+            int nbItems=0;
+            for(int cpt=0; cpt<nb; ++cpt)
+            {
+                if(subDivisions[cpt].getLevel()==level && subDivisions[cpt].getDataOffset()!=0)
+                    items[nbItems++]=cpt;
+            }
+            int[] itemMinLons=new int[nbItems];
+            int[] itemMaxLons=new int[nbItems];
+            int[] itemMinLats=new int[nbItems];
+            int[] itemMaxLats=new int[nbItems];
+            for(int cpt=0; cpt<nbItems; ++cpt)
+            {
+                itemMinLons[cpt]=minLons[items[cpt]];
+                itemMaxLons[cpt]=maxLons[items[cpt]];
+                itemMinLats[cpt]=minLats[items[cpt]];
+                itemMaxLats[cpt]=maxLats[items[cpt]];
+            }
+            levelItems[level]=items;
+            levelTrees[level]=new PackedRTree(itemMinLons, itemMaxLons, itemMinLats, itemMaxLats);
+        }
+    }
+
+    private static void walk(SubDivision cur, int parent, List<SubDivision> all, List<Integer> allParents)
+    {
+        int number=all.size();
+        all.add(cur);
+        allParents.add(parent);
+        List<SubDivision> children=cur.getSubDivisions();
+        for(int cpt=0; cpt<children.size(); ++cpt)
+        {
+            walk(children.get(cpt), number, all, allParents);
+        }
+    }
+
+    /**
+     * @return The sub-divisions of the given level with some data and matching the coordinates.
+     */
+    public List<SubDivision> find(int level, int minLong, int maxLong, int minLat, int maxLat)
+    {
+        if(level<0 || level>=NB_LEVELS || levelTrees[level]==null)
+            return Collections.emptyList();
+
+        BitSet matching=new BitSet(levelItems[level].length);
+        levelTrees[level].query(minLong, maxLong, minLat, maxLat, matching);
+        List<SubDivision> result=new ArrayList<SubDivision>(matching.cardinality());
+        for(int cpt=matching.nextSetBit(0); cpt>=0; cpt=matching.nextSetBit(cpt+1))
+        {
+            int number=levelItems[level][cpt];
+            if(parentsMatch(number, minLong, maxLong, minLat, maxLat))
+                result.add(subDivisions[number]);
+        }
+        return result;
+    }
+
+    private boolean parentsMatch(int number, int minLong, int maxLong, int minLat, int maxLat)
+    {
+        for(int cur=parents[number]; cur>=0; cur=parents[cur])
+        {
+            if(minLons[cur]>maxLong || maxLons[cur]<minLong || minLats[cur]>maxLat || maxLats[cur]<minLat)
+                return false;
+        }
+        return true;
+    }
+}
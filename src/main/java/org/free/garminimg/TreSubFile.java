@@ -19,9 +19,20 @@
  */
 package org.free.garminimg;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A sub-file with .tre extension. Contains the information about the sub-divisions
@@ -33,6 +44,11 @@ public class TreSubFile extends ImgSubFile
 
     private static final int FULL_DIVISION_RECORD=16;
 
+    /**
+     * Maximum number of sub-divisions decoded in advance, in parallel mode.
+     */
+    private static final int MAX_PENDING_DECODINGS=64;
+
     private int northBoundary;
 
     private int eastBoundary;
@@ -84,10 +100,25 @@ public class TreSubFile extends ImgSubFile
 
     private boolean guessLevels;
 
-    private boolean initDone=false;
+    /**
+     * The levels and sub-divisions are not modified once this is true, so
+     * they can be read by several threads without locking.
+     */
+    private volatile boolean initDone=false;
 
     private long fullSurface;
 
+    /**
+     * The levels and sub-divisions, as saved in the index (see {@link #writeLevels(DataOutput)}).
+     * Decoded only when needed.
+     */
+    private byte[] indexedLevels=null;
+
+    /**
+     * Built once the sub-divisions are known.
+     */
+    private SubDivisionIndex subDivisionIndex;
+
     public TreSubFile(String filename, String filetype, int fileSize, int blocSize, ImgFileBag fileBag)
     {
         super(filename, filetype, fileSize, blocSize, fileBag);
@@ -134,12 +165,146 @@ public class TreSubFile extends ImgSubFile
     /**
      * Check if the subDivisions needs to be read and read them if yes.
      */
-    private synchronized void initIfNeeded() throws IOException
+    private void initIfNeeded() throws IOException
     {
         if(!initDone)
         {
-            fullInit();
-            initDone=true;
+            synchronized(this)
+            {
+                if(!initDone)
+                {
+                    if(indexedLevels!=null)
+                    {
+                        readLevels(new DataInputStream(new ByteArrayInputStream(indexedLevels)));
+                        indexedLevels=null;
+                    }
+                    else
+                    {
+                        fullInit();
+                    }
+                    subDivisionIndex=new SubDivisionIndex(subDivisions);
+                    initDone=true;
+                }
+            }
+        }
+    }
+
+    void writeIndex(DataOutput out) throws IOException
+    {
+        super.writeIndex(out);
+        ensureInit();
+        out.writeShort(headerLength);
+        out.writeByte(getLocked());
+        out.writeInt(northBoundary);
+        out.writeInt(eastBoundary);
+        out.writeInt(southBoundary);
+        out.writeInt(westBoundary);
+
+        synchronized(this)
+        {
+            byte[] levels=indexedLevels;
+            if(initDone)
+            {
+                ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+                writeLevels(new DataOutputStream(buffer));
+                levels=buffer.toByteArray();
+            }
+            if(levels!=null)
+            {
+                out.writeInt(levels.length);
+                out.write(levels);
+            }
+            else
+            {
+                out.writeInt(-1);
+            }
+        }
+    }
+
+    void readIndex(DataInput in) throws IOException
+    {
+        super.readIndex(in);
+        int headerLength=in.readUnsignedShort();
+        int locked=in.readUnsignedByte();
+        northBoundary=in.readInt();
+        eastBoundary=in.readInt();
+        southBoundary=in.readInt();
+        westBoundary=in.readInt();
+        fullSurface=((long)northBoundary-southBoundary)*((long)eastBoundary-westBoundary);
+        restoreHeader(headerLength, locked);
+
+        int levelsLength=in.readInt();
+        if(levelsLength>=0)
+        {
+            indexedLevels=new byte[levelsLength];
+            in.readFully(indexedLevels);
+        }
+    }
+
+    /**
+     * Save the result of {@link #fullInit()}, including the guessed resolutions.
+     */
+    private void writeLevels(DataOutput out) throws IOException
+    {
+        out.writeByte(minLevel);
+        out.writeByte(maxLevel);
+        out.writeByte(maxLevelWithData);
+        for(int cpt=0; cpt<bitsPerCoords.length; ++cpt)
+        {
+            out.writeByte(bitsPerCoords[cpt]);
+            out.writeBoolean(inheriteds[cpt]);
+        }
+        writeTypes(out, polylineTypes);
+        writeTypes(out, polygonTypes);
+        writeTypes(out, pointTypes);
+
+        out.writeInt(subDivisions.size());
+        for(int cpt=0; cpt<subDivisions.size(); ++cpt)
+        {
+            subDivisions.get(cpt).writeIndex(out);
+        }
+    }
+
+    private void readLevels(DataInput in) throws IOException
+    {
+        minLevel=in.readUnsignedByte();
+        maxLevel=in.readUnsignedByte();
+        maxLevelWithData=in.readUnsignedByte();
+        for(int cpt=0; cpt<bitsPerCoords.length; ++cpt)
+        {
+            bitsPerCoords[cpt]=in.readUnsignedByte();
+            inheriteds[cpt]=in.readBoolean();
+        }
+        readTypes(in, polylineTypes);
+        readTypes(in, polygonTypes);
+        readTypes(in, pointTypes);
+
+        int nb=in.readInt();
+        for(int cpt=0; cpt<nb; ++cpt)
+        {
+            SubDivision cur=new SubDivision(in.readInt(), in.readUnsignedByte(), this);
+            cur.readIndex(in);
+            subDivisions.add(cur);
+        }
+    }
+
+    private static void writeTypes(DataOutput out, Map<Integer, Integer> types) throws IOException
+    {
+        out.writeInt(types.size());
+        for(Map.Entry<Integer, Integer> cur : types.entrySet())
+        {
+            out.writeInt(cur.getKey());
+            out.writeInt(cur.getValue());
+        }
+    }
+
+    private static void readTypes(DataInput in, Map<Integer, Integer> types) throws IOException
+    {
+        int nb=in.readInt();
+        for(int cpt=0; cpt<nb; ++cpt)
+        {
+            int type=in.readInt();
+            types.put(type, in.readInt());
         }
     }
 
@@ -536,30 +701,128 @@ public class TreSubFile extends ImgSubFile
     }
 
     public void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RgnSubFile rgn, LblSubFile lbl, NetSubFile net, MapListener listener) throws IOException
+    {
+        readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter, objectTypeFilter, rgn, lbl, net,
+                LabelCreatingListener.wrap(listener, fileBag.getLabelResolver()), fileBag.getDecodingExecutor(), null);
+    }
+
+    /**
+     * @param executor If not null, the sub-divisions of a level are decoded in parallel with it.
+     * @param options  If not null, checked before each sub-division to know if the read must stop.
+     */
+    void readMap(int minLong, int maxLong, int minLat, int maxLat, int resolution, int objectKindFilter, BitSet objectTypeFilter, RgnSubFile rgn, LblSubFile lbl, NetSubFile net, RawMapListener listener, ExecutorService executor, QueryOptions options) throws IOException
     {
         if(matchesCoordinates(minLong, maxLong, minLat, maxLat))
         {
             initIfNeeded();
-            int targetMinLevel;
-            int targetMaxLevel;
-            if(resolution>=0)
+            final int targetMinLevel=getTargetMinLevel(resolution);
+            final int targetMaxLevel=getTargetMaxLevel(resolution, targetMinLevel);
+            RgnContext rgnContext=new RgnContext();
+            for(int level=targetMaxLevel; level>=targetMinLevel; --level)
             {
-                targetMinLevel=guessLevel(resolution);
-                targetMaxLevel=findMaxToDisplay(targetMinLevel);
+                List<SubDivision> matching=subDivisionIndex.find(level, minLong, maxLong, minLat, maxLat);
+                if(executor!=null && matching.size()>1)
+                {
+                    readDataInParallel(matching, objectKindFilter, objectTypeFilter, rgn, lbl, net, listener, executor, options);
+                }
+                else
+                {
+                    for(int cpt=0; cpt<matching.size(); ++cpt)
+                    {
+                        if(QueryOptions.mustStop(options))
+                            return;
+                        matching.get(cpt).readData(objectKindFilter, objectTypeFilter, rgn, lbl, net, listener, rgnContext);
+                    }
+                }
             }
-            else
+        }
+    }
+
+    /**
+     * @return The sub-divisions to read for the given coordinates, in the order used by readMap.
+     *         Nothing is decoded.
+     */
+    List<SubDivision> getSubDivisionsToRead(int minLong, int maxLong, int minLat, int maxLat, int resolution) throws IOException
+    {
+        List<SubDivision> result=new ArrayList<SubDivision>();
+        if(matchesCoordinates(minLong, maxLong, minLat, maxLat))
+        {
+            initIfNeeded();
+            final int targetMinLevel=getTargetMinLevel(resolution);
+            final int targetMaxLevel=getTargetMaxLevel(resolution, targetMinLevel);
+            for(int level=targetMaxLevel; level>=targetMinLevel; --level)
             {
-                targetMinLevel=minLevel;
-                targetMaxLevel=maxLevel;
+                result.addAll(subDivisionIndex.find(level, minLong, maxLong, minLat, maxLat));
             }
-            RgnContext rgnContext=new RgnContext();
-            for(int level=targetMaxLevel; level>=targetMinLevel; --level)
+        }
+        return result;
+    }
+
+    private int getTargetMinLevel(int resolution)
+    {
+        return resolution>=0 ? guessLevel(resolution) : minLevel;
+    }
+
+    private int getTargetMaxLevel(int resolution, int targetMinLevel)
+    {
+        return resolution>=0 ? findMaxToDisplay(targetMinLevel) : maxLevel;
+    }
+
+    /**
+     * Decode the given sub-divisions with the executor, each one in its own buffer. The buffers
+     * are sent to the listener in the order of the list, so the listener receives exactly
+     * the same thing as when decoding them one after the other.
+     * <p>At most {@link #MAX_PENDING_DECODINGS} sub-divisions are decoded in advance. When the
+     * read must stop, the pending decodings are skipped and nothing more is sent.
+     */
+    private void readDataInParallel(List<SubDivision> subDivisions, final int objectKindFilter, final BitSet objectTypeFilter,
+                                    final RgnSubFile rgn, final LblSubFile lbl, final NetSubFile net, RawMapListener listener,
+                                    ExecutorService executor, final QueryOptions options) throws IOException
+    {
+        final int nb=subDivisions.size();
+        List<Future<FeatureBuffer>> pending=new ArrayList<Future<FeatureBuffer>>(nb);
+        int nbSubmitted=0;
+        try
+        {
+            for(int cpt=0; cpt<nb; ++cpt)
             {
-                for(int cpt=0; cpt<subDivisions.size(); ++cpt)
+                while(nbSubmitted<nb && nbSubmitted<cpt+MAX_PENDING_DECODINGS)
                 {
-                    SubDivision cur=subDivisions.get(cpt);
-                    cur.readMap(minLong, maxLong, minLat, maxLat, level, objectKindFilter, objectTypeFilter, rgn, lbl, net, listener, rgnContext);
+                    final SubDivision subDivision=subDivisions.get(nbSubmitted++);
+                    pending.add(executor.submit(new Callable<FeatureBuffer>()
+                    {
+                        public FeatureBuffer call() throws IOException
+                        {
+                            FeatureBuffer result=new FeatureBuffer(fileBag.getLabelResolver());
+                            if(!QueryOptions.mustStop(options))
+                                subDivision.readData(objectKindFilter, objectTypeFilter, rgn, lbl, net, result, new RgnContext());
+                            return result;
+                        }
+                    }));
                 }
+                FeatureBuffer buffer=pending.get(cpt).get();
+                if(QueryOptions.mustStop(options))
+                    return;
+                buffer.replayRaw(listener);
+                //the buffer can be garbage collected
+                pending.set(cpt, null);
+            }
+        }
+        catch(ExecutionException e)
+        {
+            throw ImgFilesBag.rethrow(e);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding the sub-divisions");
+        }
+        finally
+        {
+            for(Future<FeatureBuffer> cur : pending)
+            {
+                if(cur!=null)
+                    cur.cancel(false);
             }
         }
     }
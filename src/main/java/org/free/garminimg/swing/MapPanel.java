@@ -23,6 +23,7 @@ import org.free.garminimg.CoordUtils;
 import org.free.garminimg.ImgFilesBag;
 import org.free.garminimg.MapListener;
 import org.free.garminimg.ObjectKind;
+import org.free.garminimg.SubDivisionCache;
 import org.free.garminimg.utils.*;
 import org.free.garminimg.utils.MapTransformer.Converter;
 
@@ -64,7 +65,15 @@ public class MapPanel<COORD> extends JPanel
      */
     public MapPanel(Converter<COORD> converter, int margin)
     {
-        this(new ImgFilesBag(), new MapTransformer<COORD>(converter, margin));
+        this(createMaps(), new MapTransformer<COORD>(converter, margin));
+    }
+
+    private static ImgFilesBag createMaps()
+    {
+        ImgFilesBag result=new ImgFilesBag();
+        //when panning, most of the sub-divisions have already been decoded
+        result.setSubDivisionCache(new SubDivisionCache());
+        return result;
     }
 
     /**
@@ -260,6 +269,19 @@ public class MapPanel<COORD> extends JPanel
         transformerChanged();
     }
 
+    /**
+     * Zoom and position the map in order to see the given area, in Garmin coordinates.
+     */
+    public void showGarminArea(int minLongitude, int maxLongitude, int minLatitude, int maxLatitude)
+    {
+        transformer.resetAutoScale();
+        transformer.adjustAutoScaleFromWgs84(CoordUtils.toWGS84Rad(minLongitude), CoordUtils.toWGS84Rad(minLatitude));
+        transformer.adjustAutoScaleFromWgs84(CoordUtils.toWGS84Rad(maxLongitude), CoordUtils.toWGS84Rad(maxLatitude));
+        transformer.fixAspectRatio();
+        transformerChanged();
+        repaint();
+    }
+
     /**
      * Does not trigger a repaint...
      */
@@ -19,9 +19,12 @@
  */
 package org.free.garminimg.swing;
 
+import org.free.garminimg.CancellationToken;
 import org.free.garminimg.ImgFilesBag;
 import org.free.garminimg.MapListener;
 import org.free.garminimg.ObjectKind;
+import org.free.garminimg.QueryOptions;
+import org.free.garminimg.QueryStatus;
 import org.free.garminimg.utils.*;
 
 import java.awt.*;
@@ -51,6 +54,11 @@ public class MapPanelThread<COORD> extends Thread
 
     private boolean needCompute=false;
 
+    /**
+     * To stop the computation in progress when the target changes.
+     */
+    private CancellationToken currentComputation=null;
+
     public MapPanelThread(MapPanel<COORD> panel, MapConfig config)
     {
         super("Map");
@@ -75,6 +83,7 @@ public class MapPanelThread<COORD> extends Thread
     {
         final MapConfig workConfig;
         final MapTransformer<COORD> workTransformer;
+        final CancellationToken cancellation=new CancellationToken();
 
         //take a snapshot of the config
         synchronized(this)
@@ -84,6 +93,7 @@ public class MapPanelThread<COORD> extends Thread
 
             workConfig=targetConfig;
             workTransformer=targetTransformer.clone();
+            currentComputation=cancellation;
         }
 
         final VolatileImage workPaint;
@@ -109,12 +119,20 @@ public class MapPanelThread<COORD> extends Thread
         //compute
         Graphics2D g2=workPaint.createGraphics();
         setupGraphics(g2, workConfig, workTransformer);
-        paintMap(g2, workConfig, workTransformer);
+        QueryStatus status=paintMap(g2, workConfig, workTransformer, new QueryOptions(cancellation));
         g2.dispose();
 
         //save the result
         synchronized(this)
         {
+            if(currentComputation==cancellation)
+                currentComputation=null;
+            if(status!=QueryStatus.COMPLETE)
+            {
+                //stale, another computation is scheduled. Keep the image for it.
+                previousImage=workPaint;
+                return;
+            }
             previousImage=currentImage;
             currentImage=workPaint;
             currentTransformer=workTransformer;
@@ -133,7 +151,7 @@ public class MapPanelThread<COORD> extends Thread
         g2.fillRect(0, 0, workTransformer.getWidth(), workTransformer.getHeight());
     }
 
-    private void paintMap(Graphics2D g2, MapConfig workConfig, MapTransformer<COORD> workTransformer)
+    private QueryStatus paintMap(Graphics2D g2, MapConfig workConfig, MapTransformer<COORD> workTransformer, QueryOptions options)
     {
         final Font oldFont=g2.getFont();
         final Color oldColor=g2.getColor();
@@ -168,28 +186,31 @@ public class MapPanelThread<COORD> extends Thread
                                                                                                            reliefDrawer));
 
                 //draw the full base map
-                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.BASE_MAP, drawerConverter);
+                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.BASE_MAP, drawerConverter, options);
 
                 //draw the polygons of the normal maps
-                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.POLYGON|ObjectKind.NORMAL_MAP, drawerConverter);
+                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.POLYGON|ObjectKind.NORMAL_MAP, drawerConverter, options);
 
                 //put the relief on them
-                map.readMap(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.POLYLINE|ObjectKind.NORMAL_MAP, ReliefDrawer.getReliefTypes(), reliefConverter);
+                map.readMap(minLon, maxLon, minLat, maxLat, resolution, ObjectKind.POLYLINE|ObjectKind.NORMAL_MAP, ReliefDrawer.getReliefTypes(), reliefConverter, options);
                 reliefConverter.finishPainting();
 
                 //draw the rest
-                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, (0xFFFF^ObjectKind.POLYGON)^ObjectKind.BASE_MAP, drawerConverter);
+                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, (0xFFFF^ObjectKind.POLYGON)^ObjectKind.BASE_MAP, drawerConverter, options);
             }
             else
             {
                 MapListener converter=new CoordinateConverterListener<COORD>(workTransformer,
                                                                              new ClippingMapListener(0, workTransformer.getWidth(), 0, workTransformer.getHeight(),
                                                                                                      drawer));
-                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, 0xFFFF, converter);
+                map.readMapForDrawing(minLon, maxLon, minLat, maxLat, resolution, 0xFFFF, converter, options);
             }
 
             long milliEnd=System.currentTimeMillis();
-            System.out.println("Time to compute a {"+workTransformer.getWidth()+"x"+workTransformer.getHeight()+drawer+"} map [ms]: "+(milliEnd-milliStart));
+            if(options.getStatus()==QueryStatus.COMPLETE)
+                System.out.println("Time to compute a {"+workTransformer.getWidth()+"x"+workTransformer.getHeight()+drawer+"} map [ms]: "+(milliEnd-milliStart));
+            else
+                System.out.println("Map computation stopped after [ms]: "+(milliEnd-milliStart));
         }
         catch(IOException e)
         {
@@ -198,14 +219,19 @@ public class MapPanelThread<COORD> extends Thread
         g2.setFont(oldFont);
         g2.setColor(oldColor);
         g2.setStroke(oldStroke);
+        return options.getStatus();
     }
 
     public synchronized void checkSetup(MapTransformer<COORD> transformer, MapConfig config)
     {
-        if(currentImage==null || currentImage.contentsLost() || !transformer.equals(targetTransformer) || !config.equals(targetConfig))
+        final boolean targetChanged=!transformer.equals(targetTransformer) || !config.equals(targetConfig);
+        if(currentImage==null || currentImage.contentsLost() || targetChanged)
         {
             targetConfig=config.clone();
             targetTransformer=transformer.clone();
+            //the computation in progress is for an old target
+            if(targetChanged && currentComputation!=null)
+                currentComputation.cancel();
             scheduleComputeMap();
         }
     }
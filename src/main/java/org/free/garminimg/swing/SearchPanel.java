@@ -19,6 +19,7 @@
  */
 package org.free.garminimg.swing;
 
+import org.free.garminimg.NameCompleter;
 import org.free.garminimg.ObjectKind;
 import org.free.garminimg.utils.*;
 
@@ -34,6 +35,7 @@ import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 public class SearchPanel extends JDialog implements ListSelectionListener
@@ -42,9 +44,25 @@ public class SearchPanel extends JDialog implements ListSelectionListener
 
     private MapPanel<Point2D.Double> mapPanel;
 
-    private List<FoundObject> results;
+    /**
+     * The objects found or the completions of the text.
+     */
+    private List<?> results;
 
-    private JList list;
+    private static final int MAX_COMPLETIONS=50;
+
+    /**
+     * Available once the name completer has been built in the background. Only used from the
+     * event dispatch thread.
+     */
+    private NameCompleter.Session completionSession=null;
+
+    /**
+     * Builds the name completer, started by the first key typed.
+     */
+    private SwingWorker<NameCompleter, Void> completerWorker=null;
+
+    private JList<Object> list;
 
     private JLabel detail;
 
@@ -114,6 +132,45 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         validate();
     }
 
+    /**
+     * The first time, the completer reads all the maps. Until it's ready, every key
+     * does a full search.
+     */
+    private void startCompleter()
+    {
+        completerWorker=new SwingWorker<NameCompleter, Void>()
+        {
+            protected NameCompleter doInBackground() throws IOException
+            {
+                return mapPanel.getMap().getNameCompleter();
+            }
+
+            protected void done()
+            {
+                if(isCancelled())
+                    return;
+                try
+                {
+                    completionSession=get().createSession();
+                    //complete what has been typed meanwhile
+                    previousSearch=null;
+                    searchTextModified();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch(ExecutionException e)
+                {
+                    //stays with the full searches
+                    JOptionPane.showMessageDialog(SearchPanel.this, "Cannot complete the names: "+e.getCause().getMessage(),
+                                                  getTitle(), JOptionPane.WARNING_MESSAGE);
+                }
+            }
+        };
+        completerWorker.execute();
+    }
+
     private void createPointEnums(BitSet availablePointTypes)
     {
         pointTypeNames=new Vector<String>();
@@ -263,6 +320,14 @@ public class SearchPanel extends JDialog implements ListSelectionListener
                 searchTextModified();
             }
         });
+        searchText.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                //enter: search the objects with this name
+                searchAgain();
+            }
+        });
 
         c.gridx=0;
         c.gridy++;
@@ -271,10 +336,10 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         c.gridwidth=1;
         add(new JLabel("Filter"), c);
 
-        final JComboBox kind=new JComboBox(kindNames);
-        final JComboBox pointTypes=createTypesComboBox(pointTypeNames, pointTypeValues);
-        final JComboBox polygonTypes=createTypesComboBox(polygonTypeNames, polygonTypeValues);
-        final JComboBox polyLineTypes=createTypesComboBox(polylineTypeNames, polylineTypeValues);
+        final JComboBox<String> kind=new JComboBox<String>(kindNames);
+        final JComboBox<String> pointTypes=createTypesComboBox(pointTypeNames, pointTypeValues);
+        final JComboBox<String> polygonTypes=createTypesComboBox(polygonTypeNames, polygonTypeValues);
+        final JComboBox<String> polyLineTypes=createTypesComboBox(polylineTypeNames, polylineTypeValues);
         kind.setSelectedIndex(0);
         c.gridx=1;
         c.weightx=1;
@@ -312,7 +377,7 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         c.weighty=1;
         c.gridwidth=3;
         c.fill=GridBagConstraints.BOTH;
-        list=new JList();
+        list=new JList<Object>();
         list.setCellRenderer(new MyListCellRenderer());
         list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         list.addListSelectionListener(this);
@@ -336,7 +401,7 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         add(buttonPanel, c);
     }
 
-    private void updateTypesComboBox(JComboBox pointTypes, JComboBox polygonTypes, JComboBox polyLineTypes)
+    private void updateTypesComboBox(JComboBox<String> pointTypes, JComboBox<String> polygonTypes, JComboBox<String> polyLineTypes)
     {
         pointTypes.setVisible(false);
         polygonTypes.setVisible(false);
@@ -356,9 +421,9 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         }
     }
 
-    private JComboBox createTypesComboBox(Vector<String> names, final ArrayList<BitSet> values)
+    private JComboBox<String> createTypesComboBox(Vector<String> names, final ArrayList<BitSet> values)
     {
-        final JComboBox types=new JComboBox(names);
+        final JComboBox<String> types=new JComboBox<String>(names);
         types.setSelectedIndex(0);
         types.addActionListener(new ActionListener()
         {
@@ -403,6 +468,8 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         {
             public void actionPerformed(ActionEvent e)
             {
+                if(completerWorker!=null)
+                    completerWorker.cancel(false);
                 setVisible(false);
                 dispose();
             }
@@ -414,9 +481,58 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         int selectedIndex=list.getMinSelectionIndex();
         if(selectedIndex>=0)
         {
-            FoundObject selected=results.get(selectedIndex);
-            mapPanel.zoomToGarminGeo(factor, selected.getLongitude(), selected.getLatitude());
+            Object selected=results.get(selectedIndex);
+            if(selected instanceof FoundObject)
+            {
+                FoundObject found=(FoundObject)selected;
+                mapPanel.zoomToGarminGeo(factor, found.getLongitude(), found.getLatitude());
+            }
+            else
+            {
+                Rectangle bounds=getLocationsBounds((NameCompleter.Completion)selected);
+                mapPanel.zoomToGarminGeo(factor, (int)bounds.getCenterX(), (int)bounds.getCenterY());
+            }
+        }
+    }
+
+    /**
+     * Center the map on the selection, a completion is shown with all its locations.
+     */
+    private void showSelection()
+    {
+        int selectedIndex=list.getMinSelectionIndex();
+        if(selectedIndex>=0 && results.get(selectedIndex) instanceof NameCompleter.Completion)
+        {
+            Rectangle bounds=getLocationsBounds((NameCompleter.Completion)results.get(selectedIndex));
+            if(bounds.width>0 || bounds.height>0)
+            {
+                //a margin to not have the locations on the border
+                int margin=Math.max(bounds.width, bounds.height)/10;
+                bounds.grow(margin, margin);
+                mapPanel.showGarminArea(bounds.x, bounds.x+bounds.width, bounds.y, bounds.y+bounds.height);
+                return;
+            }
         }
+        zoomOnSelection(1.0);
+    }
+
+    /**
+     * @return The bounding box of the locations, in Garmin coordinates.
+     */
+    private static Rectangle getLocationsBounds(NameCompleter.Completion completion)
+    {
+        int minLongitude=completion.getLongitude(0);
+        int maxLongitude=minLongitude;
+        int minLatitude=completion.getLatitude(0);
+        int maxLatitude=minLatitude;
+        for(int cpt=1; cpt<completion.getNbLocations(); ++cpt)
+        {
+            minLongitude=Math.min(minLongitude, completion.getLongitude(cpt));
+            maxLongitude=Math.max(maxLongitude, completion.getLongitude(cpt));
+            minLatitude=Math.min(minLatitude, completion.getLatitude(cpt));
+            maxLatitude=Math.max(maxLatitude, completion.getLatitude(cpt));
+        }
+        return new Rectangle(minLongitude, minLatitude, maxLongitude-minLongitude, maxLatitude-minLatitude);
     }
 
     private void searchTextModified()
@@ -425,7 +541,17 @@ public class SearchPanel extends JDialog implements ListSelectionListener
         if(text.equals(previousSearch))
             return;
         previousSearch=text;
-        searchAgain();
+        if(completionSession!=null)
+        {
+            results=completionSession.complete(text, MAX_COMPLETIONS, kindFilter, typeFilter);
+            list.setListData(results.toArray());
+        }
+        else
+        {
+            if(completerWorker==null)
+                startCompleter();
+            searchAgain();
+        }
     }
 
     private void searchAgain()
@@ -436,7 +562,7 @@ public class SearchPanel extends JDialog implements ListSelectionListener
             long milliStart=System.currentTimeMillis();
 
             FindObjectByNameListener listener=new FindObjectByNameListener(Pattern.compile(text, Pattern.CASE_INSENSITIVE));
-            mapPanel.getMap().readMap(minLon, maxLon, minLat, maxLat, resolution, kindFilter|ObjectKind.ALL_MAPS, typeFilter, listener);
+            mapPanel.getMap().readMapByName(minLon, maxLon, minLat, maxLat, resolution, kindFilter|ObjectKind.ALL_MAPS, typeFilter, listener.getQuery(), listener);
 
             long milliEnd=System.currentTimeMillis();
             System.out.println("Time to search [ms]: "+(milliEnd-milliStart));
@@ -462,8 +588,12 @@ public class SearchPanel extends JDialog implements ListSelectionListener
                 detail.setText("");
                 return;
             }
-            results.get(selected).toDebugHtml(text);
-            zoomOnSelection(1.0);
+            Object found=results.get(selected);
+            if(found instanceof FoundObject)
+                ((FoundObject)found).toDebugHtml(text);
+            else
+                text.append(found).append("<br>").append(((NameCompleter.Completion)found).getNbLocations()).append(" location(s)");
+            showSelection();
         }
         catch(IOException e1)
         {
@@ -475,17 +605,23 @@ public class SearchPanel extends JDialog implements ListSelectionListener
 
     private static class MyListCellRenderer extends DefaultListCellRenderer
     {
-        public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus)
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus)
         {
-            FoundObject found=(FoundObject)value;
             String name=null;
-            try
+            if(value instanceof FoundObject)
             {
-                name=found.getLabel().getName();
+                try
+                {
+                    name=((FoundObject)value).getLabel().getName();
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                }
             }
-            catch(IOException e)
+            else
             {
-                e.printStackTrace();
+                name=value.toString();
             }
             return super.getListCellRendererComponent(list, name, index, isSelected, cellHasFocus);
         }
@@ -21,6 +21,7 @@ package org.free.garminimg.utils;
 
 import org.free.garminimg.ImgFileBag;
 import org.free.garminimg.Label;
+import org.free.garminimg.LabelQuery;
 import org.free.garminimg.MapListener;
 import org.free.garminimg.SubDivision;
 
@@ -32,6 +33,8 @@ import java.util.regex.Pattern;
 
 /**
  * Special map listener used to find an object according to its name.
+ * <p>Can be used with {@link org.free.garminimg.ImgFilesBag#readMapByName}, with the query
+ * given by {@link #getQuery()}, to read only the sub-divisions where the name is used.
  */
 public class FindObjectByNameListener implements MapListener
 {
@@ -39,12 +42,23 @@ public class FindObjectByNameListener implements MapListener
 
     private Matcher matcher;
 
+    private final LabelQuery query;
+
     /**
      * Will use a regular expression.
      */
     public FindObjectByNameListener(Pattern regExp)
     {
         matcher=regExp.matcher("");
+        query=LabelQuery.pattern(regExp);
+    }
+
+    /**
+     * @return The query finding the same names as this listener.
+     */
+    public LabelQuery getQuery()
+    {
+        return query;
     }
 
     public List<FoundObject> getFounds()
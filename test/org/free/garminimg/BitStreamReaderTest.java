@@ -0,0 +1,273 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the buffered bit stream reader of the RGN files with the original
+ * byte by byte implementation, kept here as a reference.
+ */
+public class BitStreamReaderTest extends TestCase
+{
+    private static final int BLOC_SIZE=512;
+
+    private static final int NB_BLOCS=16;
+
+    private File file;
+
+    protected void setUp() throws Exception
+    {
+        Random random=new Random(1234);
+        byte[] content=new byte[BLOC_SIZE*NB_BLOCS];
+        random.nextBytes(content);
+        content[0]=0x3C;   //the XOR byte
+        file=File.createTempFile("bitstream", ".img");
+        FileOutputStream output=new FileOutputStream(file);
+        output.write(content);
+        output.close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        FileHandlePool.getDefault().close(file);
+        file.delete();
+    }
+
+    public void testMemoryMapped() throws IOException
+    {
+        compare(ImgFileBag.StorageMode.MEMORY_MAPPED);
+    }
+
+    public void testRandomAccess() throws IOException
+    {
+        compare(ImgFileBag.StorageMode.RANDOM_ACCESS);
+    }
+
+    private void compare(ImgFileBag.StorageMode storageMode) throws IOException
+    {
+        ImgFileBag fileBag=new ImgFileBag(file, null);
+        fileBag.setStorageMode(storageMode);
+        final int nbBlocs=NB_BLOCS-1;
+        ImgSubFile subFile=new UnknownSubFile("TEST", "RGN", nbBlocs*BLOC_SIZE, BLOC_SIZE, fileBag);
+        //not in order, to have some extents
+        subFile.addExtent(9, 4);
+        subFile.addExtent(1, 2);
+        subFile.addExtent(14, 1);
+        subFile.addExtent(3, 6);
+        subFile.addExtent(13, 1);
+        subFile.addExtent(15, 1);
+
+        Random random=new Random(42);
+        ImgSubFile.FileContext expectedContext=new ImgSubFile.FileContext();
+        ImgSubFile.FileContext actualContext=new ImgSubFile.FileContext();
+        ReferenceReader expected=new ReferenceReader(subFile);
+        RgnSubFile.BitStreamReader actual=new RgnSubFile.BitStreamReader(subFile);
+        for(int stream=0; stream<5000; ++stream)
+        {
+            int length=1+random.nextInt(200);
+            int start=random.nextInt(nbBlocs*BLOC_SIZE-length-1);
+            subFile.seek(start, expectedContext);
+            subFile.seek(start, actualContext);
+            expected.reset(length);
+            actual.reset(length);
+
+            while(true)
+            {
+                int nbBits=2+random.nextInt(24);
+                int sign=random.nextInt(3)-1;
+                int extraBit=random.nextInt(2);
+                assertEquals(expected.hasNext(nbBits), actual.hasNext(nbBits));
+                if(!expected.hasNext(nbBits))
+                    break;
+                if(random.nextInt(10)==0)
+                {
+                    assertEquals(expected.readNextBits(1, expectedContext), actual.readNextBits(1, actualContext));
+                    continue;
+                }
+                Integer expectedValue;
+                try
+                {
+                    expectedValue=expected.readCoordOffset(nbBits, sign, extraBit, expectedContext);
+                }
+                catch(EOFException e)
+                {
+                    expectedValue=null;
+                }
+                Integer actualValue;
+                try
+                {
+                    actualValue=actual.readCoordOffset(nbBits, sign, extraBit, actualContext);
+                }
+                catch(EOFException e)
+                {
+                    actualValue=null;
+                }
+                assertEquals(expectedValue, actualValue);
+                if(expectedValue==null)
+                    break;
+            }
+            expected.finish(expectedContext);
+            actual.finish(actualContext);
+            assertEquals(start+length, subFile.getNextReadPos(expectedContext));
+            assertEquals(start+length, subFile.getNextReadPos(actualContext));
+        }
+    }
+
+    /**
+     * The original implementation, reading the stream byte by byte.
+     */
+    private static class ReferenceReader
+    {
+        private final ImgSubFile file;
+
+        int length;
+
+        int remainingBits;
+
+        int curByte;
+
+        public ReferenceReader(ImgSubFile file)
+        {
+            this.file=file;
+        }
+
+        public final void reset(int length)
+        {
+            this.length=length;
+            remainingBits=0;
+        }
+
+        public final void finish(ImgSubFile.FileContext context) throws IOException
+        {
+            while(length>0)
+            {
+                file.readByte(context);
+                --length;
+            }
+        }
+
+        public final boolean hasNext(int nbBits)
+        {
+            return length*8+remainingBits>=nbBits;
+        }
+
+        public final int readCoordOffset(int nbBits, int sign, int extraBit, ImgSubFile.FileContext context) throws IOException
+        {
+            if(sign==0)
+            {
+                int value=readNextBits(nbBits, context);
+                int signMask=1<<(nbBits-1);
+                if((value&signMask)!=0)
+                {
+                    int comp=value^signMask;
+                    if(extraBit==0)
+                    {
+                        if(comp!=0)
+                            return comp-signMask;
+                        else
+                        {
+                            int other=readCoordOffset(nbBits, sign, extraBit, context);
+                            if(other<0)
+                                return 1-value+other;
+                            else
+                                return value-1+other;
+                        }
+                    }
+                    else
+                    {
+                        if((comp&0xFFFFFE)!=0)
+                        {
+                            return (comp&0xFFFFFE)-signMask;
+                        }
+                        else
+                        {
+                            int other=readCoordOffset(nbBits-1, sign, 0, context);
+                            if(other<0)
+                                return 1-signMask+1+(other<<1);
+                            else
+                                return signMask-1-1+(other<<1);
+                        }
+                    }
+                }
+                else
+                {
+                    if(extraBit>0)
+                        return (value&0xFFFFFE);
+                    else
+                        return value;
+                }
+            }
+            else
+            {
+                int val=readNextBits(nbBits, context);
+                if(extraBit>0)
+                    return (((val>>>1)*sign)<<1);
+                else
+                    return val*sign;
+            }
+        }
+
+        public final int readNextBits(int toGet, ImgSubFile.FileContext context) throws IOException
+        {
+            int curPos=0;
+            int result=0;
+            do
+            {
+                getSomethingIfNeeded(context);
+                final int remainingToGet=toGet-curPos;
+                if(remainingToGet>=remainingBits)
+                {
+                    result|=curByte<<curPos;
+                    curPos+=remainingBits;
+                    remainingBits=0;
+                }
+                else
+                {
+                    int mask=(1<<remainingToGet)-1;
+                    result|=(curByte&mask)<<curPos;
+                    curByte>>>=remainingToGet;
+                    remainingBits-=remainingToGet;
+                    return result;
+                }
+            }
+            while(curPos<toGet);
+            return result;
+        }
+
+        private void getSomethingIfNeeded(ImgSubFile.FileContext context) throws IOException
+        {
+            if(remainingBits==0)
+            {
+                if(length==0)
+                    throw new EOFException();
+                remainingBits=8;
+                length--;
+                curByte=file.readByte(context);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Many threads reading the same maps. First starting with nothing parsed, to check the
+ * initializations, then with everything parsed, to check that every thread gets the
+ * same result as a single thread. Prints the throughput for each number of threads.
+ * <p>The first reads are not compared, since until a TRE file is parsed, the choice
+ * between the base map and the detailed maps is only a guess (see
+ * {@link TreSubFile#guessLowestNbBits()}).
+ */
+public class ConcurrentReadTest extends TestCase
+{
+    private static final int NB_QUERIES=200;
+
+    public void testStress() throws Exception
+    {
+        File directory=new File("/home/patrick/gps/maps");
+        if(!directory.isDirectory()) return;
+
+        ImgFilesBag reference=new ImgFilesBag();
+        reference.addDirectory(directory);
+        parseAll(reference);
+        int[][] queries=createQueries(reference);
+        long[] expected=new long[NB_QUERIES];
+        for(int cpt=0; cpt<NB_QUERIES; ++cpt)
+        {
+            expected[cpt]=read(reference, queries[cpt]);
+        }
+
+        for(int nbThreads=1; nbThreads<=16; nbThreads*=2)
+        {
+            ImgFilesBag maps=new ImgFilesBag();
+            maps.addDirectory(directory);
+            //nothing parsed yet
+            runThreads(nbThreads, maps, queries, null);
+            parseAll(maps);
+            long time=runThreads(nbThreads, maps, queries, expected);
+            System.out.println(nbThreads+" threads: "+(nbThreads*NB_QUERIES*1000L/time)+" queries/s");
+        }
+    }
+
+    /**
+     * @return The time taken, in ms.
+     */
+    private static long runThreads(int nbThreads, final ImgFilesBag maps, final int[][] queries, final long[] expected) throws InterruptedException
+    {
+        final CountDownLatch start=new CountDownLatch(1);
+        final Throwable[] errors=new Throwable[nbThreads];
+        Thread[] threads=new Thread[nbThreads];
+        for(int cpt=0; cpt<nbThreads; ++cpt)
+        {
+            final int threadNum=cpt;
+            threads[cpt]=new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for(int query=0; query<NB_QUERIES; ++query)
+                        {
+                            //each thread in a different order
+                            int cur=(query+threadNum*17)%NB_QUERIES;
+                            long actual=read(maps, queries[cur]);
+                            if(expected!=null)
+                                assertEquals(expected[cur], actual);
+                        }
+                    }
+                    catch(Throwable e)
+                    {
+                        errors[threadNum]=e;
+                    }
+                }
+            };
+            threads[cpt].start();
+        }
+        long startTime=System.currentTimeMillis();
+        start.countDown();
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        long time=Math.max(1, System.currentTimeMillis()-startTime);
+        for(Throwable error : errors)
+        {
+            if(error!=null)
+                throw new RuntimeException(error);
+        }
+        return time;
+    }
+
+    /**
+     * Read everything with all the details, to parse all the TRE files.
+     */
+    private static void parseAll(ImgFilesBag maps) throws IOException
+    {
+        read(maps, new int[]{maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(), 1});
+    }
+
+    private static int[][] createQueries(ImgFilesBag maps) throws IOException
+    {
+        Random random=new Random(42);
+        int minLon=maps.getMinLongitude();
+        int width=maps.getMaxLongitude()-minLon;
+        int minLat=maps.getMinLatitude();
+        int height=maps.getMaxLatitude()-minLat;
+        int[][] result=new int[NB_QUERIES][];
+        for(int cpt=0; cpt<NB_QUERIES; ++cpt)
+        {
+            int lon=minLon+random.nextInt(width);
+            int lat=minLat+random.nextInt(height);
+            int size=1+random.nextInt(Math.max(width, height)/4+1);
+            int resolution=1<<random.nextInt(12);
+            result[cpt]=new int[]{lon, lon+size, lat, lat+size, resolution};
+        }
+        return result;
+    }
+
+    private static long read(ImgFilesBag maps, int[] query) throws IOException
+    {
+        ChecksumListener listener=new ChecksumListener();
+        maps.readMapForDrawing(query[0], query[1], query[2], query[3], query[4], ObjectKind.ALL, listener);
+        return listener.checksum;
+    }
+
+    private static class ChecksumListener implements MapListener
+    {
+        private long checksum=0;
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            checksum=checksum*31+type;
+            checksum=checksum*31+longitude+latitude;
+            addLabel(label);
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            checksum=checksum*31+type;
+            for(int cpt=0; cpt<nbPoints; ++cpt)
+            {
+                checksum=checksum*31+longitudes[cpt]+latitudes[cpt];
+            }
+            addLabel(label);
+        }
+
+        private void addLabel(Label label)
+        {
+            if(label!=null)
+                checksum=checksum*31+label.toString().hashCode();
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+            checksum=checksum*31+subDivision.getIndex();
+        }
+
+        public void finishPainting()
+        {
+        }
+    }
+}
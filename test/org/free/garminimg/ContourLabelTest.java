@@ -0,0 +1,93 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+import org.free.garminimg.utils.PolyLabelReducerListener;
+import org.free.garminimg.utils.TransformedMapListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ContourLabelTest extends TestCase
+{
+    /**
+     * The contour lines with the same altitude have their label shown only once, like when
+     * they had name-only labels.
+     */
+    public void testSameAltitude() throws IOException
+    {
+        ImgFileBag file=new ImgFileBag(new File("contours.img"), null);
+        Label first=createContour(file, 10, "100");
+        Label sameAltitude=createContour(file, 20, "100");
+        Label other=createContour(file, 30, "200");
+        assertEquals(first, sameAltitude);
+        assertEquals(first.hashCode(), sameAltitude.hashCode());
+        assertFalse(first.equals(other));
+
+        //not equal to another kind of label at the same offset
+        SimpleLabel simple=new SimpleLabel(file, "contours", 10);
+        assertFalse(first.equals(simple));
+        assertFalse(simple.equals(first));
+
+        final List<Label> shown=new ArrayList<Label>();
+        PolyLabelReducerListener reducer=new PolyLabelReducerListener(new TransformedMapListener()
+        {
+            public void addPoint(int type, int subType, int x, int y, Label label, boolean indexed)
+            {
+            }
+
+            public void addPoly(int type, int[] xPoints, int[] yPoints, int nbPoints, Label label, boolean line)
+            {
+                shown.add(label);
+            }
+
+            public void startMap(ImgFileBag file)
+            {
+            }
+
+            public void startSubDivision(SubDivision subDivision)
+            {
+            }
+
+            public void finishPainting()
+            {
+            }
+        });
+        int[] points={0, 1};
+        for(Label label : new Label[]{first, sameAltitude, other})
+        {
+            reducer.addPoly(0x20, points, points, 2, label, true);
+        }
+        assertSame(first, shown.get(0));
+        assertNull(shown.get(1));
+        assertSame(other, shown.get(2));
+    }
+
+    private static Label createContour(ImgFileBag file, int offset, String meters)
+    {
+        ContourLabel result=new ContourLabel(file, "contours", offset);
+        result.name=meters;
+        result.initDone=true;
+        return result;
+    }
+}
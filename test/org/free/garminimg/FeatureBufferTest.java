@@ -0,0 +1,122 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.util.BitSet;
+
+public class FeatureBufferTest extends TestCase
+{
+    public void testReplay()
+    {
+        FeatureBuffer buffer=new FeatureBuffer();
+        fill(buffer);
+        StringListener expected=new StringListener();
+        fill(expected);
+
+        StringListener actual=new StringListener();
+        buffer.replay(actual);
+        assertEquals(expected.result.toString(), actual.result.toString());
+
+        //can be replayed several times
+        actual=new StringListener();
+        buffer.replay(actual);
+        assertEquals(expected.result.toString(), actual.result.toString());
+    }
+
+    public void testFilter()
+    {
+        FeatureBuffer buffer=new FeatureBuffer();
+        fill(buffer);
+        BitSet filter=new BitSet();
+        filter.set(0x0B);
+
+        StringListener actual=new StringListener();
+        buffer.replay(actual, filter);
+        assertEquals("map;sub;poly 11 false false 2:(1,2)(3,4);sub;finish;", actual.result.toString());
+    }
+
+    public void testClear()
+    {
+        FeatureBuffer buffer=new FeatureBuffer();
+        fill(buffer);
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        StringListener actual=new StringListener();
+        buffer.replay(actual);
+        assertEquals("", actual.result.toString());
+    }
+
+    private void fill(MapListener listener)
+    {
+        listener.startMap(null);
+        listener.startSubDivision(null);
+        listener.addPoly(0x0B, new int[]{1, 3, 99}, new int[]{2, 4, 99}, 2, null, false, false);
+        listener.addPoint(0x2A, 3, 10, 20, null, true);
+        listener.startSubDivision(null);
+        int[] longitudes=new int[1000];
+        int[] latitudes=new int[1000];
+        for(int cpt=0; cpt<longitudes.length; ++cpt)
+        {
+            longitudes[cpt]=cpt;
+            latitudes[cpt]=-cpt;
+        }
+        listener.addPoly(0x16, longitudes, latitudes, longitudes.length, null, true, true);
+        listener.finishPainting();
+    }
+
+    private static class StringListener implements MapListener
+    {
+        private StringBuilder result=new StringBuilder();
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            result.append("point ").append(type).append('/').append(subType).append(" (").append(longitude).append(',')
+                    .append(latitude).append(") ").append(indexed).append(';');
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            result.append("poly ").append(type).append(' ').append(line).append(' ').append(direction).append(' ')
+                    .append(nbPoints).append(':');
+            for(int cpt=0; cpt<nbPoints; ++cpt)
+            {
+                result.append('(').append(longitudes[cpt]).append(',').append(latitudes[cpt]).append(')');
+            }
+            result.append(';');
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+            result.append("map;");
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+            result.append("sub;");
+        }
+
+        public void finishPainting()
+        {
+            result.append("finish;");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+public class FeatureCursorTest extends TestCase
+{
+    public void testSameAsListener() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        BitSet types=new BitSet();
+        types.set(0x01, 0x20);
+        for(boolean withCache : new boolean[]{false, true})
+        {
+            ImgFilesBag maps=new ImgFilesBag();
+            if(withCache)
+                maps.setSubDivisionCache(new SubDivisionCache());
+            maps.addFile(file);
+            for(int resolution=1; resolution<=4096; resolution*=8)
+            {
+                for(int kind : new int[]{ObjectKind.ALL, ObjectKind.POLYLINE, ObjectKind.POINT|ObjectKind.INDEXED_POINT})
+                {
+                    for(BitSet typeFilter : new BitSet[]{null, types})
+                    {
+                        ChecksumListener expected=new ChecksumListener();
+                        maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                     resolution, kind, typeFilter, expected);
+
+                        ChecksumListener actual=new ChecksumListener();
+                        FeatureCursor cursor=maps.createCursor(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                                               resolution, kind, typeFilter);
+                        int[] longitudes=new int[16];
+                        int[] latitudes=new int[16];
+                        while(cursor.next())
+                        {
+                            final int nbPoints=cursor.getNbPoints();
+                            if(cursor.getKind()==ObjectKind.POINT || cursor.getKind()==ObjectKind.INDEXED_POINT)
+                            {
+                                assertEquals(1, nbPoints);
+                                actual.addPoint(cursor.getType(), cursor.getSubType(), cursor.getLongitude(0), cursor.getLatitude(0),
+                                                cursor.getLabel(), cursor.getKind()==ObjectKind.INDEXED_POINT);
+                            }
+                            else
+                            {
+                                if(nbPoints>longitudes.length)
+                                {
+                                    longitudes=new int[nbPoints];
+                                    latitudes=new int[nbPoints];
+                                }
+                                cursor.getCoordinates(longitudes, latitudes);
+                                assertEquals(longitudes[nbPoints-1], cursor.getLongitude(nbPoints-1));
+                                actual.addPoly(cursor.getType(), longitudes, latitudes, nbPoints, cursor.getLabel(),
+                                               cursor.getKind()==ObjectKind.POLYLINE, cursor.hasDirection());
+                            }
+                        }
+                        assertEquals(expected.nbObjects, actual.nbObjects);
+                        assertEquals(expected.checksum, actual.checksum);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSeveralFiles() throws IOException
+    {
+        File directory=new File("/home/patrick/gps/maps");
+        if(!directory.isDirectory()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addDirectory(directory);
+        final int minLong=maps.getMinLongitude();
+        final int maxLong=maps.getMaxLongitude();
+        final int minLat=maps.getMinLatitude();
+        final int maxLat=maps.getMaxLatitude();
+        //parse all the TRE files, to have the same choice of maps every time
+        maps.readMap(minLong, maxLong, minLat, maxLat, 1, ObjectKind.ALL, null, new FeatureBuffer());
+
+        ChecksumListener expected=new ChecksumListener();
+        maps.readMap(minLong, maxLong, minLat, maxLat, 1, ObjectKind.POINT|ObjectKind.INDEXED_POINT, null, expected);
+        ChecksumListener actual=new ChecksumListener();
+        FeatureCursor cursor=maps.createCursor(minLong, maxLong, minLat, maxLat, 1, ObjectKind.POINT|ObjectKind.INDEXED_POINT, null);
+        while(cursor.next())
+        {
+            actual.addPoint(cursor.getType(), cursor.getSubType(), cursor.getLongitude(0), cursor.getLatitude(0),
+                            cursor.getLabel(), cursor.getKind()==ObjectKind.INDEXED_POINT);
+        }
+        assertEquals(expected.nbObjects, actual.nbObjects);
+        assertEquals(expected.checksum, actual.checksum);
+    }
+
+    public void testEarlyStop() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        FeatureCursor cursor=maps.createCursor(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                               1, ObjectKind.ALL, null);
+        for(int cpt=0; cpt<10; ++cpt)
+        {
+            assertTrue(cursor.next());
+            assertNotNull(cursor.getMap());
+            assertNotNull(cursor.getSubDivision());
+        }
+    }
+
+    private static class ChecksumListener implements MapListener
+    {
+        private int nbObjects=0;
+
+        private long checksum=0;
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            nbObjects++;
+            checksum=checksum*31+type;
+            checksum=checksum*31+subType;
+            checksum=checksum*31+longitude+latitude;
+            checksum=checksum*31+(indexed?1:0);
+            addLabel(label);
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            nbObjects++;
+            checksum=checksum*31+type;
+            checksum=checksum*31+(line?1:0)+(direction?2:0);
+            for(int cpt=0; cpt<nbPoints; ++cpt)
+            {
+                checksum=checksum*31+longitudes[cpt]+latitudes[cpt];
+            }
+            addLabel(label);
+        }
+
+        private void addLabel(Label label)
+        {
+            if(label!=null)
+                checksum=checksum*31+label.getClass().getName().hashCode()+label.toString().hashCode();
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+        }
+
+        public void finishPainting()
+        {
+        }
+    }
+}
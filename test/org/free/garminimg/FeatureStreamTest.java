@@ -0,0 +1,99 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+public class FeatureStreamTest extends TestCase
+{
+    public void testSameAsCursor() throws IOException
+    {
+        File directory=new File("/home/patrick/gps/maps");
+        if(!directory.isDirectory()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addDirectory(directory);
+        final int minLong=maps.getMinLongitude();
+        final int maxLong=maps.getMaxLongitude();
+        final int minLat=maps.getMinLatitude();
+        final int maxLat=maps.getMaxLatitude();
+        //parse all the TRE files, to have the same choice of maps every time
+        maps.readMap(minLong, maxLong, minLat, maxLat, 1, ObjectKind.ALL, null, new FeatureBuffer());
+
+        for(int resolution=1; resolution<=4096; resolution*=8)
+        {
+            long expected=0;
+            int nbExpected=0;
+            FeatureCursor cursor=maps.createCursor(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.ALL, null);
+            while(cursor.next())
+            {
+                expected=expected*31+cursor.getType()*7+cursor.getLongitude(cursor.getNbPoints()-1);
+                nbExpected++;
+            }
+
+            List<Feature> sequential=maps.stream(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.ALL, null).collect(Collectors.toList());
+            List<Feature> parallel=maps.stream(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.ALL, null).parallel().collect(Collectors.toList());
+            assertEquals(nbExpected, sequential.size());
+            assertEquals(nbExpected, parallel.size());
+            assertEquals(expected, checksum(sequential));
+            assertEquals(expected, checksum(parallel));
+
+            Map<Integer, Long> byType=maps.stream(minLong, maxLong, minLat, maxLat, resolution, ObjectKind.POLYLINE, null).parallel()
+                    .collect(Collectors.groupingBy(Feature::getType, Collectors.counting()));
+            long nbLines=sequential.stream().filter(f -> f.getKind()==ObjectKind.POLYLINE).count();
+            assertEquals(nbLines, byType.values().stream().mapToLong(Long::longValue).sum());
+        }
+    }
+
+    public void testSplit() throws IOException
+    {
+        File directory=new File("/home/patrick/gps/maps");
+        if(!directory.isDirectory()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addDirectory(directory);
+        Spliterator<Feature> spliterator=maps.stream(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                                     1, ObjectKind.ALL, null).spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.ORDERED));
+        long total=spliterator.estimateSize();
+        Spliterator<Feature> prefix=spliterator.trySplit();
+        assertNotNull(prefix);
+        assertTrue(prefix.estimateSize()<=total);
+        assertTrue(spliterator.estimateSize()<=total);
+    }
+
+    private static long checksum(List<Feature> features)
+    {
+        long result=0;
+        for(Feature feature : features)
+        {
+            result=result*31+feature.getType()*7+feature.getLongitude(feature.getNbPoints()-1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FileHandlePoolTest extends TestCase
+{
+    private final List<File> files=new ArrayList<File>();
+
+    protected void setUp() throws Exception
+    {
+        for(int cpt=0; cpt<4; ++cpt)
+        {
+            File file=File.createTempFile("pool", ".img");
+            FileOutputStream output=new FileOutputStream(file);
+            try
+            {
+                byte[] content=new byte[4096];
+                for(int pos=0; pos<content.length; ++pos)
+                {
+                    content[pos]=(byte)(pos/512);
+                }
+                output.write(content);
+            }
+            finally
+            {
+                output.close();
+            }
+            files.add(file);
+        }
+    }
+
+    protected void tearDown() throws Exception
+    {
+        for(File file : files)
+        {
+            file.delete();
+        }
+    }
+
+    public void testLeastRecentlyUsedClosed() throws IOException
+    {
+        FileHandlePool pool=new FileHandlePool(2);
+        pool.acquire(files.get(0)).release();
+        pool.acquire(files.get(1)).release();
+        //file 0 becomes the most recently used
+        FileHandlePool.Handle first=pool.acquire(files.get(0));
+        first.release();
+
+        pool.acquire(files.get(2)).release();
+        assertEquals(2, pool.getNbOpenFiles());
+        assertEquals(1, pool.getCloses());
+        //file 0 is still open
+        assertSame(first, pool.acquire(files.get(0)));
+        assertEquals(3, pool.getOpens());
+        assertEquals(0, pool.getOverflows());
+    }
+
+    public void testOverLimitWhenAllInUse() throws IOException
+    {
+        FileHandlePool pool=new FileHandlePool(2);
+        List<FileHandlePool.Handle> handles=new ArrayList<FileHandlePool.Handle>();
+        for(File file : files)
+        {
+            //must not wait for a release
+            handles.add(pool.acquire(file));
+        }
+        assertEquals(4, pool.getNbOpenFiles());
+        assertEquals(2, pool.getOverflows());
+        for(FileHandlePool.Handle handle : handles)
+        {
+            handle.release();
+        }
+        //back under the limit when the next file is opened
+        pool.close(files.get(3));
+        pool.acquire(files.get(3)).release();
+        assertEquals(2, pool.getNbOpenFiles());
+    }
+
+    public void testSameFileConcurrently() throws Exception
+    {
+        final FileHandlePool pool=new FileHandlePool(2);
+        final FileHandlePool.Handle[] results=new FileHandlePool.Handle[8];
+        Thread[] threads=new Thread[results.length];
+        for(int cpt=0; cpt<threads.length; ++cpt)
+        {
+            final int index=cpt;
+            threads[cpt]=new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results[index]=pool.acquire(files.get(0));
+                    }
+                    catch(IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[cpt].start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        for(FileHandlePool.Handle result : results)
+        {
+            assertSame(results[0], result);
+            assertNotNull(result.getInput());
+        }
+        assertEquals(1, pool.getOpens());
+        assertFalse(pool.close(files.get(0)));
+        for(FileHandlePool.Handle result : results)
+        {
+            result.release();
+        }
+        assertTrue(pool.close(files.get(0)));
+        assertEquals(0, pool.getNbOpenFiles());
+    }
+
+    /**
+     * A reader interrupted in the middle of a read closes the file for the other users
+     * of the handle, they must get a new one.
+     */
+    public void testInterruptedReader() throws IOException
+    {
+        ImgFileBag file=new ImgFileBag(files.get(0), null);
+        RandomAccessBlocStorage storage=new RandomAccessBlocStorage(file);
+        FileHandlePool.Handle other=file.acquireInput();
+        try
+        {
+            Thread.currentThread().interrupt();
+            try
+            {
+                storage.getBloc(0, 512);
+                fail("Should have been interrupted");
+            }
+            catch(ClosedByInterruptException e)
+            {
+                assertTrue(Thread.interrupted());
+            }
+            assertFalse(other.getInput().getChannel().isOpen());
+            assertBloc(storage, 1);
+
+            //closed by another thread while we hold the handle in the pool
+            FileHandlePool.Handle current=file.acquireInput();
+            current.getInput().getChannel().close();
+            current.release();
+            assertBloc(storage, 2);
+            assertBloc(storage, 3);
+        }
+        finally
+        {
+            other.release();
+        }
+        assertTrue(file.close());
+    }
+
+    private static void assertBloc(RandomAccessBlocStorage storage, int index) throws IOException
+    {
+        ByteBuffer bloc=storage.getBloc(index*512, 512);
+        assertEquals(512, bloc.remaining());
+        assertEquals(index, bloc.get(0));
+        assertEquals(index, bloc.get(511));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LabelCacheTest extends TestCase
+{
+    public void testSameNames() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        LabelCache cache=maps.getLabelCache();
+        List<String> first=readNames(maps);
+        assertFalse(first.isEmpty());
+        assertTrue(cache.getNbEntries()>0);
+        assertTrue(cache.getSize()<=cache.getMaxSize());
+        cache.resetStatistics();
+
+        //the second time, the names come from the cache
+        List<String> second=readNames(maps);
+        assertEquals(first, second);
+        assertEquals(0, cache.getMisses());
+        assertTrue(cache.getHits()>0);
+
+        maps.clear();
+        assertEquals(0, cache.getNbEntries());
+    }
+
+    private static List<String> readNames(ImgFilesBag maps) throws IOException
+    {
+        final List<String> result=new ArrayList<String>();
+        maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                     1, ObjectKind.ALL, null, new MapListener()
+        {
+            public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+            {
+                addLabel(label);
+            }
+
+            public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+            {
+                addLabel(label);
+            }
+
+            private void addLabel(Label label)
+            {
+                if(label==null)
+                    return;
+                result.add(label.toString());
+            }
+
+            public void startMap(ImgFileBag file)
+            {
+            }
+
+            public void startSubDivision(SubDivision subDivision)
+            {
+            }
+
+            public void finishPainting()
+            {
+            }
+        });
+        return result;
+    }
+}
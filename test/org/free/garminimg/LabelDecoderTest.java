@@ -0,0 +1,294 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the table driven label decoder with the original implementation, kept here
+ * as a reference, and prints the throughput of both.
+ */
+public class LabelDecoderTest extends TestCase
+{
+    private static final int NB_LABELS=20000;
+
+    public void testSixBits()
+    {
+        byte[] bytes=createSixBitsLabels(new Random(42));
+        compare(6, bytes);
+        benchmark(6, bytes);
+    }
+
+    public void testEightBits()
+    {
+        byte[] bytes=createEightBitsLabels(new Random(42));
+        compare(9, bytes);
+        benchmark(9, bytes);
+    }
+
+    /**
+     * A label that doesn't end in the given bytes must be detected.
+     */
+    public void testNotTerminated()
+    {
+        LabelDecoder decoder=new LabelDecoder();
+        byte[] bytes={0x04, 0x20, (byte)0xC4, 0x10};   //"ABCD" without end marker
+        assertEquals(-1, decoder.decode6b(bytes, 0, bytes.length));
+        assertEquals(-1, decoder.decode8b(new byte[]{'A', 'B'}, 0, 2));
+    }
+
+    /**
+     * The labels read in bulk must be the same as the ones read one by one.
+     */
+    public void testBulk() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFileBag fileBag=new ImgFileBag(file, null);
+        final Map<Integer, String> labels=new HashMap<Integer, String>();
+        for(LblSubFile lbl : fileBag.getLblFiles())
+        {
+            labels.clear();
+            final LblSubFile curLbl=lbl;
+            lbl.readLabels(new LblSubFile.LabelVisitor()
+            {
+                public void visit(int offset, char[] chars, int nbChars) throws IOException
+                {
+                    String label=new String(chars, 0, nbChars);
+                    assertEquals(curLbl.getLabel(offset), label);
+                    labels.put(offset, label);
+                }
+            });
+            assertTrue(labels.size()>1);
+        }
+    }
+
+    private static void compare(int coding, byte[] bytes)
+    {
+        LabelDecoder decoder=new LabelDecoder();
+        ReferenceDecoder reference=new ReferenceDecoder(bytes);
+        int pos=0;
+        for(int cpt=0; cpt<NB_LABELS; ++cpt)
+        {
+            String expected=coding==6 ? reference.getLabel6b(pos) : reference.getLabel8b(pos);
+            int next=decoder.decode(coding, bytes, pos, bytes.length);
+            assertEquals(expected, decoder.getString());
+            assertEquals(reference.pos, next);
+            pos=next;
+        }
+        assertEquals(bytes.length, pos);
+    }
+
+    private static void benchmark(int coding, byte[] bytes)
+    {
+        LabelDecoder decoder=new LabelDecoder();
+        ReferenceDecoder reference=new ReferenceDecoder(bytes);
+        long referenceTime=Long.MAX_VALUE;
+        long time=Long.MAX_VALUE;
+        long checksum=0;
+        //the best of several runs, to let the JIT do its work
+        for(int run=0; run<10; ++run)
+        {
+            long start=System.nanoTime();
+            int pos=0;
+            for(int cpt=0; cpt<NB_LABELS; ++cpt)
+            {
+                String label=coding==6 ? reference.getLabel6b(pos) : reference.getLabel8b(pos);
+                checksum+=label.length();
+                pos=reference.pos;
+            }
+            referenceTime=Math.min(referenceTime, System.nanoTime()-start);
+
+            start=System.nanoTime();
+            pos=0;
+            for(int cpt=0; cpt<NB_LABELS; ++cpt)
+            {
+                pos=decoder.decode(coding, bytes, pos, bytes.length);
+                checksum-=decoder.getString().length();
+            }
+            time=Math.min(time, System.nanoTime()-start);
+        }
+        assertEquals(0, checksum);
+        System.out.println("coding "+coding+": reference="+(NB_LABELS*1000000000L/referenceTime)+" labels/s, "+
+                           "table driven="+(NB_LABELS*1000000000L/time)+" labels/s, "+
+                           "speedup="+(referenceTime*100/time)/100.0);
+    }
+
+    private static byte[] createSixBitsLabels(Random random)
+    {
+        ByteArrayOutputStream result=new ByteArrayOutputStream();
+        for(int cpt=0; cpt<NB_LABELS; ++cpt)
+        {
+            int nbChars=random.nextInt(30);
+            int[] codes=new int[nbChars*2+1];
+            int nbCodes=0;
+            for(int chr=0; chr<nbChars; ++chr)
+            {
+                int set=random.nextInt(4);
+                if(set==1)
+                    codes[nbCodes++]=0x1c;
+                else if(set==2)
+                    codes[nbCodes++]=0x1b;
+                codes[nbCodes++]=random.nextInt(0x30);
+            }
+            codes[nbCodes++]=0x30+random.nextInt(0x10);
+            for(int code=0; code<nbCodes; code+=4)
+            {
+                int group=0;
+                for(int sub=0; sub<4; ++sub)
+                {
+                    group=group<<6|(code+sub<nbCodes ? codes[code+sub] : random.nextInt(0x40));
+                }
+                result.write(group>>16);
+                result.write(group>>8);
+                result.write(group);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] createEightBitsLabels(Random random)
+    {
+        ByteArrayOutputStream result=new ByteArrayOutputStream();
+        for(int cpt=0; cpt<NB_LABELS; ++cpt)
+        {
+            int nbChars=random.nextInt(30);
+            for(int chr=0; chr<nbChars; ++chr)
+            {
+                result.write(1+random.nextInt(255));
+            }
+            result.write(0);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * The original implementation from LblSubFile, reading from an array instead of
+     * the sub-file.
+     */
+    private static class ReferenceDecoder
+    {
+        private final byte[] bytes;
+
+        int pos;
+
+        public ReferenceDecoder(byte[] bytes)
+        {
+            this.bytes=bytes;
+        }
+
+        private int readByte()
+        {
+            return bytes[pos++]&0xFF;
+        }
+
+        private enum CharSet
+        {
+            NORMAL, SYMBOL, SPECIAL,
+        }
+
+        private static final char NORMAL_CHARS[]=" ABCDEFGHIJKLMNOPQRSTUVWXYZ~~~~~0123456789~~~~~~".toCharArray();
+
+        private static final char SYMBOL_CHARS[]="@!\"#$%&'()*+,-./~~~~~~~~~~:;<=>?~~~~~~~~~~~[\\]^_".toCharArray();
+
+        private static final char SPECIAL_CHARS[]="`abcdefghijklmnopqrstuvwxyz~~~~~0123456789~~~~~~".toCharArray();
+
+        public String getLabel6b(int offset)
+        {
+            pos=offset;
+            StringBuffer result=new StringBuffer();
+            CharSet curCharSet=CharSet.NORMAL;
+            while(true)
+            {
+                int b1=readByte();
+                int b2=readByte();
+                int b3=readByte();
+
+                int c[]=
+                        {b1>>2, (b1&0x3)<<4|b2>>4, (b2&0xF)<<2|b3>>6, b3&0x3F};
+
+                for(int cpt=0; cpt<4; ++cpt)
+                {
+                    if(c[cpt]>0x2F)
+                        return result.toString();
+                    switch(curCharSet)
+                    {
+                        case NORMAL:
+                            if(c[cpt]==0x1c)
+                            {
+                                curCharSet=CharSet.SYMBOL;
+                            }
+                            else if(c[cpt]==0x1b)
+                            {
+                                curCharSet=CharSet.SPECIAL;
+                            }
+                            else if(c[cpt]==0x1d)
+                            {
+                                result.append('|');
+                            }
+                            else if(c[cpt]==0x1f)
+                            {
+                                result.append(' ');
+                            }
+                            else if(c[cpt]==0x1e)
+                            {
+                                result.append(' ');
+                            }
+                            else
+                            {
+                                result.append(NORMAL_CHARS[c[cpt]]);
+                            }
+                            break;
+                        case SYMBOL:
+                            result.append(SYMBOL_CHARS[c[cpt]]);
+                            curCharSet=CharSet.NORMAL;
+                            break;
+                        case SPECIAL:
+                            result.append(SPECIAL_CHARS[c[cpt]]);
+                            curCharSet=CharSet.NORMAL;
+                            break;
+                    }
+                }
+            }
+        }
+
+        public String getLabel8b(int offset)
+        {
+            pos=offset;
+            StringBuffer result=new StringBuffer();
+            while(true)
+            {
+                char cur=(char)readByte();
+                if(cur==0)
+                    break;
+                result.append(cur);
+            }
+            return result.toString();
+        }
+    }
+}
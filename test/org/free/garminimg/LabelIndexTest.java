@@ -0,0 +1,122 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+import org.free.garminimg.utils.FindObjectByNameListener;
+import org.free.garminimg.utils.FoundObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The searches using the index of the names must find the same objects as the full reads.
+ */
+public class LabelIndexTest extends TestCase
+{
+    private static final String[] SEARCHES={"a", "^[A-Z]+ ", "ST", "1", "E D", "ZZZZZZ"};
+
+    public void testSameAsFullRead() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        //builds the indexes
+        search(maps, "x", ObjectKind.ALL, 1, true);
+
+        int[] kinds={ObjectKind.ALL, ObjectKind.POLYLINE, ObjectKind.POINT|ObjectKind.INDEXED_POINT};
+        for(String search : SEARCHES)
+        {
+            for(int kind : kinds)
+            {
+                for(int resolution=1; resolution<=4096; resolution*=16)
+                {
+                    long start=System.currentTimeMillis();
+                    List<String> expected=search(maps, search, kind, resolution, false);
+                    long fullTime=System.currentTimeMillis()-start;
+                    start=System.currentTimeMillis();
+                    List<String> actual=search(maps, search, kind, resolution, true);
+                    long indexedTime=System.currentTimeMillis()-start;
+                    assertEquals(search, expected, actual);
+                    if(kind==ObjectKind.ALL && resolution==1)
+                        System.out.println("\""+search+"\": "+expected.size()+" found, full read="+fullTime+"ms, indexed="+indexedTime+"ms");
+                }
+            }
+        }
+    }
+
+    public void testPrefix() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        List<String> all=search(maps, "", ObjectKind.ALL, 1, false);
+        assertFalse(all.isEmpty());
+        //take the beginning of the words of a name
+        String name=all.get(all.size()/2);
+        StringBuilder prefixes=new StringBuilder();
+        for(String word : LabelIndex.tokenize(name))
+        {
+            prefixes.append(word.substring(0, Math.min(2, word.length())).toLowerCase()).append(' ');
+        }
+        FindObjectByNameListener listener=new FindObjectByNameListener(Pattern.compile(""));
+        maps.readMapByName(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(), 1,
+                           ObjectKind.ALL, null, LabelQuery.prefix(prefixes.toString()), listener);
+        List<String> found=getNames(listener);
+        assertTrue(found.contains(name));
+        assertTrue(found.size()<=all.size());
+    }
+
+    public void testTokenize()
+    {
+        assertEquals(Arrays.asList("RUE", "DU", "1ER", "MARS"), LabelIndex.tokenize("Rue du 1er-Mars "));
+        assertEquals(Arrays.asList(), LabelIndex.tokenize(" - "));
+    }
+
+    private static List<String> search(ImgFilesBag maps, String search, int kind, int resolution, boolean indexed) throws IOException
+    {
+        FindObjectByNameListener listener=new FindObjectByNameListener(Pattern.compile(search, Pattern.CASE_INSENSITIVE));
+        if(indexed)
+            maps.readMapByName(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                               resolution, kind, null, listener.getQuery(), listener);
+        else
+            maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                         resolution, kind, null, listener);
+        return getNames(listener);
+    }
+
+    private static List<String> getNames(FindObjectByNameListener listener) throws IOException
+    {
+        List<String> result=new ArrayList<String>();
+        for(FoundObject found : listener.getFounds())
+        {
+            result.add(found.getLabel().getName());
+        }
+        return result;
+    }
+}
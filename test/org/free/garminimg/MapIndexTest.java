@@ -0,0 +1,138 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+import org.free.garminimg.utils.FindObjectByNameListener;
+import org.free.garminimg.utils.FoundObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class MapIndexTest extends TestCase
+{
+    public void testSameAsParsed() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+        File indexFile=File.createTempFile("index", ".idx");
+        indexFile.delete();
+        try
+        {
+            //parse the file and fill the index
+            ImgFilesBag parsed=new ImgFilesBag();
+            parsed.setIndex(new MapIndex(indexFile));
+            parsed.addFile(file);
+            CountingListener expected=readAll(parsed);
+            //builds the indexes of the names
+            List<String> expectedNames=searchByName(parsed);
+            parsed.saveIndex();
+            assertTrue(indexFile.exists());
+
+            //use the index
+            ImgFilesBag indexed=new ImgFilesBag();
+            MapIndex index=new MapIndex(indexFile);
+            assertEquals(1, index.getNbEntries());
+            indexed.setIndex(index);
+            indexed.addFile(file);
+            assertEquals(parsed.getMinLongitude(), indexed.getMinLongitude());
+            assertEquals(parsed.getMaxLongitude(), indexed.getMaxLongitude());
+            assertEquals(parsed.getMinLatitude(), indexed.getMinLatitude());
+            assertEquals(parsed.getMaxLatitude(), indexed.getMaxLatitude());
+            CountingListener actual=readAll(indexed);
+            assertEquals(expected.nbPoints, actual.nbPoints);
+            assertEquals(expected.nbPolies, actual.nbPolies);
+            assertEquals(expected.nbSubDivisions, actual.nbSubDivisions);
+            assertEquals(expected.checksum, actual.checksum);
+            assertEquals(expectedNames, searchByName(indexed));
+        }
+        finally
+        {
+            indexFile.delete();
+        }
+    }
+
+    private static List<String> searchByName(ImgFilesBag maps) throws IOException
+    {
+        FindObjectByNameListener listener=new FindObjectByNameListener(Pattern.compile("e", Pattern.CASE_INSENSITIVE));
+        maps.readMapByName(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                           1, ObjectKind.ALL, null, listener.getQuery(), listener);
+        List<String> result=new ArrayList<String>();
+        for(FoundObject found : listener.getFounds())
+        {
+            result.add(found.getLabel().getName());
+        }
+        return result;
+    }
+
+    private CountingListener readAll(ImgFilesBag maps) throws IOException
+    {
+        CountingListener result=new CountingListener();
+        for(int resolution=1; resolution<=4096; resolution*=8)
+        {
+            maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                         resolution, ObjectKind.ALL, null, result);
+        }
+        return result;
+    }
+
+    private static class CountingListener implements MapListener
+    {
+        private int nbPoints=0;
+
+        private int nbPolies=0;
+
+        private int nbSubDivisions=0;
+
+        private long checksum=0;
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            nbPoints++;
+            checksum=checksum*31+type+longitude+latitude;
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            nbPolies++;
+            for(int cpt=0; cpt<nbPoints; ++cpt)
+            {
+                checksum=checksum*31+longitudes[cpt]+latitudes[cpt];
+            }
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+            nbSubDivisions++;
+            checksum=checksum*31+subDivision.getIndex();
+        }
+
+        public void finishPainting()
+        {
+        }
+    }
+}
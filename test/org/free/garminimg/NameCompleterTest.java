@@ -0,0 +1,231 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares the completions with a brute force search on all the names and prints the
+ * time taken by a completion.
+ */
+public class NameCompleterTest extends TestCase
+{
+    public void testNormalize()
+    {
+        assertEquals("RUE DU GENERAL-DUFOUR", NameCompleter.normalize("Rue du G\u00e9n\u00e9ral-Dufour"));
+        assertEquals("CAFE 1", NameCompleter.normalize("caf\u00e9 1"));
+    }
+
+    public void testComplete() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        NameCompleter completer=maps.getNameCompleter();
+        assertSame(completer, maps.getNameCompleter());
+        assertTrue(completer.getNbNames()>0);
+        List<String> allNames=new ArrayList<String>();
+        for(NameCompleter.Completion completion : completer.complete("", Integer.MAX_VALUE))
+        {
+            allNames.add(completion.getName());
+            assertTrue(completion.getNbLocations()>0);
+        }
+        assertEquals(completer.getNbNames(), allNames.size());
+
+        long nbCompletions=0;
+        long time=0;
+        for(String name : allNames)
+        {
+            //typed letter by letter
+            NameCompleter.Session session=completer.createSession();
+            String key=NameCompleter.normalize(name);
+            for(int length=1; length<=Math.min(key.length(), 6); ++length)
+            {
+                String prefix=name.substring(0, length);
+                long start=System.nanoTime();
+                List<NameCompleter.Completion> actual=session.complete(prefix, 10);
+                time+=System.nanoTime()-start;
+                nbCompletions++;
+                assertEquals(bruteForce(allNames, prefix, 10), getNames(actual));
+                assertEquals(getNames(actual), getNames(completer.complete(prefix, 10)));
+            }
+        }
+        System.out.println(completer.getNbNames()+" names, "+(time/nbCompletions/1000.0)+"us per completion");
+    }
+
+    /**
+     * Built from the indexes, the completer has the names found by reading all the objects.
+     */
+    public void testSameNamesAsFullRead() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        final Set<String> expected=new TreeSet<String>();
+        maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                     1, ObjectKind.ALL, null, new MapListener()
+        {
+            public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+            {
+                add(label);
+            }
+
+            public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+            {
+                add(label);
+            }
+
+            private void add(Label label)
+            {
+                try
+                {
+                    if(label!=null && label.getName()!=null && label.getName().trim().length()>0)
+                        expected.add(label.getName());
+                }
+                catch(IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void startMap(ImgFileBag file)
+            {
+            }
+
+            public void startSubDivision(SubDivision subDivision)
+            {
+            }
+
+            public void finishPainting()
+            {
+            }
+        });
+
+        Set<String> actual=new TreeSet<String>();
+        for(NameCompleter.Completion completion : maps.getNameCompleter().complete("", Integer.MAX_VALUE))
+        {
+            actual.add(completion.getName());
+        }
+        assertEquals(expected, actual);
+    }
+
+    public void testFilter() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        NameCompleter completer=maps.getNameCompleter();
+        final int[] kinds={ObjectKind.POINT|ObjectKind.INDEXED_POINT, ObjectKind.POLYLINE, ObjectKind.POLYGON};
+        for(NameCompleter.Completion completion : completer.complete("", Integer.MAX_VALUE))
+        {
+            //each location has one of the kinds
+            int nbLocations=0;
+            for(int kind : kinds)
+            {
+                List<NameCompleter.Completion> filtered=completer.complete(completion.getName(), Integer.MAX_VALUE, kind, null);
+                for(NameCompleter.Completion cur : filtered)
+                {
+                    assertTrue(cur.getNbLocations()>0);
+                    if(cur.getName().equals(completion.getName()))
+                        nbLocations+=cur.getNbLocations();
+                }
+            }
+            assertEquals(completion.getName(), completion.getNbLocations(), nbLocations);
+        }
+
+        BitSet noType=new BitSet();
+        assertTrue(completer.complete("", Integer.MAX_VALUE, ObjectKind.ALL, noType).isEmpty());
+    }
+
+    public void testRebuiltAfterClear() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        NameCompleter completer=maps.getNameCompleter();
+        maps.clear();
+        assertEquals(0, maps.getNameCompleter().getNbNames());
+        maps.addFile(file);
+        NameCompleter rebuilt=maps.getNameCompleter();
+        assertFalse(completer==rebuilt);
+        assertEquals(completer.getNbNames(), rebuilt.getNbNames());
+    }
+
+    private static List<String> getNames(List<NameCompleter.Completion> completions)
+    {
+        List<String> result=new ArrayList<String>();
+        for(NameCompleter.Completion completion : completions)
+            result.add(completion.getName());
+        return result;
+    }
+
+    /**
+     * The names starting with the prefix, then the ones with another word starting with it.
+     */
+    private static List<String> bruteForce(List<String> allNames, String prefix, int max)
+    {
+        String key=NameCompleter.normalize(prefix);
+        List<String> result=new ArrayList<String>();
+        for(String name : allNames)
+        {
+            if(result.size()<max && NameCompleter.normalize(name).startsWith(key))
+                result.add(name);
+        }
+        TreeSet<String> others=new TreeSet<String>();
+        List<String> sortedOthers=new ArrayList<String>();
+        for(String name : allNames)
+        {
+            String nameKey=NameCompleter.normalize(name);
+            if(nameKey.startsWith(key))
+                continue;
+            //sorted by the smallest matching word, then by name
+            String smallest=null;
+            for(int cpt=1; cpt<nameKey.length(); ++cpt)
+            {
+                if(Character.isLetterOrDigit(nameKey.charAt(cpt)) && !Character.isLetterOrDigit(nameKey.charAt(cpt-1)) &&
+                   nameKey.startsWith(key, cpt) && (smallest==null || nameKey.substring(cpt).compareTo(smallest)<0))
+                    smallest=nameKey.substring(cpt);
+            }
+            if(smallest!=null)
+                others.add(smallest+"\u0000"+nameKey+"\u0000"+name);
+        }
+        for(String other : others)
+            sortedOthers.add(other.substring(other.lastIndexOf('\u0000')+1));
+        for(int cpt=0; cpt<sortedOthers.size() && result.size()<max; ++cpt)
+            result.add(sortedOthers.get(cpt));
+        return result;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class PackedRTreeTest extends TestCase
+{
+    public void testEmpty()
+    {
+        PackedRTree tree=new PackedRTree(new int[0], new int[0], new int[0], new int[0]);
+        BitSet result=new BitSet();
+        tree.query(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, result);
+        assertTrue(result.isEmpty());
+    }
+
+    public void testSameAsLinearScan()
+    {
+        Random random=new Random(42);
+        for(int nbItems : new int[]{1, 15, 16, 17, 300, 5000})
+        {
+            int[] minLons=new int[nbItems];
+            int[] maxLons=new int[nbItems];
+            int[] minLats=new int[nbItems];
+            int[] maxLats=new int[nbItems];
+            for(int cpt=0; cpt<nbItems; ++cpt)
+            {
+                minLons[cpt]=random.nextInt(1<<24)-(1<<23);
+                maxLons[cpt]=minLons[cpt]+random.nextInt(1<<16);
+                minLats[cpt]=random.nextInt(1<<23)-(1<<22);
+                maxLats[cpt]=minLats[cpt]+random.nextInt(1<<16);
+            }
+            PackedRTree tree=new PackedRTree(minLons, maxLons, minLats, maxLats);
+            assertEquals(nbItems, tree.getNbItems());
+
+            for(int query=0; query<200; ++query)
+            {
+                int minLon=random.nextInt(1<<24)-(1<<23);
+                int maxLon=minLon+random.nextInt(1<<20);
+                int minLat=random.nextInt(1<<23)-(1<<22);
+                int maxLat=minLat+random.nextInt(1<<20);
+
+                BitSet expected=new BitSet();
+                for(int cpt=0; cpt<nbItems; ++cpt)
+                {
+                    if(CoordUtils.matchesCoordinates(minLons[cpt], maxLons[cpt], minLats[cpt], maxLats[cpt],
+                                                     minLon, maxLon, minLat, maxLat))
+                        expected.set(cpt);
+                }
+                BitSet actual=new BitSet();
+                tree.query(minLon, maxLon, minLat, maxLat, actual);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+}
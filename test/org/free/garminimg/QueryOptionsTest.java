@@ -0,0 +1,130 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class QueryOptionsTest extends TestCase
+{
+    public void testStatus() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        for(ImgFilesBag.ExecutionMode mode : ImgFilesBag.ExecutionMode.values())
+        {
+            ImgFilesBag maps=new ImgFilesBag();
+            maps.setExecutionMode(mode);
+            maps.addFile(file);
+
+            CountingListener all=new CountingListener();
+            QueryOptions options=new QueryOptions(new CancellationToken());
+            assertEquals(QueryStatus.COMPLETE, readAll(maps, all, options));
+            assertTrue(all.nbObjects>0);
+            CountingListener noOptions=new CountingListener();
+            assertEquals(QueryStatus.COMPLETE, readAll(maps, noOptions, null));
+            assertEquals(all.nbObjects, noOptions.nbObjects);
+
+            //cancelled before the start
+            CancellationToken token=new CancellationToken();
+            token.cancel();
+            CountingListener cancelled=new CountingListener();
+            assertEquals(QueryStatus.CANCELLED, readAll(maps, cancelled, new QueryOptions(token)));
+            assertEquals(0, cancelled.nbObjects);
+
+            //deadline already passed
+            options=new QueryOptions();
+            options.setDeadline(System.currentTimeMillis()-1);
+            CountingListener late=new CountingListener();
+            assertEquals(QueryStatus.DEADLINE_EXCEEDED, readAll(maps, late, options));
+            assertEquals(0, late.nbObjects);
+
+            //cancelled in the middle, from the listener
+            CancellationToken middle=new CancellationToken();
+            CountingListener partial=new CountingListener(middle, all.nbObjects/2);
+            assertEquals(QueryStatus.CANCELLED, readAll(maps, partial, new QueryOptions(middle)));
+            assertTrue(partial.nbObjects>=all.nbObjects/2);
+            assertTrue(partial.nbObjects<all.nbObjects);
+            assertEquals(1, partial.nbFinishPainting);
+        }
+    }
+
+    private static QueryStatus readAll(ImgFilesBag maps, MapListener listener, QueryOptions options) throws IOException
+    {
+        return maps.readMapForDrawing(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                      1, ObjectKind.ALL, listener, options);
+    }
+
+    private static class CountingListener implements MapListener
+    {
+        private final CancellationToken token;
+
+        private final int cancelAfter;
+
+        private int nbObjects=0;
+
+        private int nbFinishPainting=0;
+
+        public CountingListener()
+        {
+            this(null, 0);
+        }
+
+        public CountingListener(CancellationToken token, int cancelAfter)
+        {
+            this.token=token;
+            this.cancelAfter=cancelAfter;
+        }
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            addObject();
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            addObject();
+        }
+
+        private void addObject()
+        {
+            nbObjects++;
+            if(token!=null && nbObjects==cancelAfter)
+                token.cancel();
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+        }
+
+        public void finishPainting()
+        {
+            nbFinishPainting++;
+        }
+    }
+}
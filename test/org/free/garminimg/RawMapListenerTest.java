@@ -0,0 +1,136 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RawMapListenerTest extends TestCase
+{
+    public void testHandle()
+    {
+        long handle=LabelHandle.create(LabelHandle.KIND_CONTOUR, LabelHandle.MAX_FILE_ID, 1234, 0x3FFFFF);
+        assertEquals(LabelHandle.KIND_CONTOUR, LabelHandle.getKind(handle));
+        assertEquals(LabelHandle.MAX_FILE_ID, LabelHandle.getFileId(handle));
+        assertEquals(1234, LabelHandle.getSubFileId(handle));
+        assertEquals(0x3FFFFF, LabelHandle.getOffset(handle));
+        assertNull(LabelResolver.getDefault().getLabel(LabelHandle.NONE));
+    }
+
+    public void testFileIdsReused() throws IOException
+    {
+        ImgFilesBag maps=new ImgFilesBag();
+        LabelResolver resolver=maps.getLabelResolver();
+        assertFalse(resolver==LabelResolver.getDefault());
+        ImgFileBag first=new ImgFileBag(new File("first.img"), maps);
+        ImgFileBag second=new ImgFileBag(new File("second.img"), maps);
+        assertFalse(first.getId()==second.getId());
+        resolver.unregister(first);
+        assertEquals(first.getId(), new ImgFileBag(new File("third.img"), maps).getId());
+    }
+
+    public void testSameAsLabels() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag maps=new ImgFilesBag();
+        maps.addFile(file);
+        final List<Label> labels=new ArrayList<Label>();
+        maps.readMapForDrawing(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                               1, ObjectKind.ALL, new MapListener()
+        {
+            public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+            {
+                labels.add(label);
+            }
+
+            public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+            {
+                labels.add(label);
+            }
+
+            public void startMap(ImgFileBag file)
+            {
+            }
+
+            public void startSubDivision(SubDivision subDivision)
+            {
+            }
+
+            public void finishPainting()
+            {
+            }
+        });
+
+        final List<Long> handles=new ArrayList<Long>();
+        maps.readMapForDrawingRaw(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                                  1, ObjectKind.ALL, new RawMapListener()
+        {
+            public void addPoint(int type, int subType, int longitude, int latitude, long label, boolean indexed)
+            {
+                handles.add(label);
+            }
+
+            public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, long label, boolean line, boolean direction)
+            {
+                handles.add(label);
+            }
+
+            public void startMap(ImgFileBag file)
+            {
+            }
+
+            public void startSubDivision(SubDivision subDivision)
+            {
+            }
+
+            public void finishPainting()
+            {
+            }
+        }, null);
+
+        assertEquals(labels.size(), handles.size());
+        LabelResolver resolver=maps.getLabelResolver();
+        int nbLabels=0;
+        for(int cpt=0; cpt<labels.size(); ++cpt)
+        {
+            Label label=labels.get(cpt);
+            long handle=handles.get(cpt);
+            if(label==null)
+            {
+                assertEquals(LabelHandle.NONE, handle);
+                continue;
+            }
+            nbLabels++;
+            assertEquals(label.getHandle(), handle);
+            assertEquals(label.getName(), resolver.getName(handle));
+            Label resolved=resolver.getLabel(handle);
+            assertEquals(label.getClass(), resolved.getClass());
+            assertEquals(label.getName(), resolved.getName());
+        }
+        assertTrue(nbLabels>0);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2007 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+public class SubDivisionCacheTest extends TestCase
+{
+    public void testSameAsDecoded() throws IOException
+    {
+        File file=new File("/home/patrick/gps/maps/00000002.img");
+        if(!file.exists()) return;
+
+        ImgFilesBag decoded=new ImgFilesBag();
+        decoded.addFile(file);
+
+        ImgFilesBag cached=new ImgFilesBag();
+        SubDivisionCache cache=new SubDivisionCache();
+        cached.setSubDivisionCache(cache);
+        cached.addFile(file);
+
+        BitSet types=new BitSet();
+        types.set(0x01, 0x20);
+        int[] kinds={ObjectKind.ALL, ObjectKind.POLYLINE, ObjectKind.POINT|ObjectKind.INDEXED_POINT};
+        for(int kind : kinds)
+        {
+            for(BitSet typeFilter : new BitSet[]{null, types})
+            {
+                ChecksumListener expected=readAll(decoded, kind, typeFilter);
+                //first time, filled from the RGN file
+                ChecksumListener actual=readAll(cached, kind, typeFilter);
+                assertEquals(expected.nbObjects, actual.nbObjects);
+                assertEquals(expected.checksum, actual.checksum);
+                //second time, from the cache
+                cache.resetStatistics();
+                actual=readAll(cached, kind, typeFilter);
+                assertEquals(expected.nbObjects, actual.nbObjects);
+                assertEquals(expected.checksum, actual.checksum);
+                assertEquals(0, cache.getMisses());
+            }
+        }
+        assertTrue(cache.getNbEntries()>0);
+        assertTrue(cache.getSize()>0);
+    }
+
+    private ChecksumListener readAll(ImgFilesBag maps, int objectKindFilter, BitSet objectTypeFilter) throws IOException
+    {
+        ChecksumListener result=new ChecksumListener();
+        for(int resolution=1; resolution<=4096; resolution*=8)
+        {
+            maps.readMap(maps.getMinLongitude(), maps.getMaxLongitude(), maps.getMinLatitude(), maps.getMaxLatitude(),
+                         resolution, objectKindFilter, objectTypeFilter, result);
+        }
+        return result;
+    }
+
+    private static class ChecksumListener implements MapListener
+    {
+        private int nbObjects=0;
+
+        private long checksum=0;
+
+        public void addPoint(int type, int subType, int longitude, int latitude, Label label, boolean indexed)
+        {
+            nbObjects++;
+            checksum=checksum*31+type;
+            checksum=checksum*31+subType;
+            checksum=checksum*31+longitude+latitude;
+            checksum=checksum*31+(indexed?1:0);
+            addLabel(label);
+        }
+
+        public void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints, Label label, boolean line, boolean direction)
+        {
+            nbObjects++;
+            checksum=checksum*31+type;
+            checksum=checksum*31+(line?1:0)+(direction?2:0);
+            for(int cpt=0; cpt<nbPoints; ++cpt)
+            {
+                checksum=checksum*31+longitudes[cpt]+latitudes[cpt];
+            }
+            addLabel(label);
+        }
+
+        private void addLabel(Label label)
+        {
+            if(label!=null)
+                checksum=checksum*31+label.getClass().getName().hashCode()+label.toString().hashCode();
+        }
+
+        public void startMap(ImgFileBag file)
+        {
+        }
+
+        public void startSubDivision(SubDivision subDivision)
+        {
+            checksum=checksum*31+subDivision.getIndex();
+        }
+
+        public void finishPainting()
+        {
+        }
+    }
+}